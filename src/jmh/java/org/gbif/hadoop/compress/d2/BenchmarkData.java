@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Data and helpers shared by the benchmarks.  Data is generated from a fixed seed so runs are comparable.
+ */
+public final class BenchmarkData {
+
+  private static final String[] WORDS = {
+    "Puma", "concolor", "Alces", "alces", "Quercus", "robur", "Animalia", "Plantae", "Chordata", "Mammalia",
+    "PRESERVED_SPECIMEN", "HUMAN_OBSERVATION", "DK", "GB", "US", "2019-06-01", "WGS84", "CC_BY_4_0"
+  };
+
+  /**
+   * Tab delimited lines of words and numbers resembling occurrence records, which compress about as well as real
+   * downloads.
+   *
+   * @param size the number of bytes to generate
+   */
+  public static byte[] text(int size) {
+    Random random = new Random(size);
+    StringBuilder text = new StringBuilder(size + 100);
+    long id = 1000000;
+    while (text.length() < size) {
+      text.append(id++);
+      for (int field = 0; field < 8; field++) {
+        text.append('\t').append(WORDS[random.nextInt(WORDS.length)]);
+      }
+      text.append('\t').append(random.nextInt(90)).append('.').append(random.nextInt(100000));
+      text.append('\t').append(random.nextInt(180)).append('.').append(random.nextInt(100000)).append('\n');
+    }
+    return text.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * @return the data compressed as a D2 file, with its footer
+   */
+  public static byte[] compress(byte[] data) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (D2CompressorStream out = new D2CompressorStream(compressed)) {
+      out.write(data);
+    }
+    return compressed.toByteArray();
+  }
+
+  /**
+   * Reads the stream to the end with the given buffer.
+   *
+   * @return the number of bytes read, to be returned by the benchmark so the work is not eliminated
+   */
+  public static long drain(InputStream in, byte[] buffer) throws IOException {
+    long total = 0;
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      total += read;
+    }
+    return total;
+  }
+
+  /**
+   * A stream that discards what is written, counting the bytes.
+   */
+  public static final class CountingSink extends OutputStream {
+    private long count;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+
+    public long getCount() {
+      return count;
+    }
+  }
+
+  private BenchmarkData() {
+  }
+}
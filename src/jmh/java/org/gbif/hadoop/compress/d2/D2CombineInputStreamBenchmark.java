@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Combines 4MB of text split across 1, 100 and 10,000 D2 parts with a {@link D2CombineInputStream}, both reading the
+ * combined deflate stream alone (as when writing a ZIP entry) and inflating it.  With many parts the cost is dominated
+ * by the footer handling of each part rather than by the data.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class D2CombineInputStreamBenchmark {
+
+  private static final int DATA_SIZE = 4 * 1024 * 1024;
+
+  @Param({"1", "100", "10000"})
+  public int parts;
+
+  private byte[][] compressed;
+  private final byte[] buffer = new byte[8192];
+
+  @Setup
+  public void setUp() throws IOException {
+    byte[] data = BenchmarkData.text(DATA_SIZE);
+    int partSize = DATA_SIZE / parts;
+    compressed = new byte[parts][];
+    for (int i = 0; i < parts; i++) {
+      int from = i * partSize;
+      int to = i == parts - 1 ? DATA_SIZE : from + partSize;
+      byte[] part = new byte[to - from];
+      System.arraycopy(data, from, part, 0, part.length);
+      compressed[i] = BenchmarkData.compress(part);
+    }
+  }
+
+  @Benchmark
+  public long combine() throws IOException {
+    try (D2CombineInputStream in = new D2CombineInputStream(streams())) {
+      BenchmarkData.drain(in, buffer);
+      in.close(); // required to get the combined CRC-32
+      return in.getCrc32();
+    }
+  }
+
+  @Benchmark
+  public long combineAndInflate() throws IOException {
+    try (InputStream in = D2Utils.decompressInputSteam(new D2CombineInputStream(streams()))) {
+      return BenchmarkData.drain(in, buffer);
+    }
+  }
+
+  private List<InputStream> streams() {
+    List<InputStream> streams = new ArrayList<>(parts);
+    for (byte[] part : compressed) {
+      streams.add(new ByteArrayInputStream(part));
+    }
+    return streams;
+  }
+}
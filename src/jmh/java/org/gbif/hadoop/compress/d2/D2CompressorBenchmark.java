@@ -0,0 +1,73 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compresses 4MB of text through a {@link D2CompressorStream}, in writes of 8K as a record writer would make, at each
+ * deflate level and stream buffer size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class D2CompressorBenchmark {
+
+  private static final int DATA_SIZE = 4 * 1024 * 1024;
+  private static final int WRITE_SIZE = 8 * 1024;
+
+  @Param({"1", "6", "9"})
+  public int level;
+
+  @Param({"4096", "32768", "131072"})
+  public int bufferSize;
+
+  private byte[] data;
+
+  @Setup
+  public void setUp() {
+    data = BenchmarkData.text(DATA_SIZE);
+  }
+
+  @Benchmark
+  public long compress() throws IOException {
+    D2Compressor compressor = new D2Compressor();
+    compressor.setLevel(level);
+    BenchmarkData.CountingSink sink = new BenchmarkData.CountingSink();
+    try (D2CompressorStream out = new D2CompressorStream(sink, compressor, bufferSize)) {
+      for (int off = 0; off < data.length; off += WRITE_SIZE) {
+        out.write(data, off, Math.min(WRITE_SIZE, data.length - off));
+      }
+    } finally {
+      compressor.end();
+    }
+    return sink.getCount();
+  }
+}
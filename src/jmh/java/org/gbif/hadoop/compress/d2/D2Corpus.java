@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * The shapes of data written as D2, generated deterministically from a fixed seed so that results stay comparable over
+ * time.  Changing a generator changes every result for it, so add a new shape rather than altering one.
+ */
+public enum D2Corpus {
+
+  /**
+   * Wide tab delimited rows like occurrence downloads: many short, repetitive fields and a few numeric ones.
+   */
+  TSV {
+    @Override
+    void append(Random random, long row, StringBuilder out) {
+      out.append(row).append('\t').append(pick(random, DATASETS)).append('\t').append(pick(random, BASIS));
+      out.append('\t').append(pick(random, KINGDOMS)).append('\t').append(pick(random, GENERA)).append(' ')
+        .append(pick(random, EPITHETS));
+      out.append('\t').append(pick(random, COUNTRIES)).append('\t');
+      coordinate(random, out, 90);
+      out.append('\t');
+      coordinate(random, out, 180);
+      out.append('\t').append(1900 + random.nextInt(124)).append('-').append(1 + random.nextInt(12));
+      for (int i = 0; i < 30; i++) {
+        // mostly empty columns, as in real downloads
+        out.append('\t');
+        if (random.nextInt(8) == 0) {
+          out.append(pick(random, EPITHETS));
+        }
+      }
+      out.append('\n');
+    }
+  },
+
+  /**
+   * One JSON object per line, with the same fields as the rows but with repeated keys and quoting.
+   */
+  JSON {
+    @Override
+    void append(Random random, long row, StringBuilder out) {
+      out.append("{\"gbifID\":").append(row).append(",\"datasetKey\":\"").append(pick(random, DATASETS))
+        .append("\",\"basisOfRecord\":\"").append(pick(random, BASIS)).append("\",\"kingdom\":\"")
+        .append(pick(random, KINGDOMS)).append("\",\"scientificName\":\"").append(pick(random, GENERA)).append(' ')
+        .append(pick(random, EPITHETS)).append("\",\"countryCode\":\"").append(pick(random, COUNTRIES))
+        .append("\",\"decimalLatitude\":");
+      coordinate(random, out, 90);
+      out.append(",\"decimalLongitude\":");
+      coordinate(random, out, 180);
+      out.append(",\"issues\":[");
+      for (int i = random.nextInt(3); i > 0; i--) {
+        out.append("\"COORDINATE_ROUNDED\"").append(i > 1 ? "," : "");
+      }
+      out.append("]}\n");
+    }
+  },
+
+  /**
+   * Low entropy identifiers, one per line: increasing catalogue numbers with a common prefix.
+   */
+  IDENTIFIERS {
+    @Override
+    void append(Random random, long row, StringBuilder out) {
+      out.append("urn:catalog:").append(pick(random, INSTITUTIONS)).append(":P").append(String.format("%08d", row))
+        .append('\n');
+    }
+  },
+
+  /**
+   * Random bytes, which cannot be compressed, as with data that is already compressed.
+   */
+  RANDOM {
+    @Override
+    byte[] generate(int size) {
+      byte[] data = new byte[size];
+      new Random(SEED).nextBytes(data);
+      return data;
+    }
+
+    @Override
+    void append(Random random, long row, StringBuilder out) {
+      throw new UnsupportedOperationException();
+    }
+  };
+
+  private static final long SEED = 20240601L;
+
+  private static final String[] DATASETS = {
+    "50c9509d-22c7-4a22-a47d-8c48425ef4a7", "7e380070-f762-11e1-a439-00145eb45e9a",
+    "4fa7b334-ce0d-4e88-aaae-2e0c138d049e", "b124e1e0-4755-430f-9eab-894f25a9b59c"
+  };
+  private static final String[] BASIS = {"HUMAN_OBSERVATION", "PRESERVED_SPECIMEN", "MACHINE_OBSERVATION"};
+  private static final String[] KINGDOMS = {"Animalia", "Plantae", "Fungi", "Bacteria"};
+  private static final String[] GENERA = {"Puma", "Alces", "Quercus", "Parus", "Turdus", "Amanita", "Salix", "Bombus"};
+  private static final String[] EPITHETS = {"concolor", "alces", "robur", "major", "merula", "muscaria", "alba"};
+  private static final String[] COUNTRIES = {"DK", "GB", "US", "FR", "SE", "AU", "BR"};
+  private static final String[] INSTITUTIONS = {"MNHN", "NHMUK", "USNM"};
+
+  /**
+   * @param size the number of bytes to generate
+   * @return the same data for the same size on every run
+   */
+  byte[] generate(int size) {
+    Random random = new Random(SEED);
+    StringBuilder out = new StringBuilder(size + 1024);
+    for (long row = 1; out.length() < size; row++) {
+      append(random, row, out);
+    }
+    return out.substring(0, size).getBytes(StandardCharsets.UTF_8);
+  }
+
+  abstract void append(Random random, long row, StringBuilder out);
+
+  private static String pick(Random random, String[] values) {
+    return values[random.nextInt(values.length)];
+  }
+
+  private static void coordinate(Random random, StringBuilder out, int range) {
+    out.append(random.nextInt(2 * range) - range).append('.').append(random.nextInt(10000));
+  }
+}
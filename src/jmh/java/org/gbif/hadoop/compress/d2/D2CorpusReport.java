@@ -0,0 +1,172 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * Reports the compression ratio and speed of D2 over each shape of the {@link D2Corpus}, for each deflate level,
+ * strategy and flush policy, so that levels and strategies can be chosen from evidence.  Run with:
+ * <pre>
+ *   mvn -Pbenchmarks test-compile exec:exec@corpus-report -Dd2.report.args="[MB per corpus] [repeats] [output]"
+ * </pre>
+ * The report is tab delimited with a header row, after comment lines starting with #, and is written to
+ * target/d2-corpus-report.tsv by default.  The columns are:
+ * <ol>
+ *   <li>corpus: the shape of data</li>
+ *   <li>bytes: the uncompressed size</li>
+ *   <li>level and strategy: as given to the {@link Deflater}</li>
+ *   <li>flush: the flush policy, being writes of a given size each ending in a sync flush as a record writer makes,
+ *   optionally with a full flush for an index every 1MB, or a single write (the baseline)</li>
+ *   <li>flushes: the number of flushes made</li>
+ *   <li>compressed_bytes and ratio: the size of the D2 file including its footer, and the uncompressed size divided by
+ *   it</li>
+ *   <li>compress_mib_s and decompress_mib_s: uncompressed MiB per second, the best of the repeats</li>
+ *   <li>flush_overhead_bytes: the bytes each flush adds over the single write baseline</li>
+ * </ol>
+ */
+public final class D2CorpusReport {
+
+  private static final int[] LEVELS = {1, 6, 9};
+  private static final String[] STRATEGY_NAMES = {"DEFAULT", "FILTERED", "HUFFMAN_ONLY"};
+  private static final int[] STRATEGIES = {Deflater.DEFAULT_STRATEGY, Deflater.FILTERED, Deflater.HUFFMAN_ONLY};
+
+  // the flush policies: names, write sizes (0 for a single write) and index intervals
+  private static final String[] FLUSH_NAMES = {"single", "write-1K", "write-8K", "write-64K", "write-8K+index-1M"};
+  private static final int[] WRITE_SIZES = {0, 1024, 8192, 65536, 8192};
+  private static final long[] INDEX_INTERVALS = {0, 0, 0, 0, 1024 * 1024};
+
+  private static final int BUFFER_SIZE = 65536;
+  private static final double MIB = 1024 * 1024;
+
+  /**
+   * @param args optionally the MB of each corpus (default 8), the number of repeats (default 3) and the output file
+   */
+  public static void main(String[] args) throws IOException {
+    int size = (args.length > 0 ? Integer.parseInt(args[0]) : 8) * 1024 * 1024;
+    int repeats = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+    File output = new File(args.length > 2 ? args[2] : "target/d2-corpus-report.tsv");
+    File parent = output.getAbsoluteFile().getParentFile();
+    if (!parent.exists() && !parent.mkdirs()) {
+      throw new IOException("Unable to create " + parent);
+    }
+
+    try (PrintWriter report = new PrintWriter(new OutputStreamWriter(new FileOutputStream(output),
+                                                                     StandardCharsets.UTF_8))) {
+      report.println("# D2 corpus report: java " + System.getProperty("java.version") + ", best of " + repeats);
+      report.println("corpus\tbytes\tlevel\tstrategy\tflush\tflushes\tcompressed_bytes\tratio\tcompress_mib_s"
+                     + "\tdecompress_mib_s\tflush_overhead_bytes");
+      for (D2Corpus corpus : D2Corpus.values()) {
+        byte[] data = corpus.generate(size);
+        for (int level : LEVELS) {
+          for (int s = 0; s < STRATEGIES.length; s++) {
+            Result baseline = null;
+            for (int f = 0; f < FLUSH_NAMES.length; f++) {
+              Result result = measure(data, level, STRATEGIES[s], WRITE_SIZES[f], INDEX_INTERVALS[f], repeats);
+              if (baseline == null) {
+                baseline = result;
+              }
+              long extraFlushes = result.flushes - baseline.flushes;
+              double overhead = extraFlushes > 0
+                ? (double) (result.compressed.length - baseline.compressed.length) / extraFlushes
+                : 0;
+              String row = String.format(Locale.ROOT, "%s\t%d\t%d\t%s\t%s\t%d\t%d\t%.3f\t%.1f\t%.1f\t%.2f",
+                                         corpus, data.length, level, STRATEGY_NAMES[s], FLUSH_NAMES[f],
+                                         result.flushes, result.compressed.length,
+                                         (double) data.length / result.compressed.length,
+                                         data.length / MIB / (result.compressNanos / 1e9),
+                                         data.length / MIB / (result.decompressNanos / 1e9), overhead);
+              report.println(row);
+              report.flush();
+              System.err.println(row);
+            }
+          }
+        }
+      }
+    }
+    System.err.println("Report written to " + output);
+  }
+
+  /*
+   * Compresses and decompresses the data the given number of times, keeping the fastest of each.
+   */
+  private static Result measure(byte[] data, int level, int strategy, int writeSize, long indexInterval, int repeats)
+    throws IOException {
+    Result result = new Result();
+    result.compressNanos = Long.MAX_VALUE;
+    result.decompressNanos = Long.MAX_VALUE;
+    byte[] buffer = new byte[BUFFER_SIZE];
+    for (int r = 0; r < repeats; r++) {
+      final long[] flushes = new long[1];
+      D2Compressor compressor = new D2Compressor(indexInterval) {
+        @Override
+        public int compress(byte[] b, int off, int len) throws IOException {
+          int n = super.compress(b, off, len);
+          if (n < len && needsInput()) {
+            flushes[0]++; // the flush completed
+          }
+          return n;
+        }
+      };
+      compressor.setLevel(level);
+      compressor.setStrategy(strategy);
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2);
+      long start = System.nanoTime();
+      try (D2CompressorStream out = new D2CompressorStream(compressed, compressor, BUFFER_SIZE)) {
+        int chunk = writeSize > 0 ? writeSize : data.length;
+        for (int off = 0; off < data.length; off += chunk) {
+          out.write(data, off, Math.min(chunk, data.length - off));
+        }
+      } finally {
+        compressor.end();
+      }
+      result.compressNanos = Math.min(result.compressNanos, System.nanoTime() - start);
+      result.compressed = compressed.toByteArray();
+      result.flushes = flushes[0];
+
+      start = System.nanoTime();
+      long read = 0;
+      try (InputStream in = new D2ConcatenatedInputStream(new ByteArrayInputStream(result.compressed))) {
+        for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+          read += n;
+        }
+      }
+      result.decompressNanos = Math.min(result.decompressNanos, System.nanoTime() - start);
+      if (read != data.length) {
+        throw new IllegalStateException("Decompressed " + read + " bytes but expected " + data.length);
+      }
+    }
+    return result;
+  }
+
+  private static class Result {
+    private byte[] compressed;
+    private long flushes;
+    private long compressNanos;
+    private long decompressNanos;
+  }
+
+  private D2CorpusReport() {
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.io.compress.DecompressorStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decompresses a 4MB D2 file with a {@link D2Decompressor} through a Hadoop {@link DecompressorStream} over a
+ * {@link FooteredInputStream}, and through the {@link D2ConcatenatedInputStream} now given by the codec, reading with
+ * each buffer size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class D2DecompressorBenchmark {
+
+  private static final int DATA_SIZE = 4 * 1024 * 1024;
+
+  @Param({"512", "8192", "65536"})
+  public int readSize;
+
+  private byte[] compressed;
+  private byte[] buffer;
+
+  @Setup
+  public void setUp() throws IOException {
+    compressed = BenchmarkData.compress(BenchmarkData.text(DATA_SIZE));
+    buffer = new byte[readSize];
+  }
+
+  @Benchmark
+  public long decompressorStream() throws IOException {
+    D2Decompressor decompressor = new D2Decompressor();
+    try (InputStream in = new DecompressorStream(D2Utils.prepareD2Stream(new ByteArrayInputStream(compressed)),
+                                                 decompressor)) {
+      return BenchmarkData.drain(in, buffer);
+    } finally {
+      decompressor.end();
+    }
+  }
+
+  @Benchmark
+  public long codecStream() throws IOException {
+    try (InputStream in = new D2ConcatenatedInputStream(new ByteArrayInputStream(compressed))) {
+      return BenchmarkData.drain(in, buffer);
+    }
+  }
+}
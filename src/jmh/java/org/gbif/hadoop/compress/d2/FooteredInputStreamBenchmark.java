@@ -0,0 +1,73 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reads 1MB through a {@link FooteredInputStream} a byte at a time, and in small and large arrays.  Each read peeks
+ * ahead for the footer, so the allocation rate reported by the GC profiler shows the cost per read.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FooteredInputStreamBenchmark {
+
+  private static final int DATA_SIZE = 1024 * 1024;
+
+  @Param({"1", "64", "8192"})
+  public int readSize;
+
+  private byte[] data;
+  private byte[] buffer;
+
+  @Setup
+  public void setUp() {
+    data = new byte[DATA_SIZE + D2Footer.FOOTER_LENGTH_ISOLATED_READ];
+    new Random(DATA_SIZE).nextBytes(data);
+    buffer = new byte[readSize];
+  }
+
+  @Benchmark
+  public long read() throws IOException {
+    try (FooteredInputStream in = D2Utils.prepareD2Stream(new ByteArrayInputStream(data))) {
+      if (readSize == 1) {
+        long total = 0;
+        while (in.read() != -1) {
+          total++;
+        }
+        return total;
+      }
+      return BenchmarkData.drain(in, buffer);
+    }
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2.zip;
+
+import org.gbif.hadoop.compress.d2.BenchmarkData;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writes a ZIP entry of 4MB of text in each mode of the {@link ModalZipOutputStream}: deflating the text, and copying
+ * the same text already deflated as 16 D2 parts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ModalZipOutputStreamBenchmark {
+
+  private static final int DATA_SIZE = 4 * 1024 * 1024;
+  private static final int PARTS = 16;
+  private static final int WRITE_SIZE = 8 * 1024;
+
+  private byte[] data;
+  private byte[][] parts;
+
+  @Setup
+  public void setUp() throws IOException {
+    data = BenchmarkData.text(DATA_SIZE);
+    parts = new byte[PARTS][];
+    int partSize = DATA_SIZE / PARTS;
+    for (int i = 0; i < PARTS; i++) {
+      byte[] part = new byte[partSize];
+      System.arraycopy(data, i * partSize, part, 0, partSize);
+      parts[i] = BenchmarkData.compress(part);
+    }
+  }
+
+  @Benchmark
+  public long deflating() throws IOException {
+    BenchmarkData.CountingSink sink = new BenchmarkData.CountingSink();
+    try (ModalZipOutputStream zip = new ModalZipOutputStream(sink)) {
+      zip.putNextEntry(new ZipEntry("data.txt"), ModalZipOutputStream.MODE.DEFAULT);
+      for (int off = 0; off < data.length; off += WRITE_SIZE) {
+        zip.write(data, off, Math.min(WRITE_SIZE, data.length - off));
+      }
+      zip.closeEntry();
+    }
+    return sink.getCount();
+  }
+
+  @Benchmark
+  public long preDeflated() throws IOException {
+    List<InputStream> streams = new ArrayList<>(PARTS);
+    for (byte[] part : parts) {
+      streams.add(new ByteArrayInputStream(part));
+    }
+    BenchmarkData.CountingSink sink = new BenchmarkData.CountingSink();
+    try (ModalZipOutputStream zip = new ModalZipOutputStream(sink)) {
+      zip.putEntry(new ZipEntry("data.txt"), streams);
+    }
+    return sink.getCount();
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+/**
+ * A utility that enables Adler-32 values to be combined from separate parts of the original.
+ * <p/>
+ * A port of the zlib.1.2 implementation.  All credit to authors Jean-loup Gailly(jloup@gzip.org) and Mark
+ * Adler(madler@alumni.caltech.edu) and contributors of zlib.
+ */
+@SuppressWarnings("MagicNumber")
+final class AdlerCombine {
+
+  // largest prime smaller than 65536
+  private static final long BASE = 65521L;
+
+  // the Adler-32 of no data, which is the identity for combining
+  static final long ADLER32_EMPTY = 1L;
+
+  static long combine(long adler1, long adler2, long len2) {
+
+    // degenerate case (also disallow negative lengths)
+    if (len2 <= 0) {
+      return adler1;
+    }
+
+    // the other half of the combination, split into its two sums
+    long rem = len2 % BASE;
+    long sum1 = adler1 & 0xffff;
+    long sum2 = (rem * sum1) % BASE;
+    sum1 += (adler2 & 0xffff) + BASE - 1;
+    sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + BASE - rem;
+    if (sum1 >= BASE) {
+      sum1 -= BASE;
+    }
+    if (sum1 >= BASE) {
+      sum1 -= BASE;
+    }
+    if (sum2 >= (BASE << 1)) {
+      sum2 -= (BASE << 1);
+    }
+    if (sum2 >= BASE) {
+      sum2 -= BASE;
+    }
+    return sum1 | (sum2 << 16);
+  }
+
+  private AdlerCombine() {}
+}
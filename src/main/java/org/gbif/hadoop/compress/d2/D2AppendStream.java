@@ -0,0 +1,168 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+
+/**
+ * A compressor stream that continues an existing D2 file in place.  Since the data of a D2 file ends on a sync flush,
+ * new deflate data can follow it directly once the footer is removed, exactly as when parts are combined.  On closing
+ * the footer written describes the whole file.
+ * <p/>
+ * To ensure an interrupted append never leaves a file that reads as valid but truncated, the previous footer is
+ * written to a hidden journal file before the file is touched, and the journal is only removed once the new footer is
+ * written.  Until then the file does not end with a valid footer (see {@link D2Footer#isComplete(byte[], long)}), and
+ * the journal allows it to be restored.
+ */
+final class D2AppendStream extends D2CompressorStream {
+
+  private static final String JOURNAL_PREFIX = ".";
+  private static final String JOURNAL_SUFFIX = ".append";
+
+  // how long to wait for HDFS to recover the lease of a file left open by an interrupted append
+  private static final long LEASE_RECOVERY_TIMEOUT_MS = 60000;
+  private static final long LEASE_RECOVERY_POLL_MS = 100;
+
+  private final FileSystem fs;
+  private final Path journal;
+  private final D2Footer previous;
+
+  private D2AppendStream(OutputStream out, FileSystem fs, Path journal, D2Footer previous) {
+    super(out);
+    this.fs = fs;
+    this.journal = journal;
+    this.previous = previous;
+  }
+
+  /**
+   * Opens the file for appending, first recovering from any previously interrupted append.
+   */
+  static D2AppendStream open(FileSystem fs, Path path) throws IOException {
+    recover(fs, path);
+    D2Footer previous = D2Utils.readFooter(fs, path); // verifies the file is complete
+
+    Path journal = journalPath(path);
+    try (FSDataOutputStream out = fs.create(journal, false)) {
+      out.write(D2Footer.serialize(previous));
+      out.hsync();
+    }
+    return new D2AppendStream(D2Utils.truncateForAppend(fs, path, previous.getCompressedLength()), fs, journal,
+                              previous);
+  }
+
+  /**
+   * Restores the file from the journal of an interrupted append, if there is one.  If the append wrote its footer but
+   * was interrupted before removing the journal, the file is left as it is.
+   *
+   * @return true if a journal was found
+   */
+  static boolean recover(FileSystem fs, Path path) throws IOException {
+    Path journal = journalPath(path);
+    if (!fs.exists(journal)) {
+      return false;
+    }
+    // a complete journal means the append may have touched the file, whereas a short one means the append was
+    // interrupted writing the journal, before touching the file which is then left as it is
+    if (fs.getFileStatus(journal).getLen() == D2Footer.FOOTER_LENGTH) {
+      byte[] previous = new byte[D2Footer.FOOTER_LENGTH];
+      try (FSDataInputStream in = fs.open(journal)) {
+        in.readFully(0, previous);
+      }
+      recoverLease(fs, path);
+      long length = fs.getFileStatus(path).getLen();
+      if (!endsWithFooter(fs, path, length)) {
+        long compressed = D2Footer.buildFooter(previous).getCompressedLength();
+        if (length < compressed) {
+          throw new IOException("Unable to recover " + path + " which is shorter than before the append");
+        }
+        // discard what was appended and restore the previous footer
+        try (FSDataOutputStream out = D2Utils.truncateForAppend(fs, path, compressed)) {
+          out.write(previous);
+        }
+      }
+    }
+    fs.delete(journal, false);
+    return true;
+  }
+
+  /**
+   * Combines the footer of the existing data with the checksums and lengths of the appended data.
+   */
+  @Override
+  D2Footer footer(D2Compressor compressor) {
+    long crc = CRCCombine.combine(previous.getCrc(), compressor.getCRC32(), compressor.getBytesRead());
+    long adler = previous.hasAdler32()
+      ? AdlerCombine.combine(previous.getAdler32(), compressor.getAdler32(), compressor.getBytesRead())
+      : D2Footer.NO_ADLER32;
+    return D2Footer.of(previous.getUncompressedLength() + compressor.getBytesRead(),
+                       previous.getCompressedLength() + compressor.getBytesWritten(), crc, adler);
+  }
+
+  /**
+   * Writes the footer and closes the file, and only then removes the journal.
+   */
+  @Override
+  public void close() throws IOException {
+    if (!closed) {
+      super.close();
+      fs.delete(journal, false);
+    }
+  }
+
+  static Path journalPath(Path path) {
+    return new Path(path.getParent(), JOURNAL_PREFIX + path.getName() + JOURNAL_SUFFIX);
+  }
+
+  private static boolean endsWithFooter(FileSystem fs, Path path, long length) throws IOException {
+    if (length < D2Footer.FOOTER_LENGTH) {
+      return false;
+    }
+    byte[] footer = new byte[D2Footer.FOOTER_LENGTH];
+    try (FSDataInputStream in = fs.open(path)) {
+      in.readFully(length - D2Footer.FOOTER_LENGTH, footer);
+    }
+    return D2Footer.isComplete(footer, length);
+  }
+
+  /*
+   * An interrupted append on HDFS can leave the file open under the lease of the writer, which must be recovered
+   * before the file can be truncated.
+   */
+  private static void recoverLease(FileSystem fs, Path path) throws IOException {
+    if (!(fs instanceof DistributedFileSystem)) {
+      return;
+    }
+    DistributedFileSystem dfs = (DistributedFileSystem) fs;
+    long deadline = System.currentTimeMillis() + LEASE_RECOVERY_TIMEOUT_MS;
+    while (!dfs.recoverLease(path)) {
+      if (System.currentTimeMillis() > deadline) {
+        throw new IOException("Timed out recovering the lease of " + path);
+      }
+      try {
+        Thread.sleep(LEASE_RECOVERY_POLL_MS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted recovering the lease of " + path);
+      }
+    }
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of decompressed D2 blocks, being the data between consecutive points of a {@link D2Index}, shared by the
+ * {@link D2SeekableInputStream}s given it.  Repeated reads of the same pages of a file by several readers or threads
+ * then copy from memory rather than inflating again.
+ * <p/>
+ * Blocks are keyed by the identity of the file, which includes its footer so a replaced file does not read as the one
+ * it replaced, and the compressed offset of the block.  They are held off the heap in direct buffers, and the least
+ * recently used are evicted once the total size exceeds the capacity.  Blocks larger than {@value #MAX_BLOCK_SIZE}
+ * bytes, or than a quarter of the capacity, are not cached, which includes most unindexed files.
+ * <p/>
+ * Evicted buffers are left to the garbage collector rather than pooled, since readers may still be copying from them,
+ * so the direct memory in use can exceed the capacity until a collection frees them.  The JVM collects when direct
+ * allocation reaches its limit (-XX:MaxDirectMemorySize, by default the maximum heap size), so the limit should allow
+ * at least twice the capacity on top of other direct memory use, and explicit collection must not be disabled
+ * (-XX:+DisableExplicitGC) where the cache sees steady eviction.
+ * <p/>
+ * The cache returned by {@link #shared()} has the capacity given in bytes by the environment variable
+ * {@value #SIZE_ENV_VAR}, or {@value #DEFAULT_CAPACITY} bytes by default.
+ */
+public final class D2BlockCache {
+
+  public static final long DEFAULT_CAPACITY = 128L << 20; // 128MB
+  public static final int MAX_BLOCK_SIZE = 4 << 20; // 4MB, several points at the suggested index interval
+  public static final String SIZE_ENV_VAR = "D2_BLOCK_CACHE_SIZE";
+
+  private static volatile D2BlockCache shared;
+
+  private final long capacity;
+  private final LinkedHashMap<Key, ByteBuffer> blocks = new LinkedHashMap<>(16, 0.75f, true); // in access order
+  private long size;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param capacity the total size in bytes of the blocks held
+   */
+  public D2BlockCache(long capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+    this.capacity = capacity;
+  }
+
+  /**
+   * @return the cache shared by the whole process
+   */
+  public static D2BlockCache shared() {
+    D2BlockCache cache = shared;
+    if (cache == null) {
+      synchronized (D2BlockCache.class) {
+        cache = shared;
+        if (cache == null) {
+          cache = new D2BlockCache(getCapacityFromEnv());
+          shared = cache;
+        }
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * @param file   the identity of the file (see {@link #identity(String, D2Footer)})
+   * @param offset the compressed offset of the block
+   *
+   * @return a read only view of the block positioned at its start, or null if it is not cached
+   */
+  public ByteBuffer get(String file, long offset) {
+    ByteBuffer block;
+    synchronized (this) {
+      block = blocks.get(new Key(file, offset));
+    }
+    if (block == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return block.asReadOnlyBuffer();
+  }
+
+  /**
+   * Adds a block, evicting the least recently used blocks as needed to stay within the capacity.
+   *
+   * @param file   the identity of the file (see {@link #identity(String, D2Footer)})
+   * @param offset the compressed offset of the block
+   * @param data   the decompressed block, which is copied
+   * @param length the length of the block
+   *
+   * @return a read only view of the block positioned at its start, which is not cached if too large
+   */
+  public ByteBuffer put(String file, long offset, byte[] data, int length) {
+    if (!isCacheable(length)) {
+      return ByteBuffer.wrap(data, 0, length).slice().asReadOnlyBuffer();
+    }
+    ByteBuffer block = ByteBuffer.allocateDirect(length);
+    block.put(data, 0, length);
+    block.flip();
+    synchronized (this) {
+      ByteBuffer previous = blocks.put(new Key(file, offset), block);
+      size += length - (previous == null ? 0 : previous.capacity());
+      Iterator<Map.Entry<Key, ByteBuffer>> eldest = blocks.entrySet().iterator();
+      while (size > capacity && eldest.hasNext()) {
+        size -= eldest.next().getValue().capacity();
+        eldest.remove();
+        evictions.incrementAndGet();
+      }
+    }
+    return block.asReadOnlyBuffer();
+  }
+
+  /**
+   * @return true if a block of the given length would be cached
+   */
+  public boolean isCacheable(long length) {
+    return length <= Math.min(MAX_BLOCK_SIZE, capacity / 4);
+  }
+
+  /**
+   * Builds the identity of a file for keying its blocks, from its location and footer.
+   *
+   * @param location the qualified path or other unique name of the file
+   * @param footer   of the file
+   */
+  public static String identity(String location, D2Footer footer) {
+    return location + '#' + footer.getUncompressedLength() + ':' + footer.getCompressedLength() + ':' + footer.getCrc();
+  }
+
+  /**
+   * Removes all blocks, leaving the counters unchanged.
+   */
+  public synchronized void clear() {
+    blocks.clear();
+    size = 0;
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @return the total size in bytes of the blocks held
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  @Override
+  public String toString() {
+    return "D2BlockCache{size=" + getSize() + ", capacity=" + capacity + ", hits=" + getHitCount() + ", misses="
+           + getMissCount() + ", evictions=" + getEvictionCount() + '}';
+  }
+
+  private static long getCapacityFromEnv() {
+    return parseCapacity(System.getenv(SIZE_ENV_VAR));
+  }
+
+  /**
+   * @return the capacity given, or the default if none is given or it is not a positive number
+   */
+  static long parseCapacity(String capacity) {
+    if (capacity != null) {
+      try {
+        long parsed = Long.parseLong(capacity);
+        if (parsed > 0) {
+          return parsed;
+        }
+      } catch (NumberFormatException e) {
+        // fall through to the message
+      }
+      System.err.println("Invalid block cache size provided in environment variable. Using default size.");
+    }
+    return DEFAULT_CAPACITY;
+  }
+
+  private static final class Key {
+    private final String file;
+    private final long offset;
+
+    private Key(String file, long offset) {
+      this.file = file;
+      this.offset = offset;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return offset == other.offset && file.equals(other.file);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * file.hashCode() + Long.hashCode(offset);
+    }
+  }
+}
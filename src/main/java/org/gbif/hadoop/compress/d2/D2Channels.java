@@ -0,0 +1,131 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Utilities to assemble D2 parts held in local files using NIO channels, so that the compressed data is moved with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)} by the kernel rather than through buffers on the
+ * heap.  The target may be any channel, such as a file or a socket, which is expected to be in blocking mode.
+ */
+public final class D2Channels {
+
+  /**
+   * Reads the footer of a D2 file with a positional read of the trailing bytes.
+   *
+   * @param part channel to the raw D2 file, such as a .def2 part file
+   *
+   * @return the footer of the file
+   */
+  public static D2Footer readFooter(FileChannel part) throws IOException {
+    long length = part.size();
+    if (length < D2Footer.FOOTER_LENGTH) {
+      throw new IOException("Channel is too short to hold a D2 footer: " + length + " bytes");
+    }
+    ByteBuffer footer = ByteBuffer.allocate(D2Footer.FOOTER_LENGTH);
+    readFully(part, length - D2Footer.FOOTER_LENGTH, footer);
+    if (!D2Footer.isComplete(footer.array(), length)) {
+      throw new IOException("Channel does not end with a valid D2 footer, perhaps a write or append was interrupted?");
+    }
+    return D2Footer.buildFooter(footer.array());
+  }
+
+  /**
+   * Writes the parts to the target as a single D2 file, being the compressed data of each part followed by a footer
+   * combined from those of the parts.  The channels are read with positional reads and are not closed.
+   *
+   * @param parts  channels to the raw D2 part files in order
+   * @param target to write to, which is not closed
+   *
+   * @return the footer written
+   */
+  public static D2Footer transfer(List<FileChannel> parts, WritableByteChannel target) throws IOException {
+    List<D2Footer> footers = new ArrayList<>();
+    for (FileChannel part : parts) {
+      D2Footer footer = readFooter(part);
+      footers.add(footer);
+      transferFully(part, 0, footer.getCompressedLength(), target);
+    }
+    D2Footer combined = D2Footer.combine(footers);
+    writeFully(target, ByteBuffer.wrap(D2Footer.serialize(combined)));
+    return combined;
+  }
+
+  /**
+   * Transfers the range of the source to the target, looping since a single transfer may move fewer bytes than asked.
+   *
+   * @throws EOFException if the source ends before the range does
+   */
+  public static void transferFully(FileChannel source, long position, long count, WritableByteChannel target)
+    throws IOException {
+    long transferred = 0;
+    while (transferred < count) {
+      long n = source.transferTo(position + transferred, count - transferred, target);
+      if (n <= 0 && position + transferred >= source.size()) {
+        throw new EOFException("Channel ended before " + count + " bytes from position " + position);
+      }
+      transferred += n;
+    }
+  }
+
+  /**
+   * Writes the buffers to the target fully, with gathering writes when the target supports them so that (e.g.) a header
+   * and the data following it leave in a single system call.
+   */
+  public static void writeFully(WritableByteChannel target, ByteBuffer... buffers) throws IOException {
+    if (target instanceof GatheringByteChannel) {
+      GatheringByteChannel gathering = (GatheringByteChannel) target;
+      int first = 0;
+      while (first < buffers.length) {
+        gathering.write(buffers, first, buffers.length - first);
+        while (first < buffers.length && !buffers[first].hasRemaining()) {
+          first++;
+        }
+      }
+    } else {
+      for (ByteBuffer buffer : buffers) {
+        while (buffer.hasRemaining()) {
+          target.write(buffer);
+        }
+      }
+    }
+  }
+
+  /**
+   * Fills the buffer from the position of the source.
+   *
+   * @throws EOFException if the source ends before the buffer is filled
+   */
+  public static void readFully(FileChannel source, long position, ByteBuffer buffer) throws IOException {
+    long pos = position;
+    while (buffer.hasRemaining()) {
+      int n = source.read(buffer, pos);
+      if (n < 0) {
+        throw new EOFException("Channel ended reading from position " + position);
+      }
+      pos += n;
+    }
+  }
+
+  private D2Channels() {
+  }
+}
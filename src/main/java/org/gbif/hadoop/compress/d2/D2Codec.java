@@ -24,10 +24,16 @@ import org.apache.hadoop.io.compress.CompressionInputStream;
 import org.apache.hadoop.io.compress.CompressionOutputStream;
 import org.apache.hadoop.io.compress.Compressor;
 import org.apache.hadoop.io.compress.Decompressor;
-import org.apache.hadoop.io.compress.DecompressorStream;
 
 /**
  * This class creates D2 compressors and decompressors providing the hooks for this to be a registered Hadoop codec.
+ * <p/>
+ * Compressors record an index of full flush points when {@value D2Index#INTERVAL} is configured, which is available
+ * from the {@link D2CompressorStream} once finished.  Given an index, {@link #createInputStream(InputStream, D2Index)}
+ * provides a stream which seeks and skips using it.
+ * <p/>
+ * Streams read D2 files concatenated back to back (e.g. by {@code hadoop fs -getmerge}) as one, checking the footer of
+ * each.
  */
 public final class D2Codec implements Configurable, CompressionCodec {
   private Configuration conf;
@@ -52,7 +58,7 @@ public final class D2Codec implements Configurable, CompressionCodec {
 
   @Override
   public D2Compressor createCompressor() {
-    return new D2Compressor();
+    return new D2Compressor(conf == null ? 0 : conf.getLong(D2Index.INTERVAL, 0));
   }
 
   @Override
@@ -63,13 +69,26 @@ public final class D2Codec implements Configurable, CompressionCodec {
   @Override
   public CompressionInputStream createInputStream(InputStream in, Decompressor decompressor)
       throws IOException {
-    // prepare the stream to strip the footer
+    // reads each footer, so that concatenated D2 files are read as one stream
     if (decompressor instanceof D2Decompressor) {
-      return new DecompressorStream(D2Utils.prepareD2Stream(in), decompressor);
+      return new D2ConcatenatedInputStream(in, (D2Decompressor) decompressor);
     }
     throw new IllegalArgumentException("Decompressor object must be an instance of D2Decompressor");
   }
 
+  /**
+   * Creates a stream over an indexed D2 file whose {@code seek(long)} and {@code skip(long)} inflate from the nearest
+   * indexed point rather than inflating and discarding everything before the target.
+   *
+   * @param in    the raw D2 file, which must be {@link org.apache.hadoop.fs.PositionedReadable} (e.g. an
+   *              FSDataInputStream)
+   * @param index of the file, as read with {@link D2Index#read(org.apache.hadoop.fs.FileSystem,
+   *              org.apache.hadoop.fs.Path, D2Footer)}
+   */
+  public D2SeekableInputStream createInputStream(InputStream in, D2Index index) {
+    return new D2SeekableInputStream(in, index);
+  }
+
   @Override
   public Class<D2Decompressor> getDecompressorType() {
     return D2Decompressor.class;
@@ -18,11 +18,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.SequenceInputStream;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import javax.annotation.Nullable;
 
+import org.apache.hadoop.fs.statistics.IOStatistics;
+import org.apache.hadoop.fs.statistics.IOStatisticsSource;
+
 /**
  * A stream that allows multiple raw D2 input streams to be merged, allowing access to the combined CRC-32 and the
  * lengths without actually inflated the compressed data.  This allows (e.g.) the ability to construct a Zip file
@@ -30,11 +35,19 @@ import javax.annotation.Nullable;
  * <p/>
  * This may be wrapped by an InflaterInputStream, with the inflater constructed in no wrap mode to decompress and read
  * the combined stream.
+ * <p/>
+ * Uncompressed content, such as a header row, can be inserted at any position between parts by including a stream
+ * from {@link D2Utils#asD2Part(byte[])}.
+ * <p/>
+ * The bytes passed through, time blocked reading the parts, and parts and footers read are published as
+ * {@link IOStatistics}, with the uncompressed bytes added once all parts are read to completion.  Parts are counted as
+ * reading reaches them, and only reads into a buffer are timed.
  */
-public class D2CombineInputStream extends InputStream {
+public class D2CombineInputStream extends InputStream implements IOStatisticsSource {
 
   private final SequenceInputStream combinedStream;
   private final List<FooteredInputStream> deflatedStreams;
+  private final D2StreamStatistics statistics = new D2StreamStatistics();
 
   private Long crc32;
   private Long compressedLength;
@@ -50,17 +63,40 @@ public class D2CombineInputStream extends InputStream {
       // strip the complete footer (important!)
       raw.add(new FooteredInputStream(in, D2Footer.FOOTER_LENGTH));
     }
-    List<InputStream> combined = new ArrayList<>(raw);
-    // add a new stream which simply provides a closing byte sequence
-    combined.add(new ByteArrayInputStream(D2Footer.FOOTER_CLOSE_DEFLATE));
+    // parts are counted as the sequence moves on to each of them, followed by a stream of the closing byte sequence
+    final Iterator<FooteredInputStream> parts = raw.iterator();
+    combinedStream = new SequenceInputStream(new Enumeration<InputStream>() {
+      private boolean closed;
+
+      @Override
+      public boolean hasMoreElements() {
+        return parts.hasNext() || !closed;
+      }
 
-    combinedStream = new SequenceInputStream(Collections.enumeration(combined));
+      @Override
+      public InputStream nextElement() {
+        if (parts.hasNext()) {
+          statistics.partOpened();
+          return parts.next();
+        }
+        if (closed) {
+          throw new NoSuchElementException();
+        }
+        closed = true;
+        return new ByteArrayInputStream(D2Footer.FOOTER_CLOSE_DEFLATE);
+      }
+    });
     deflatedStreams = raw;
   }
 
   @Override
   public int read() throws IOException {
-    return combinedStream.read();
+    // not timed, as reading a byte at a time is only worth counting
+    int b = combinedStream.read();
+    if (b != -1) {
+      statistics.addCompressedBytes(1);
+    }
+    return b;
   }
 
   @Override
@@ -75,40 +111,49 @@ public class D2CombineInputStream extends InputStream {
 
   @Override
   public int read(byte[] b, int off, int len) throws IOException {
-    return combinedStream.read(b, off, len);
+    long start = System.nanoTime();
+    int n = combinedStream.read(b, off, len);
+    statistics.addBlockedNanos(System.nanoTime() - start);
+    if (n > 0) {
+      statistics.addCompressedBytes(n);
+    }
+    return n;
+  }
+
+  @Override
+  public IOStatistics getIOStatistics() {
+    return statistics.getIOStatistics();
   }
 
   @Override
   public void close() throws IOException {
     combinedStream.close();
+    if (compressedLength != null) {
+      return; // already closed, as when closing again in try-with-resources
+    }
 
-    Long localCrc32 = null;
-    long localCompressedLength = 0;
-    long localUncompressedLength = 0;
+    List<D2Footer> footers = new ArrayList<>();
     for (FooteredInputStream stream : deflatedStreams) {
       try {
-        D2Footer footer = D2Footer.buildFooter(stream.getFooter());
-
-        // set or combine the CRC-32
-        localCrc32 =
-          localCrc32 == null ? footer.getCrc() : CRCCombine.combine(localCrc32, footer.getCrc(), footer.getUncompressedLength());
-        localCompressedLength += footer.getCompressedLength();
-        localUncompressedLength += footer.getUncompressedLength();
-
+        footers.add(D2Footer.buildFooter(stream.getFooter()));
+        statistics.footerRead();
       } catch (IllegalStateException ignored) {
         // happens when the stream was not fully read
         return; // does not set the values
       }
     }
+    D2Footer combined = D2Footer.combine(footers);
+    long localCompressedLength = combined.getCompressedLength();
 
     // The final stream reported a compressed length without the closing bytes, which is correct for isolated deflation
     // but here we actually returned the closing bytes, so we adjust accordingly.
     localCompressedLength += D2Footer.FOOTER_CLOSE_DEFLATE.length;
 
     // values only if we managed to set them all
-    crc32 = localCrc32;
-    uncompressedLength = localUncompressedLength;
+    crc32 = combined.getCrc();
+    uncompressedLength = combined.getUncompressedLength();
     compressedLength = localCompressedLength;
+    statistics.addUncompressedBytes(uncompressedLength);
   }
 
   public Long getCrc32() {
@@ -0,0 +1,266 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+
+/**
+ * Compacts a directory of many small D2 parts, such as the output of a job with thousands of reducers, into fewer
+ * parts of up to a target size.  Runs of consecutive small parts are merged without inflating, by concatenating their
+ * data and writing the combined footer (see {@link D2PartMerger}), so the order of the data is preserved.
+ * <p/>
+ * Compaction works as a tree, in passes: each pass merges groups of at most the fan-in consecutive parts, with the
+ * groups merged in parallel, and the next pass merges the results until no neighbouring parts fit the target together.
+ * Each merged part takes the name of the first part of its group, so the parts still sort in the order of their data.
+ * <p/>
+ * Compaction is idempotent and may be resumed.  Before merging a group its parts are recorded in a journal named
+ * {@value #JOURNAL_PREFIX} followed by the name of the first part.  The parts are only deleted once the merge is
+ * complete, and a rerun first completes or abandons any group left by an interrupted run.
+ */
+public final class D2Compactor {
+
+  public static final long DEFAULT_TARGET_SIZE = 128L * 1024 * 1024; // a typical HDFS block
+  public static final int DEFAULT_FAN_IN = 32;
+  public static final int DEFAULT_PARALLELISM = 8;
+
+  /**
+   * The prefix of the journal of a group being merged.  The leading underscore hides it from Hadoop input formats.
+   */
+  public static final String JOURNAL_PREFIX = "_D2_COMPACT-";
+
+  private static final String MERGED_PREFIX = "_d2-compacted-";
+  private static final String JOURNAL_TEMP_SUFFIX = ".tmp"; // as written by D2Manifest
+
+  // files named as hidden by Hadoop, such as manifests, journals and merges in progress
+  private static final PathFilter VISIBLE = new PathFilter() {
+    @Override
+    public boolean accept(Path path) {
+      return !path.getName().startsWith("_") && !path.getName().startsWith(".");
+    }
+  };
+
+  /**
+   * Compacts the parts matching the glob into parts of up to {@value #DEFAULT_TARGET_SIZE} bytes.
+   *
+   * @param fs   the filesystem holding the parts
+   * @param glob the parts, in a single directory, such as /output/part-*.def2
+   *
+   * @return the manifest of the parts once compacted
+   */
+  public static D2Manifest compact(FileSystem fs, Path glob) throws IOException {
+    return compact(fs, glob, DEFAULT_TARGET_SIZE, DEFAULT_FAN_IN, DEFAULT_PARALLELISM);
+  }
+
+  /**
+   * Compacts the parts matching the glob.  Parts of at least the target size are left as they are.  Should a manifest
+   * named {@value D2Manifest#FILE_NAME} be alongside the parts it is rewritten to describe the compacted parts.
+   *
+   * @param fs          the filesystem holding the parts
+   * @param glob        the parts, in a single directory, such as /output/part-*.def2
+   * @param targetSize  the size up to which parts are merged
+   * @param fanIn       the most parts merged at once
+   * @param parallelism the number of groups merged concurrently
+   *
+   * @return the manifest of the parts once compacted
+   */
+  public static D2Manifest compact(final FileSystem fs, Path glob, long targetSize, int fanIn, int parallelism)
+    throws IOException {
+    if (targetSize < 1) {
+      throw new IllegalArgumentException("Target size must be at least 1: " + targetSize);
+    }
+    if (fanIn < 2) {
+      throw new IllegalArgumentException("Fan-in must be at least 2: " + fanIn);
+    }
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+    }
+    Path dir = glob.getParent();
+    if (!fs.getFileStatus(dir).isDirectory()) {
+      throw new IllegalArgumentException("Parts must be within a single directory: " + glob);
+    }
+
+    resume(fs, dir);
+    D2Manifest parts = scan(fs, glob, parallelism);
+    while (true) {
+      List<D2Manifest> groups = plan(parts, targetSize, fanIn);
+      if (groups.isEmpty()) {
+        break;
+      }
+      List<Callable<Void>> tasks = new ArrayList<>();
+      for (final D2Manifest group : groups) {
+        tasks.add(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            merge(fs, group);
+            return null;
+          }
+        });
+      }
+      ParallelTasks.invokeAll(tasks, parallelism);
+      parts = scan(fs, glob, parallelism);
+    }
+
+    Path manifest = new Path(dir, D2Manifest.FILE_NAME);
+    if (fs.exists(manifest)) {
+      parts.write(fs, manifest);
+    }
+    return parts;
+  }
+
+  /*
+   * Groups runs of consecutive parts which together fit the target size, of at most the fan-in parts.  Only groups of
+   * more than one part are returned, as there is nothing to merge otherwise.
+   */
+  static List<D2Manifest> plan(D2Manifest parts, long targetSize, int fanIn) {
+    List<D2Manifest> groups = new ArrayList<>();
+    Map<Path, D2Footer> group = new LinkedHashMap<>();
+    long groupSize = 0;
+    for (Map.Entry<Path, D2Footer> part : parts.getFooters().entrySet()) {
+      long size = part.getValue().getCompressedLength() + D2Footer.FOOTER_LENGTH;
+      if (groupSize + size > targetSize || group.size() == fanIn) {
+        addGroup(groups, group);
+        group = new LinkedHashMap<>();
+        groupSize = 0;
+      }
+      group.put(part.getKey(), part.getValue());
+      groupSize += size;
+    }
+    addGroup(groups, group);
+    return groups;
+  }
+
+  private static void addGroup(List<D2Manifest> groups, Map<Path, D2Footer> group) {
+    if (group.size() > 1) {
+      groups.add(new D2Manifest(group));
+    }
+  }
+
+  /*
+   * Merges a group into a single part named as its first, recording the group in a journal until it is complete.
+   */
+  private static void merge(FileSystem fs, D2Manifest group) throws IOException {
+    Path first = group.getParts().get(0);
+    Path journal = journalPath(first);
+    group.write(fs, journal);
+    // the groups themselves run in parallel, so each is copied by a single thread
+    D2PartMerger.merge(fs, group, mergedPath(first), false, 1);
+    commit(fs, group);
+    fs.delete(journal, false);
+  }
+
+  /*
+   * Replaces the parts of a group with its completed merge.  The parts are deleted before the merge takes the name of
+   * the first, so that should this be interrupted the merge remains to be found by resume().
+   */
+  private static void commit(FileSystem fs, D2Manifest group) throws IOException {
+    List<Path> parts = group.getParts();
+    Path first = parts.get(0);
+    for (int i = parts.size() - 1; i >= 0; i--) {
+      fs.delete(parts.get(i), false);
+      fs.delete(D2Index.indexPath(parts.get(i)), false); // no longer describes a file
+    }
+    if (!fs.rename(mergedPath(first), first)) {
+      throw new IOException("Unable to rename " + mergedPath(first) + " to " + first);
+    }
+  }
+
+  /*
+   * Completes or abandons the groups of an interrupted compaction.  A group whose merge completed is committed, and a
+   * group whose merge did not is abandoned, as its parts remain and will be grouped again.
+   */
+  private static void resume(FileSystem fs, Path dir) throws IOException {
+    // merges which were interrupted before completing, whose groups will be merged again
+    FileStatus[] copies = fs.globStatus(new Path(dir, D2PartMerger.TEMP_PREFIX + MERGED_PREFIX + "*"));
+    if (copies != null) {
+      for (FileStatus copy : copies) {
+        fs.delete(copy.getPath(), false);
+      }
+    }
+    FileStatus[] journals = fs.globStatus(new Path(dir, JOURNAL_PREFIX + "*"));
+    if (journals == null) {
+      return;
+    }
+    for (FileStatus status : journals) {
+      Path journal = status.getPath();
+      if (journal.getName().endsWith(JOURNAL_TEMP_SUFFIX)) {
+        fs.delete(journal, false); // never completed, so the merge of its group was not started
+        continue;
+      }
+      D2Manifest group = D2Manifest.read(fs, journal);
+      List<Path> parts = group.getParts();
+      Path first = parts.get(0);
+      Path merged = mergedPath(first);
+      if (fs.exists(merged)) {
+        commit(fs, group);
+      } else if (!allExist(fs, parts)) {
+        // the merge has already taken the name of the first part, if the group was committed
+        D2Footer footer = fs.exists(first) ? D2Utils.readFooter(fs, first) : null;
+        D2Footer expected = group.getCombined();
+        if (footer == null
+            || footer.getUncompressedLength() != expected.getUncompressedLength()
+            || footer.getCompressedLength() != expected.getCompressedLength()
+            || footer.getCrc() != expected.getCrc()) {
+          throw new IOException("Unable to resume compaction recorded in " + journal
+                                + ", as parts are missing and no merge of them was found");
+        }
+      }
+      fs.delete(journal, false);
+    }
+  }
+
+  private static boolean allExist(FileSystem fs, List<Path> parts) throws IOException {
+    for (Path part : parts) {
+      if (!fs.exists(part)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static D2Manifest scan(FileSystem fs, Path glob, int parallelism) throws IOException {
+    FileStatus[] matches = fs.globStatus(glob, VISIBLE);
+    List<Path> parts = new ArrayList<>();
+    if (matches != null) {
+      for (FileStatus status : matches) {
+        if (status.isFile()) {
+          parts.add(status.getPath());
+        }
+      }
+    }
+    Collections.sort(parts);
+    return D2FooterScanner.scan(fs, parts, parallelism);
+  }
+
+  static Path journalPath(Path first) {
+    return new Path(first.getParent(), JOURNAL_PREFIX + first.getName());
+  }
+
+  static Path mergedPath(Path first) {
+    return new Path(first.getParent(), MERGED_PREFIX + first.getName());
+  }
+
+  private D2Compactor() {
+  }
+}
@@ -14,6 +14,8 @@
 package org.gbif.hadoop.compress.d2;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Adler32;
 import java.util.zip.CRC32;
 import java.util.zip.Checksum;
 import java.util.zip.Deflater;
@@ -22,42 +24,118 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.compress.Compressor;
 
 /**
- * A deflater that provides hooks to run as a compressor with Hadoop and keeps track of a CRC-32 checksum for the
- * uncompressed data.
+ * A deflater that provides hooks to run as a compressor with Hadoop and keeps track of CRC-32 and Adler-32 checksums
+ * for the uncompressed data.
+ * <p/>
+ * Where an index interval is given, a full flush is made in place of the usual sync flush once at least that many
+ * uncompressed bytes have been given since the last, and the offsets of each full flush are recorded for a
+ * {@link D2Index}.  Flushes are only made between inputs, so with large writes points are further apart than the
+ * interval.
  */
 public class D2Compressor extends Deflater implements Compressor {
   private final Checksum checksum = new CRC32(); // tracks CRC of uncompressed data
+  private final Checksum adler = new Adler32(); // tracks Adler-32 of uncompressed data (for zlib wrapping)
   private long bytesWritten;
   private long bytesRead;
+  private boolean flushPending; // the last flush filled the output buffer, so may not have been written completely
+
+  private final long indexInterval; // uncompressed bytes between full flushes, or 0 for none
+  private long bytesGiven; // uncompressed bytes given as input, including those not yet compressed
+  private long lastIndexed; // the uncompressed offset of the last full flush
+  private long[] indexUncompressed = new long[0];
+  private long[] indexCompressed = new long[0];
+  private int indexSize;
 
   /**
    * Uses best compression, and instructs the no wrap mode.
    */
   public D2Compressor() {
+    this(0);
+  }
+
+  /**
+   * Uses best compression, and instructs the no wrap mode, recording an index point at least every given number of
+   * uncompressed bytes.
+   *
+   * @param indexInterval the uncompressed bytes between index points, or 0 for no index
+   */
+  public D2Compressor(long indexInterval) {
     super(BEST_COMPRESSION, true);
+    if (indexInterval < 0) {
+      throw new IllegalArgumentException("Index interval cannot be negative: " + indexInterval);
+    }
+    this.indexInterval = indexInterval;
   }
 
   @Override
   public void setInput(byte[] b, int off, int len) {
     super.setInput(b, off, len);
     checksum.update(b, off, len);
+    adler.update(b, off, len);
+    bytesGiven += len;
   }
 
   @Override
   public int compress(byte[] b, int off, int len) throws IOException {
-    int compressedSize = deflate(b, off, len, SYNC_FLUSH);
+    boolean fullFlush = indexInterval > 0 && bytesGiven - lastIndexed >= indexInterval;
+    int compressedSize = deflate(b, off, len, fullFlush ? FULL_FLUSH : SYNC_FLUSH);
 
     // copied out, so they are still available even after closing
     bytesWritten = super.getBytesWritten();
     bytesRead = super.getBytesRead();
+    flushPending = compressedSize == len;
+
+    // the flush is only complete once all input is consumed and the output did not fill the buffer
+    if (fullFlush && !flushPending && needsInput()) {
+      addIndexPoint(bytesRead, bytesWritten);
+      lastIndexed = bytesRead;
+    }
     return compressedSize;
   }
 
+  /**
+   * Unlike parent, only true once the output of the last flush has been given completely.  Callers such as
+   * {@link org.apache.hadoop.io.compress.CompressorStream} compress until input is needed, and the deflater consumes
+   * all input before the output of a flush fits the buffer, which would otherwise leave the end of the flush unwritten.
+   */
+  @Override
+  public boolean needsInput() {
+    return !flushPending && super.needsInput();
+  }
+
+  @Override
+  public void reset() {
+    super.reset();
+    flushPending = false;
+  }
+
   @Override
   public void reinit(Configuration conf) {
     reset();
     bytesWritten = bytesRead = 0;
     checksum.reset();
+    adler.reset();
+    bytesGiven = lastIndexed = 0;
+    indexSize = 0;
+  }
+
+  /**
+   * @param footer of the data compressed
+   * @return the index of the full flushes made, relative to the start of the compressed data
+   */
+  D2Index getIndex(D2Footer footer) {
+    return new D2Index(footer, indexUncompressed, indexCompressed, indexSize);
+  }
+
+  private void addIndexPoint(long uncompressed, long compressed) {
+    if (indexSize == indexUncompressed.length) {
+      int capacity = Math.max(16, indexSize * 2);
+      indexUncompressed = Arrays.copyOf(indexUncompressed, capacity);
+      indexCompressed = Arrays.copyOf(indexCompressed, capacity);
+    }
+    indexUncompressed[indexSize] = uncompressed;
+    indexCompressed[indexSize] = compressed;
+    indexSize++;
   }
 
   /**
@@ -68,6 +146,14 @@ public class D2Compressor extends Deflater implements Compressor {
     return checksum.getValue();
   }
 
+  /**
+   * Available after closing.
+   * @return The Adler-32 of the uncompressed data that was written
+   */
+  public long getAdler32() {
+    return adler.getValue();
+  }
+
   /**
    * Unlike parent, available even after closing.
    * @return actual number of bytes written
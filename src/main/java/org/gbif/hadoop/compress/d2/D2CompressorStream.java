@@ -16,6 +16,7 @@ package org.gbif.hadoop.compress.d2;
 import java.io.IOException;
 import java.io.OutputStream;
 
+import org.apache.hadoop.fs.statistics.IOStatistics;
 import org.apache.hadoop.io.compress.CompressorStream;
 
 public class D2CompressorStream extends CompressorStream {
@@ -24,6 +25,9 @@ public class D2CompressorStream extends CompressorStream {
   private static final String BUFFER_SIZE_ENV_VAR = "D2_BUFFER_SIZE"; // Name of the environment variable
 
   private final D2Compressor compressor;
+  private D2Footer footer; // as written on finishing, with the Adler-32
+  private D2Index index; // of the full flushes made, captured on finishing
+  private final D2StreamStatistics statistics = new D2StreamStatistics();
 
   private static int getBufferSizeFromEnv() {
     String bufferSizeStr = System.getenv(BUFFER_SIZE_ENV_VAR);
@@ -50,6 +54,38 @@ public class D2CompressorStream extends CompressorStream {
     this(out, new D2Compressor(), getBufferSizeFromEnv());
   }
 
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    super.write(b, off, len);
+    statistics.addUncompressedBytes(len);
+  }
+
+  /**
+   * As parent, timing the deflater separately from the write of its output.
+   */
+  @Override
+  protected void compress() throws IOException {
+    long start = System.nanoTime();
+    int len = compressor.compress(buffer, 0, buffer.length);
+    long deflated = System.nanoTime();
+    statistics.addDeflateNanos(deflated - start);
+    if (compressor.needsInput()) {
+      statistics.flushed(); // the flush made for the last write is complete
+    }
+    if (len > 0) {
+      out.write(buffer, 0, len);
+      statistics.addBlockedNanos(System.nanoTime() - deflated);
+      statistics.addCompressedBytes(len);
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    long start = System.nanoTime();
+    super.flush();
+    statistics.addBlockedNanos(System.nanoTime() - start);
+  }
+
   /**
    * Ensure all bytes of the compressor buffer are flushed, and write the custom fixed length footer to the
    * underlying stream.
@@ -60,14 +96,84 @@ public class D2CompressorStream extends CompressorStream {
    */
   @Override
   public void finish() throws IOException {
+    if (footer != null) {
+      return; // already finished, as when closing after finishing
+    }
     // defensive coding: ensure compressor input buffer is empty
     while (!compressor.needsInput()) {
       compress();
     }
 
     // Push the custom footer to the output stream, not deflation stream (important or lengths and CRC are adjusted)
-    out.write(D2Footer.serialize(compressor.getBytesRead(), compressor.getBytesWritten(), compressor.getCRC32()));
+    footer = footer(compressor);
+    byte[] serialized = D2Footer.serialize(footer);
+    long start = System.nanoTime();
+    out.write(serialized);
     out.flush(); // and flush it
+    statistics.addBlockedNanos(System.nanoTime() - start);
+    statistics.addCompressedBytes(serialized.length);
+    index = compressor.getIndex(footer);
     compressor.reset(); // defensive coding
   }
+
+  /**
+   * Starts a new stream after finishing, such as a further member of a concatenated file.
+   */
+  @Override
+  public void resetState() throws IOException {
+    super.resetState();
+    footer = null;
+    index = null;
+  }
+
+  /**
+   * @return a live view of the bytes written, time spent deflating and blocked writing, and flushes made, as named by
+   * {@link D2StreamStatistics}
+   */
+  @Override
+  public IOStatistics getIOStatistics() {
+    return statistics.getIOStatistics();
+  }
+
+  /**
+   * @return the number of compressed bytes written so far, excluding the footer
+   */
+  public long getCompressedLength() {
+    return compressor.getBytesWritten();
+  }
+
+  /**
+   * @return the footer written on finishing, such as for recording in a manifest, which also carries the Adler-32
+   * @throws IllegalStateException if the stream has not been finished
+   */
+  public D2Footer getFooter() {
+    if (footer == null) {
+      throw new IllegalStateException("The footer is only available once the stream is finished");
+    }
+    return footer;
+  }
+
+  /**
+   * Provides the index of the full flushes made by a compressor created with an index interval, for writing alongside
+   * the file with {@link D2Index#write(org.apache.hadoop.fs.FileSystem, org.apache.hadoop.fs.Path)}.  Without an
+   * interval the index holds only the start of the data.
+   *
+   * @return the index of the data written
+   * @throws IllegalStateException if the stream has not been finished
+   */
+  public D2Index getIndex() {
+    if (index == null) {
+      throw new IllegalStateException("The index is only available once the stream is finished");
+    }
+    return index;
+  }
+
+  /**
+   * Builds the footer describing the data compressed by this stream.  Overridden when appending, where the footer must
+   * describe the existing data as well.
+   */
+  D2Footer footer(D2Compressor compressor) {
+    return D2Footer.of(compressor.getBytesRead(), compressor.getBytesWritten(), compressor.getCRC32(),
+                       compressor.getAdler32());
+  }
 }
@@ -0,0 +1,272 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.ZipException;
+
+import org.apache.hadoop.fs.statistics.IOStatistics;
+import org.apache.hadoop.io.compress.CompressionInputStream;
+
+/**
+ * Decompresses D2 data which may hold several D2 files back to back, such as the output of {@code cat part-*} or
+ * {@code hadoop fs -getmerge}, in the way that gzip reads concatenated members.  Each embedded footer is recognised as
+ * the end of a member and checked against the CRC-32 and lengths of what was inflated, before inflating continues with
+ * the next member.
+ * <p/>
+ * A single D2 file is simply a stream of one member.  The last member may also be missing its footer after the closing
+ * bytes, as given by {@link D2Utils#prepareD2Stream(InputStream)}, in which case it is not checked.
+ */
+public class D2ConcatenatedInputStream extends CompressionInputStream {
+
+  private static final int BUFFER_SIZE = 0x10000; // 64K
+
+  private final D2Decompressor inflater;
+  private final boolean ownsInflater;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private final byte[] oneByte = new byte[1];
+  private final CRC32 crc = new CRC32();
+  private int filled; // the number of bytes of the buffer given to the inflater
+  private long uncompressed; // the number of bytes inflated from the current member
+  private int members;
+  private boolean opened; // true once the first member has been given input
+  private final D2StreamStatistics statistics = new D2StreamStatistics();
+  private boolean eof;
+  private boolean closed;
+
+  /**
+   * @param in the raw D2 data, such as a stream of one or more .def2 files
+   */
+  public D2ConcatenatedInputStream(InputStream in) throws IOException {
+    this(in, new D2Decompressor(), true);
+  }
+
+  /**
+   * @param in           the raw D2 data, such as a stream of one or more .def2 files
+   * @param decompressor to inflate with, which remains owned by the caller (e.g. a codec pool)
+   */
+  public D2ConcatenatedInputStream(InputStream in, D2Decompressor decompressor) throws IOException {
+    this(in, decompressor, false);
+  }
+
+  private D2ConcatenatedInputStream(InputStream in, D2Decompressor decompressor, boolean ownsInflater)
+    throws IOException {
+    super(in);
+    inflater = decompressor;
+    this.ownsInflater = ownsInflater;
+    inflater.reset();
+  }
+
+  /**
+   * @return the number of members whose end has been reached so far
+   */
+  public int getMembers() {
+    return members;
+  }
+
+  /**
+   * @return a live view of the bytes read, time spent inflating and blocked reading, and members and footers read, as
+   * named by {@link D2StreamStatistics}
+   */
+  @Override
+  public IOStatistics getIOStatistics() {
+    return statistics.getIOStatistics();
+  }
+
+  @Override
+  public int read() throws IOException {
+    // not timed, as reading a byte at a time is only worth counting
+    return read(oneByte, 0, 1, false) == -1 ? -1 : oneByte[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    return read(b, off, len, true);
+  }
+
+  private int read(byte[] b, int off, int len, boolean timed) throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new IndexOutOfBoundsException();
+    } else if (len == 0) {
+      return 0;
+    }
+    try {
+      while (!eof) {
+        int n;
+        if (timed) {
+          long start = System.nanoTime();
+          n = inflater.inflate(b, off, len);
+          statistics.addInflateNanos(System.nanoTime() - start);
+        } else {
+          n = inflater.inflate(b, off, len);
+        }
+        if (n > 0) {
+          crc.update(b, off, n);
+          uncompressed += n;
+          statistics.addUncompressedBytes(n);
+          return n;
+        }
+        if (inflater.finished()) {
+          eof = !nextMember();
+        } else if (inflater.needsDictionary()) {
+          throw new ZipException("Unexpected preset dictionary in D2 data");
+        } else if (inflater.needsInput() && !fill()) {
+          throw new EOFException("Unexpected end of D2 data");
+        }
+      }
+      return -1;
+    } catch (DataFormatException e) {
+      String message = e.getMessage();
+      throw new ZipException(message != null ? message : "Invalid D2 data");
+    }
+  }
+
+  @Override
+  public int available() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    return eof ? 0 : 1;
+  }
+
+  @Override
+  public void resetState() throws IOException {
+    inflater.reset();
+    crc.reset();
+    filled = 0;
+    uncompressed = 0;
+    members = 0;
+    opened = false;
+    eof = false;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      try {
+        super.close();
+      } finally {
+        if (ownsInflater) {
+          inflater.end();
+        }
+      }
+    }
+  }
+
+  /*
+   * Gives the inflater the next bytes of the stream, returning false at the end of the stream.
+   */
+  private boolean fill() throws IOException {
+    filled = readIn(buffer, 0, buffer.length);
+    if (filled == -1) {
+      filled = 0;
+      return false;
+    }
+    if (!opened) {
+      opened = true;
+      statistics.partOpened();
+    }
+    inflater.setInput(buffer, 0, filled);
+    return true;
+  }
+
+  /*
+   * Called when the inflater reaches the closing bytes of a member.  Reads and checks the footer which follows, and
+   * prepares the inflater for the next member, returning false if there is none.
+   */
+  private boolean nextMember() throws IOException {
+    int remaining = inflater.getRemaining();
+    int start = filled - remaining;
+    byte[] footer = new byte[D2Footer.FOOTER_LENGTH_ISOLATED_READ];
+    int n = Math.min(remaining, footer.length);
+    System.arraycopy(buffer, start, footer, 0, n);
+    start += n;
+    remaining -= n;
+    while (n < footer.length) {
+      int r = readIn(footer, n, footer.length - n);
+      if (r == -1) {
+        break;
+      }
+      n += r;
+    }
+
+    members++;
+    if (n == 0) {
+      return false; // the footer was stripped, so there is nothing to check
+    } else if (n < footer.length) {
+      throw new EOFException("Unexpected end of the footer of D2 member " + members);
+    }
+    statistics.footerRead();
+    verify(D2Footer.buildFooter(footer));
+
+    if (remaining == 0) {
+      remaining = readIn(buffer, 0, buffer.length);
+      if (remaining == -1) {
+        return false;
+      }
+      start = 0;
+      filled = remaining;
+    }
+    inflater.reset();
+    inflater.setInput(buffer, start, remaining);
+    crc.reset();
+    uncompressed = 0;
+    statistics.partOpened();
+    return true;
+  }
+
+  private void verify(D2Footer footer) throws IOException {
+    long compressed = inflater.getBytesRead() - D2Footer.FOOTER_CLOSE_DEFLATE.length;
+    if (footer.getUncompressedLength() != uncompressed || footer.getCompressedLength() != compressed) {
+      throw new ZipException("D2 member " + members + " inflated " + uncompressed + " bytes from " + compressed
+                             + " but its footer records " + footer.getUncompressedLength() + " bytes from "
+                             + footer.getCompressedLength());
+    }
+    if (footer.getCrc() != crc.getValue()) {
+      throw new ZipException("CRC-32 of D2 member " + members + " does not match its footer");
+    }
+  }
+
+  /*
+   * Reads from the underlying stream, recording the time blocked.
+   */
+  private int readIn(byte[] b, int off, int len) throws IOException {
+    long start = System.nanoTime();
+    int r = readSome(in, b, off, len);
+    statistics.addBlockedNanos(System.nanoTime() - start);
+    if (r > 0) {
+      statistics.addCompressedBytes(r);
+    }
+    return r;
+  }
+
+  /*
+   * Reads at least one byte unless at the end of the stream, as some streams may return none without being exhausted.
+   */
+  private static int readSome(InputStream in, byte[] b, int off, int len) throws IOException {
+    int r;
+    do {
+      r = in.read(b, off, len);
+    } while (r == 0);
+    return r;
+  }
+}
@@ -26,6 +26,16 @@ import java.util.zip.CRC32;
  * <li>8 bytes: The length of the compressed data</li>
  * <li>8 bytes: The CRC-32 of the uncompressed data</li>
  * </ol>
+ * The layout is fixed, so that files remain readable by any D2 reader.  A footer may additionally carry the Adler-32 of
+ * the uncompressed data (see {@link #hasAdler32()}), as tracked by the {@link D2Compressor} or combined from other
+ * footers.  The Adler-32 is not part of the serialized footer, but is kept where a footer is recorded outside the file:
+ * in a {@link D2Manifest} and in the sidecar {@link D2Index}.
+ * <p/>
+ * This is a deliberate trade-off for compatibility: extending the footer would make new files unreadable by existing
+ * D2 readers, which strip exactly {@link #FOOTER_LENGTH} bytes.  The cost is that the Adler-32 of a file written
+ * without an index or manifest, such as by a plain {@link D2CompressorStream} or by
+ * {@link org.gbif.hadoop.compress.d2.mapreduce.D2OutputFormat} without an index interval once its manifest is gone,
+ * is lost when the file is closed, and a {@link D2ZlibAssembler} must inflate the file to compute it again.
  */
 public class D2Footer {
 
@@ -44,9 +54,14 @@ public class D2Footer {
 
   // The expected length of the footer if deflated streams are read in isolation (they will need the close marker)
   public static final int FOOTER_LENGTH_ISOLATED_READ = FOOTER_LENGTH - FOOTER_CLOSE_DEFLATE.length;
+
+  // Value of the Adler-32 for footers which do not carry it, being outside the unsigned 32 bit range of a checksum
+  static final long NO_ADLER32 = -1;
+
   private final long uncompressedLength;
   private final long compressedLength;
   private final long crc;
+  private final long adler32;
 
   /**
    * Utility to serialize as a byte array.
@@ -73,13 +88,78 @@ public class D2Footer {
     if (FOOTER_LENGTH == footer.length) {
       bb.get(new byte[FOOTER_CLOSE_DEFLATE.length]); // skip header if present
     }
-    return new D2Footer(bb.getLong(), bb.getLong(), bb.getLong());
+    return new D2Footer(bb.getLong(), bb.getLong(), bb.getLong(), NO_ADLER32);
   }
 
-  private D2Footer(long uncompressedLength, long compressedLength, long crc) {
+  /**
+   * Utility to serialize as a byte array, which does not include any Adler-32.
+   */
+  public static byte[] serialize(D2Footer footer) {
+    return serialize(footer.getUncompressedLength(), footer.getCompressedLength(), footer.getCrc());
+  }
+
+  /**
+   * @return a footer with the given Adler-32 of the uncompressed data, or with none for {@link #NO_ADLER32}
+   */
+  static D2Footer of(long uncompressed, long compressed, long crc32, long adler32) {
+    return new D2Footer(uncompressed, compressed, crc32, adler32);
+  }
+
+  /**
+   * @return a copy of this footer carrying the given Adler-32 of the uncompressed data
+   */
+  D2Footer withAdler32(long adler32) {
+    return new D2Footer(uncompressedLength, compressedLength, crc, adler32);
+  }
+
+  /**
+   * Combines the footers of parts into the footer of their concatenation (as read by {@link D2CombineInputStream}),
+   * with the CRC-32 and Adler-32 combined without reading any data.  The compressed length is the sum of those of the
+   * parts, and so excludes the closing bytes.  The Adler-32 is only carried if every part carries one.
+   *
+   * @param footers of the parts in order
+   *
+   * @return the footer of the combined parts
+   */
+  public static D2Footer combine(Iterable<D2Footer> footers) {
+    Long crc32 = null;
+    Long adler32 = AdlerCombine.ADLER32_EMPTY;
+    long compressedLength = 0;
+    long uncompressedLength = 0;
+    for (D2Footer footer : footers) {
+      // set or combine the CRC-32
+      crc32 = crc32 == null
+        ? footer.getCrc()
+        : CRCCombine.combine(crc32, footer.getCrc(), footer.getUncompressedLength());
+      adler32 = adler32 == null || !footer.hasAdler32()
+        ? null
+        : AdlerCombine.combine(adler32, footer.getAdler32(), footer.getUncompressedLength());
+      compressedLength += footer.getCompressedLength();
+      uncompressedLength += footer.getUncompressedLength();
+    }
+    return new D2Footer(uncompressedLength, compressedLength, crc32 == null ? 0 : crc32,
+                        adler32 == null ? NO_ADLER32 : adler32);
+  }
+
+  /**
+   * Checks that the trailing bytes of a file are a footer which describes the file, which detects files where writing
+   * stopped part way (such as an interrupted append) and the trailing bytes are not a footer at all.
+   *
+   * @param footer     the trailing {@link #FOOTER_LENGTH} bytes of the file
+   * @param fileLength the length of the file
+   */
+  static boolean isComplete(byte[] footer, long fileLength) {
+    return footer.length == FOOTER_LENGTH
+           && footer[0] == FOOTER_CLOSE_DEFLATE[0]
+           && footer[1] == FOOTER_CLOSE_DEFLATE[1]
+           && buildFooter(footer).getCompressedLength() == fileLength - FOOTER_LENGTH;
+  }
+
+  private D2Footer(long uncompressedLength, long compressedLength, long crc, long adler32) {
     this.uncompressedLength = uncompressedLength;
     this.compressedLength = compressedLength;
     this.crc = crc;
+    this.adler32 = adler32;
   }
 
   public long getUncompressedLength() {
@@ -94,4 +174,22 @@ public class D2Footer {
     return crc;
   }
 
+  /**
+   * @return true if the footer carries the Adler-32 of the uncompressed data
+   */
+  public boolean hasAdler32() {
+    return adler32 != NO_ADLER32;
+  }
+
+  /**
+   * @return the Adler-32 of the uncompressed data
+   * @throws IllegalStateException if the footer does not carry an Adler-32
+   */
+  public long getAdler32() {
+    if (!hasAdler32()) {
+      throw new IllegalStateException("Footer does not carry an Adler-32, as when read from a D2 file itself");
+    }
+    return adler32;
+  }
+
 }
@@ -0,0 +1,131 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Reads the footers of many D2 part files concurrently into a {@link D2Manifest}, to plan a ZIP file or merge without
+ * reading the compressed data.  Only the trailing bytes of each file are read, with positional reads, so scanning
+ * thousands of parts costs a few round trips per part rather than a read of the data.
+ * <p/>
+ * Reads run on virtual threads where the JDK provides them and otherwise on a bounded pool, with at most the given
+ * parallelism (default {@value #DEFAULT_PARALLELISM}) in flight at once.
+ */
+public final class D2FooterScanner {
+
+  public static final int DEFAULT_PARALLELISM = 32;
+
+  /**
+   * Scans the files matching the glob, in path order (e.g. part-00000, part-00001...).
+   *
+   * @param fs   the filesystem holding the files
+   * @param glob a path or glob pattern such as /output/part-*.def2
+   */
+  public static D2Manifest scan(FileSystem fs, Path glob) throws IOException {
+    return scan(fs, glob, DEFAULT_PARALLELISM);
+  }
+
+  /**
+   * Scans the files matching the glob, in path order (e.g. part-00000, part-00001...).
+   *
+   * @param fs          the filesystem holding the files
+   * @param glob        a path or glob pattern such as /output/part-*.def2
+   * @param parallelism the maximum number of concurrent reads
+   */
+  public static D2Manifest scan(FileSystem fs, Path glob, int parallelism) throws IOException {
+    FileStatus[] matches = fs.globStatus(glob);
+    List<FileStatus> files = new ArrayList<>();
+    if (matches != null) {
+      for (FileStatus status : matches) {
+        if (status.isFile()) {
+          files.add(status);
+        }
+      }
+    }
+    Collections.sort(files); // by path
+    return scanFiles(fs, files, parallelism);
+  }
+
+  /**
+   * Scans the files in the order given.
+   *
+   * @param fs    the filesystem holding the files
+   * @param paths to the D2 part files
+   */
+  public static D2Manifest scan(FileSystem fs, List<Path> paths) throws IOException {
+    return scan(fs, paths, DEFAULT_PARALLELISM);
+  }
+
+  /**
+   * Scans the files in the order given.
+   *
+   * @param fs          the filesystem holding the files
+   * @param paths       to the D2 part files
+   * @param parallelism the maximum number of concurrent reads
+   */
+  public static D2Manifest scan(final FileSystem fs, List<Path> paths, int parallelism) throws IOException {
+    List<Callable<D2Footer>> tasks = new ArrayList<>();
+    for (final Path path : paths) {
+      tasks.add(new Callable<D2Footer>() {
+        @Override
+        public D2Footer call() throws IOException {
+          return D2Utils.readFooter(fs, path);
+        }
+      });
+    }
+    return new D2Manifest(toMap(paths, ParallelTasks.invokeAll(tasks, parallelism)));
+  }
+
+  /*
+   * Scans listed files, whose lengths are already known.
+   */
+  private static D2Manifest scanFiles(final FileSystem fs, List<FileStatus> files, int parallelism) throws IOException {
+    List<Path> paths = new ArrayList<>();
+    List<Callable<D2Footer>> tasks = new ArrayList<>();
+    for (final FileStatus file : files) {
+      paths.add(file.getPath());
+      tasks.add(new Callable<D2Footer>() {
+        @Override
+        public D2Footer call() throws IOException {
+          return D2Utils.readFooter(fs, file.getPath(), file.getLen());
+        }
+      });
+    }
+    return new D2Manifest(toMap(paths, ParallelTasks.invokeAll(tasks, parallelism)));
+  }
+
+  private static Map<Path, D2Footer> toMap(List<Path> paths, List<D2Footer> footers) {
+    Map<Path, D2Footer> result = new LinkedHashMap<>();
+    for (int i = 0; i < paths.size(); i++) {
+      if (result.put(paths.get(i), footers.get(i)) != null) {
+        throw new IllegalArgumentException("Duplicate path: " + paths.get(i));
+      }
+    }
+    return result;
+  }
+
+  private D2FooterScanner() {
+  }
+}
@@ -0,0 +1,296 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * An index of the points in a D2 file at which inflating can start, each being the uncompressed and compressed offset
+ * of a full flush.  A full flush resets the deflate window as well as aligning the output, so the data following it
+ * inflates without anything before it.  The start of the file is always such a point.
+ * <p/>
+ * Files written without an index can be indexed afterwards by {@link D2IndexBuilder}, from the sync flushes that
+ * {@link D2Compressor} always makes.  Since the data following a sync flush may refer back to the data before it, each
+ * such point carries the 32K window of uncompressed data preceding it, with which inflating is primed.
+ * <p/>
+ * Indexes are written at compression time by a {@link D2Compressor} created with an index interval, and kept in a hidden
+ * file alongside the D2 file (e.g. .part-r-00000.def2.index for part-r-00000.def2).  They are not kept in the D2 file
+ * itself so that indexed files remain plain D2 files, which combine and merge by stripping the fixed length footer.
+ * <p/>
+ * The index file holds a copy of the footer of the D2 file it describes, so an index left behind by a file that has
+ * since been replaced or appended to is detected and ignored.  Its format is:
+ * <ol>
+ * <li>4 bytes: the magic "D2IX"</li>
+ * <li>1 byte: the version, being 1</li>
+ * <li>26 bytes: the footer of the D2 file</li>
+ * <li>1 byte: flags, being 1 if the points have windows and 2 if the Adler-32 follows</li>
+ * <li>4 bytes, if flagged: the Adler-32 of the uncompressed data, which the D2 footer does not hold</li>
+ * <li>4 bytes: the number of points, excluding the start of the file</li>
+ * <li>16 bytes per point: the uncompressed offset and compressed offset, followed if flagged by the length of the
+ * window (zero for none) in 4 bytes and the window itself</li>
+ * </ol>
+ */
+public final class D2Index {
+
+  /**
+   * The configuration key for the number of uncompressed bytes between indexed points when compressing, or 0 (the
+   * default) for no index.
+   */
+  public static final String INTERVAL = "d2.index.interval";
+
+  /**
+   * A suggested interval, giving points every 1MB of uncompressed data at a small cost in compression.
+   */
+  public static final long DEFAULT_INTERVAL = 1L << 20;
+
+  private static final byte[] MAGIC = {'D', '2', 'I', 'X'};
+  private static final int VERSION = 1;
+  private static final int FLAG_WINDOWS = 1;
+  private static final int FLAG_ADLER32 = 2;
+
+  // the most uncompressed data a deflate stream can refer back to
+  static final int WINDOW_SIZE = 32 * 1024;
+  private static final String FILE_PREFIX = ".";
+  private static final String FILE_SUFFIX = ".index";
+
+  private final D2Footer footer;
+  private final long[] uncompressed; // offsets of the points in ascending order, starting with 0
+  private final long[] compressed;
+  private final byte[][] windows; // for each point, or null where no window is needed
+
+  /**
+   * @param footer       of the indexed file
+   * @param uncompressed offsets of the points after the start of the file, in ascending order
+   * @param compressed   offsets of the same points
+   * @param size         the number of points given
+   */
+  D2Index(D2Footer footer, long[] uncompressed, long[] compressed, int size) {
+    this(footer, uncompressed, compressed, null, size);
+  }
+
+  /**
+   * @param footer       of the indexed file
+   * @param uncompressed offsets of the points after the start of the file, in ascending order
+   * @param compressed   offsets of the same points
+   * @param windows      the uncompressed data preceding each point, or null for points needing none
+   * @param size         the number of points given
+   */
+  D2Index(D2Footer footer, long[] uncompressed, long[] compressed, byte[][] windows, int size) {
+    this.footer = footer;
+    this.uncompressed = new long[size + 1];
+    this.compressed = new long[size + 1];
+    this.windows = new byte[size + 1][];
+    System.arraycopy(uncompressed, 0, this.uncompressed, 1, size);
+    System.arraycopy(compressed, 0, this.compressed, 1, size);
+    if (windows != null) {
+      System.arraycopy(windows, 0, this.windows, 1, size);
+    }
+    for (int i = 1; i <= size; i++) {
+      if (this.windows[i] != null && this.windows[i].length > WINDOW_SIZE) {
+        throw new IllegalArgumentException("Window larger than " + WINDOW_SIZE + " bytes at point " + i);
+      }
+      if (this.uncompressed[i] < this.uncompressed[i - 1] || this.compressed[i] < this.compressed[i - 1]
+          || this.uncompressed[i] > footer.getUncompressedLength()
+          || this.compressed[i] > footer.getCompressedLength()) {
+        throw new IllegalArgumentException("Index points out of order or beyond the end of the data at point " + i);
+      }
+    }
+  }
+
+  /**
+   * @return an index of a file with no points beyond the start, for reading files written without an index
+   */
+  public static D2Index of(D2Footer footer) {
+    return new D2Index(footer, new long[0], new long[0], 0);
+  }
+
+  /**
+   * Reads the index of a D2 file.
+   *
+   * @param fs     the filesystem holding the file
+   * @param path   to the D2 file (not the index)
+   * @param footer the footer of the D2 file, as read with {@link D2Utils#readFooter(FileSystem, Path)}
+   *
+   * @return the index, or null if the file has no index or the index describes a different version of the file
+   */
+  public static D2Index read(FileSystem fs, Path path, D2Footer footer) throws IOException {
+    D2Index index;
+    try (FSDataInputStream in = fs.open(indexPath(path))) {
+      index = read(in);
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+    return sameFooter(footer, index.footer) ? index : null;
+  }
+
+  /**
+   * @return the path of the index of the given D2 file
+   */
+  public static Path indexPath(Path path) {
+    return new Path(path.getParent(), FILE_PREFIX + path.getName() + FILE_SUFFIX);
+  }
+
+  /**
+   * Writes the index alongside the D2 file it describes, replacing any existing index.
+   *
+   * @param fs   the filesystem holding the file
+   * @param path to the D2 file (not the index)
+   */
+  public void write(FileSystem fs, Path path) throws IOException {
+    try (FSDataOutputStream out = fs.create(indexPath(path), true)) {
+      write(out);
+    }
+  }
+
+  /**
+   * @return the footer of the indexed file
+   */
+  public D2Footer getFooter() {
+    return footer;
+  }
+
+  /**
+   * @return the number of points, including the start of the file
+   */
+  public int size() {
+    return uncompressed.length;
+  }
+
+  public long getUncompressedOffset(int point) {
+    return uncompressed[point];
+  }
+
+  public long getCompressedOffset(int point) {
+    return compressed[point];
+  }
+
+  /**
+   * @return the point at the compressed offset, or -1 if there is none, such as for a split made from an index since
+   * replaced
+   */
+  public int pointAt(long compressedOffset) {
+    int i = Arrays.binarySearch(compressed, compressedOffset);
+    return i < 0 ? -1 : i;
+  }
+
+  /**
+   * @return the uncompressed data preceding the point, to prime inflating with, or null if none is needed
+   */
+  public byte[] getWindow(int point) {
+    return windows[point];
+  }
+
+  /**
+   * @return the last point at or before the uncompressed offset, from which inflating reaches the offset soonest
+   */
+  public int floor(long uncompressedOffset) {
+    int i = Arrays.binarySearch(uncompressed, uncompressedOffset);
+    if (i < 0) {
+      return Math.max(0, -i - 2); // the insertion point less one
+    }
+    // points can repeat where nothing was written between flushes, and the last of them is nearest the data
+    while (i + 1 < uncompressed.length && uncompressed[i + 1] == uncompressedOffset) {
+      i++;
+    }
+    return i;
+  }
+
+  void write(DataOutputStream out) throws IOException {
+    boolean hasWindows = false;
+    for (byte[] window : windows) {
+      hasWindows |= window != null;
+    }
+    out.write(MAGIC);
+    out.writeByte(VERSION);
+    out.write(D2Footer.serialize(footer));
+    out.writeByte((hasWindows ? FLAG_WINDOWS : 0) | (footer.hasAdler32() ? FLAG_ADLER32 : 0));
+    if (footer.hasAdler32()) {
+      out.writeInt((int) footer.getAdler32());
+    }
+    out.writeInt(uncompressed.length - 1);
+    for (int i = 1; i < uncompressed.length; i++) {
+      out.writeLong(uncompressed[i]);
+      out.writeLong(compressed[i]);
+      if (hasWindows) {
+        out.writeInt(windows[i] == null ? 0 : windows[i].length);
+        if (windows[i] != null) {
+          out.write(windows[i]);
+        }
+      }
+    }
+  }
+
+  static D2Index read(DataInputStream in) throws IOException {
+    byte[] magic = new byte[MAGIC.length];
+    in.readFully(magic);
+    if (!Arrays.equals(MAGIC, magic)) {
+      throw new IOException("Not a D2 index");
+    }
+    int version = in.readUnsignedByte();
+    if (version != VERSION) {
+      throw new IOException("Unsupported D2 index version: " + version);
+    }
+    byte[] serialized = new byte[D2Footer.FOOTER_LENGTH];
+    in.readFully(serialized);
+    D2Footer footer = D2Footer.buildFooter(serialized);
+    int flags = in.readUnsignedByte();
+    if ((flags & FLAG_ADLER32) != 0) {
+      footer = footer.withAdler32(in.readInt() & 0xFFFFFFFFL);
+    }
+    int size = in.readInt();
+    if (size < 0) {
+      throw new IOException("Invalid D2 index size: " + size);
+    }
+    long[] uncompressed = new long[size];
+    long[] compressed = new long[size];
+    byte[][] windows = (flags & FLAG_WINDOWS) != 0 ? new byte[size][] : null;
+    for (int i = 0; i < size; i++) {
+      uncompressed[i] = in.readLong();
+      compressed[i] = in.readLong();
+      if (windows != null) {
+        int length = in.readInt();
+        if (length < 0 || length > WINDOW_SIZE) {
+          throw new IOException("Invalid D2 index window length: " + length);
+        }
+        if (length > 0) {
+          windows[i] = new byte[length];
+          in.readFully(windows[i]);
+        }
+      }
+    }
+    try {
+      return new D2Index(footer, uncompressed, compressed, windows, size);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Invalid D2 index: " + e.getMessage(), e);
+    }
+  }
+
+  /*
+   * Compares what the D2 file records, since only the index also carries the Adler-32.
+   */
+  private static boolean sameFooter(D2Footer a, D2Footer b) {
+    return a.getUncompressedLength() == b.getUncompressedLength()
+           && a.getCompressedLength() == b.getCompressedLength()
+           && a.getCrc() == b.getCrc();
+  }
+}
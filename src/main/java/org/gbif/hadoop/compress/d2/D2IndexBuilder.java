@@ -0,0 +1,308 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Builds a {@link D2Index} for a D2 file written without one, so that it can be read with random access and split
+ * without recompressing it.  {@link D2Compressor} sync flushes on every call, and each sync flush ends with the byte
+ * aligned marker {@code 00 00 FF FF} of an empty stored block, after which a new block starts.  Unlike the full flushes
+ * of an indexed file, the data after a sync flush may refer back to the 32K of data before it, so each point is
+ * recorded with that window of data.
+ * <p/>
+ * Building runs in three phases:
+ * <ol>
+ * <li>The compressed data is divided into ranges of the given spacing, which are scanned concurrently for the first
+ * marker in each after which the data inflates, primed with a placeholder window.  Back-references resolve against any
+ * window, so this rejects markers that occur by chance in compressed data without knowing the real window.</li>
+ * <li>The data is inflated once from the start, stopping at each candidate to record its uncompressed offset and the
+ * window preceding it.  This is the only sequential pass, and it does no more than a plain read of the file.</li>
+ * <li>Each point is verified concurrently by inflating from it, primed with its reconstructed window, to the next
+ * point, which must produce exactly the data recorded between them.  Points which fail are dropped.</li>
+ * </ol>
+ */
+public final class D2IndexBuilder {
+
+  // the compressed bytes between points, giving an index of about 1% of the data with the windows
+  public static final long DEFAULT_SPACING = 4L << 20; // 4MB
+  public static final int DEFAULT_PARALLELISM = 8;
+
+  private static final byte[] SYNC_MARKER = {0, 0, (byte) 0xFF, (byte) 0xFF};
+  private static final byte[] PLACEHOLDER_WINDOW = new byte[D2Index.WINDOW_SIZE];
+  private static final int TRIAL_LENGTH = 16 * 1024; // compressed bytes inflated to check a candidate
+  private static final int BUFFER_SIZE = 0x10000; // 64K
+
+  /**
+   * Builds the index of a file and writes it alongside the file, with the default spacing and parallelism.
+   *
+   * @param fs   the filesystem holding the file
+   * @param path to the D2 file
+   *
+   * @return the index written
+   */
+  public static D2Index index(FileSystem fs, Path path) throws IOException {
+    return index(fs, path, DEFAULT_SPACING, DEFAULT_PARALLELISM);
+  }
+
+  /**
+   * Builds the index of a file and writes it alongside the file.
+   *
+   * @param fs          the filesystem holding the file
+   * @param path        to the D2 file
+   * @param spacing     the compressed bytes between points
+   * @param parallelism the maximum number of ranges scanned or points verified at once
+   *
+   * @return the index written
+   */
+  public static D2Index index(FileSystem fs, Path path, long spacing, int parallelism) throws IOException {
+    D2Index index = build(fs, path, spacing, parallelism);
+    index.write(fs, path);
+    return index;
+  }
+
+  /**
+   * Builds the index of a file without writing it.
+   *
+   * @param fs          the filesystem holding the file
+   * @param path        to the D2 file
+   * @param spacing     the compressed bytes between points
+   * @param parallelism the maximum number of ranges scanned or points verified at once
+   *
+   * @return the index of the file
+   */
+  public static D2Index build(final FileSystem fs, final Path path, long spacing, int parallelism)
+    throws IOException {
+    if (spacing < 1) {
+      throw new IllegalArgumentException("Spacing must be positive: " + spacing);
+    }
+    final D2Footer footer = D2Utils.readFooter(fs, path);
+    final long length = footer.getCompressedLength();
+
+    // 1. find a candidate in each range concurrently
+    List<Callable<Long>> scans = new ArrayList<>();
+    for (long start = spacing; start < length; start += spacing) {
+      final long from = start;
+      final long to = Math.min(start + spacing, length);
+      scans.add(new Callable<Long>() {
+        @Override
+        public Long call() throws IOException {
+          try (FSDataInputStream in = fs.open(path)) {
+            return findCandidate(in, from, to, length);
+          }
+        }
+      });
+    }
+    List<Long> candidates = new ArrayList<>();
+    for (Long candidate : ParallelTasks.invokeAll(scans, parallelism)) {
+      if (candidate >= 0) {
+        candidates.add(candidate);
+      }
+    }
+
+    // 2. inflate from the start, recording the uncompressed offset and window of each candidate
+    final int size = candidates.size();
+    final long[] uncompressed = new long[size];
+    final long[] compressed = new long[size];
+    final byte[][] windows = new byte[size][];
+    try (FSDataInputStream in = fs.open(path)) {
+      Inflater inflater = new Inflater(true);
+      try {
+        Window window = new Window();
+        long position = 0;
+        for (int i = 0; i < size; i++) {
+          inflate(in, inflater, position, candidates.get(i), window);
+          position = candidates.get(i);
+          uncompressed[i] = window.total;
+          compressed[i] = position;
+          windows[i] = window.contents();
+        }
+      } finally {
+        inflater.end();
+      }
+    }
+
+    // 3. verify each point concurrently, by inflating to the next with the window reconstructed
+    List<Callable<Boolean>> verifications = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      final int point = i;
+      verifications.add(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws IOException {
+          boolean last = point == size - 1;
+          long end = last ? length : compressed[point + 1];
+          long expected = (last ? footer.getUncompressedLength() : uncompressed[point + 1]) - uncompressed[point];
+          try (FSDataInputStream in = fs.open(path)) {
+            return verify(in, compressed[point], end, windows[point], expected, last ? null : windows[point + 1]);
+          }
+        }
+      });
+    }
+    List<Boolean> verified = ParallelTasks.invokeAll(verifications, parallelism);
+    int kept = 0;
+    for (int i = 0; i < size; i++) {
+      if (verified.get(i)) {
+        uncompressed[kept] = uncompressed[i];
+        compressed[kept] = compressed[i];
+        windows[kept] = windows[i].length == 0 ? null : windows[i];
+        kept++;
+      }
+    }
+    return new D2Index(footer, uncompressed, compressed, windows, kept);
+  }
+
+  /*
+   * Returns the offset following the first marker in the range after which the data inflates, or -1 if there is none.
+   */
+  private static long findCandidate(FSDataInputStream in, long from, long to, long length) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE + SYNC_MARKER.length - 1];
+    for (long start = from; start < to; start += BUFFER_SIZE) {
+      // overlap the next buffer so markers spanning buffers are found
+      int n = (int) Math.min(buffer.length, length - start);
+      in.readFully(start, buffer, 0, n);
+      for (int i = 0; i + SYNC_MARKER.length <= n && start + i < to; i++) {
+        if (buffer[i] == SYNC_MARKER[0] && buffer[i + 1] == SYNC_MARKER[1] && buffer[i + 2] == SYNC_MARKER[2]
+            && buffer[i + 3] == SYNC_MARKER[3]) {
+          long candidate = start + i + SYNC_MARKER.length;
+          if (candidate < length && inflates(in, candidate, length)) {
+            return candidate;
+          }
+        }
+      }
+    }
+    return -1;
+  }
+
+  /*
+   * Checks the data following the candidate inflates, primed with a placeholder window.
+   */
+  private static boolean inflates(FSDataInputStream in, long candidate, long length) throws IOException {
+    byte[] input = new byte[(int) Math.min(TRIAL_LENGTH, length - candidate)];
+    in.readFully(candidate, input);
+    byte[] output = new byte[BUFFER_SIZE];
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setDictionary(PLACEHOLDER_WINDOW);
+      inflater.setInput(input);
+      while (!inflater.needsInput()) {
+        if (inflater.inflate(output) == 0 && !inflater.needsInput()) {
+          return false; // finished or stalled, but D2 data has no final block
+        }
+      }
+      return true;
+    } catch (DataFormatException e) {
+      return false;
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /*
+   * Inflates from the candidate to the end, checking the data is as long as expected and ends with the window of the
+   * next point.
+   */
+  private static boolean verify(FSDataInputStream in, long from, long to, byte[] window, long expected,
+                                byte[] nextWindow) throws IOException {
+    Inflater inflater = new Inflater(true);
+    try {
+      if (window.length > 0) {
+        inflater.setDictionary(window);
+      }
+      // continuing from the window, so the window of the next point is at the end
+      Window output = new Window();
+      output.add(window, window.length);
+      inflate(in, inflater, from, to, output);
+      return output.total - window.length == expected
+             && (nextWindow == null || Arrays.equals(nextWindow, output.contents()));
+    } catch (ZipException e) {
+      return false;
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /*
+   * Inflates the compressed data in the range, adding it to the window.
+   */
+  private static void inflate(FSDataInputStream in, Inflater inflater, long from, long to, Window window)
+    throws IOException {
+    byte[] input = new byte[BUFFER_SIZE];
+    byte[] output = new byte[BUFFER_SIZE];
+    try {
+      for (long position = from; position < to; ) {
+        int n = (int) Math.min(input.length, to - position);
+        in.readFully(position, input, 0, n);
+        position += n;
+        inflater.setInput(input, 0, n);
+        while (true) {
+          int inflated = inflater.inflate(output);
+          if (inflated > 0) {
+            window.add(output, inflated);
+          } else if (inflater.needsInput()) {
+            break;
+          } else {
+            throw new ZipException("Unexpected end of D2 data at " + (position - inflater.getRemaining()));
+          }
+        }
+      }
+    } catch (DataFormatException e) {
+      String message = e.getMessage();
+      throw new ZipException(message != null ? message : "Invalid D2 data");
+    }
+  }
+
+  /*
+   * Keeps the last 32K of data inflated, and counts the data.
+   */
+  private static final class Window {
+    private final byte[] ring = new byte[D2Index.WINDOW_SIZE];
+    private long total;
+    private int held;
+
+    void add(byte[] b, int len) {
+      int off = Math.max(0, len - ring.length);
+      for (int i = off; i < len; ) {
+        int at = (int) ((total + i) % ring.length);
+        int n = Math.min(len - i, ring.length - at);
+        System.arraycopy(b, i, ring, at, n);
+        i += n;
+      }
+      total += len;
+      held = (int) Math.min(ring.length, held + (long) len);
+    }
+
+    byte[] contents() {
+      byte[] contents = new byte[held];
+      int start = (int) ((total - held) % ring.length);
+      int n = Math.min(held, ring.length - start);
+      System.arraycopy(ring, start, contents, 0, n);
+      System.arraycopy(ring, 0, contents, n, held - n);
+      return contents;
+    }
+  }
+
+  private D2IndexBuilder() {
+  }
+}
@@ -0,0 +1,375 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Options;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+
+/**
+ * An ordered list of D2 parts with their footers, which is all that is needed to plan the assembly of a ZIP file,
+ * .tar.gz or merged file before reading any compressed data.  A manifest is produced by scanning part footers (see
+ * {@link D2FooterScanner}) or written at job commit by the D2 output committer, and is accepted by the assembly tools.
+ * <p/>
+ * A manifest is stored as a small text file, by default named {@value #FILE_NAME} in the directory of the parts.  Each
+ * line holds a part and its footer separated by tabs: the path (relative to the directory of the manifest if within
+ * it), the uncompressed length, the compressed length, and the CRC-32 and Adler-32 in hexadecimal, with an Adler-32
+ * of {@value #NO_ADLER32} meaning none was recorded.  An optional sixth field names the ZIP entry the part belongs to,
+ * where the parts are destined for a ZIP file of several entries.  Lines starting with # are comments.
+ */
+public final class D2Manifest {
+
+  /**
+   * The name of a manifest written alongside the parts.  The leading underscore hides it from Hadoop input formats.
+   */
+  public static final String FILE_NAME = "_D2_MANIFEST";
+
+  private static final String HEADER =
+    "# D2 manifest: path, uncompressed length, compressed length, CRC-32, Adler-32 (- if not recorded)[, entry]";
+  private static final String NO_ADLER32 = "-";
+  private static final String SEPARATOR = "\t";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  /**
+   * The prefix of the name of the fragment recording the footer of a single part, as written alongside the part by a
+   * task and gathered into a manifest on commit.
+   */
+  public static final String FRAGMENT_PREFIX = "_D2_FOOTER-";
+
+  private static final int GATHER_PARALLELISM = 32;
+
+  private final Map<Path, D2Footer> footers;
+  private final Map<Path, String> entryNames;
+  private final D2Footer combined;
+
+  /**
+   * @param footers the parts in order, with their footers
+   */
+  public D2Manifest(Map<Path, D2Footer> footers) {
+    this(footers, Collections.<Path, String>emptyMap());
+  }
+
+  /**
+   * @param footers    the parts in order, with their footers
+   * @param entryNames the ZIP entry names of the parts, for those that have one
+   */
+  public D2Manifest(Map<Path, D2Footer> footers, Map<Path, String> entryNames) {
+    this.footers = Collections.unmodifiableMap(new LinkedHashMap<>(footers));
+    this.entryNames = Collections.unmodifiableMap(new LinkedHashMap<>(entryNames));
+    combined = D2Footer.combine(this.footers.values());
+  }
+
+  /**
+   * Reads a manifest.
+   *
+   * @param fs   the filesystem holding the manifest
+   * @param path to the manifest file, or a directory holding a manifest named {@value #FILE_NAME}
+   */
+  public static D2Manifest read(FileSystem fs, Path path) throws IOException {
+    Path file = fs.getFileStatus(path).isDirectory() ? new Path(path, FILE_NAME) : path;
+    Path dir = fs.makeQualified(file).getParent();
+    Map<Path, D2Footer> footers = new LinkedHashMap<>();
+    Map<Path, String> entryNames = new LinkedHashMap<>();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(file), StandardCharsets.UTF_8))) {
+      String line;
+      int lineNumber = 0;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        try {
+          Line parsed = parseLine(line);
+          Path part = new Path(parsed.name);
+          part = part.isAbsolute() ? part : new Path(dir, part);
+          footers.put(part, parsed.footer);
+          if (parsed.entryName != null) {
+            entryNames.put(part, parsed.entryName);
+          }
+        } catch (RuntimeException e) {
+          throw new IOException("Invalid line " + lineNumber + " of D2 manifest " + file + ": " + line, e);
+        }
+      }
+    }
+    return new D2Manifest(footers, entryNames);
+  }
+
+  /**
+   * Writes the manifest, replacing any existing file only once written in full with an atomic rename, so readers see
+   * either the previous manifest or the new one.  Parts in the directory of the manifest are recorded by name, so the
+   * directory may be moved as a whole.
+   *
+   * @param fs   the filesystem to write to
+   * @param file the manifest file to write, such as {@value #FILE_NAME} in the directory of the parts
+   */
+  public void write(FileSystem fs, Path file) throws IOException {
+    Path qualified = fs.makeQualified(file);
+    Path temp = new Path(qualified.getParent(), qualified.getName() + TEMP_SUFFIX);
+    try (Writer writer = new OutputStreamWriter(fs.create(temp, true), StandardCharsets.UTF_8)) {
+      writer.write(HEADER);
+      writer.write('\n');
+      for (Map.Entry<Path, D2Footer> entry : footers.entrySet()) {
+        Path part = entry.getKey();
+        String name = qualified.getParent().equals(fs.makeQualified(part).getParent())
+          ? part.getName()
+          : fs.makeQualified(part).toString();
+        writer.write(line(name, entry.getValue(), entryNames.get(part)));
+        writer.write('\n');
+      }
+    }
+    FileContext.getFileContext(fs.getUri(), fs.getConf()).rename(temp, qualified, Options.Rename.OVERWRITE);
+  }
+
+  /**
+   * Records the footer of a part in a fragment file alongside it, named with {@link #FRAGMENT_PREFIX}.  Tasks write
+   * these once a part is complete, and they are gathered into a manifest on commit.
+   *
+   * @param fs     the filesystem holding the part
+   * @param part   the part file
+   * @param footer the footer of the part
+   */
+  public static void writeFragment(FileSystem fs, Path part, D2Footer footer) throws IOException {
+    writeFragment(fs, part, footer, null);
+  }
+
+  /**
+   * Records the footer of a part and the ZIP entry it belongs to in a fragment file alongside it.
+   *
+   * @param fs        the filesystem holding the part
+   * @param part      the part file
+   * @param footer    the footer of the part
+   * @param entryName the name of the ZIP entry, or null if none
+   */
+  public static void writeFragment(FileSystem fs, Path part, D2Footer footer, String entryName) throws IOException {
+    try (OutputStream out = fs.create(new Path(part.getParent(), FRAGMENT_PREFIX + part.getName()), true)) {
+      out.write((line(part.getName(), footer, entryName) + '\n').getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * Gathers the fragments in the directory into a manifest of the parts they describe, ordered by part name (e.g.
+   * part-r-00000, part-r-00001...).  Only the small fragment files are read, concurrently, and never the parts.
+   *
+   * @param fs     the filesystem holding the directory
+   * @param dir    the directory holding the parts and their fragments
+   * @param delete whether to delete the fragments once gathered, which should only be done once the manifest is
+   *               written and acted on (see {@link #deleteFragments(FileSystem, Path)})
+   */
+  public static D2Manifest gatherFragments(final FileSystem fs, Path dir, boolean delete) throws IOException {
+    FileStatus[] fragments = fs.listStatus(dir, new PathFilter() {
+      @Override
+      public boolean accept(Path path) {
+        return path.getName().startsWith(FRAGMENT_PREFIX);
+      }
+    });
+    List<Callable<Line>> tasks = new ArrayList<>();
+    for (final FileStatus fragment : fragments) {
+      tasks.add(new Callable<Line>() {
+        @Override
+        public Line call() throws IOException {
+          try (BufferedReader reader =
+                 new BufferedReader(new InputStreamReader(fs.open(fragment.getPath()), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            if (line == null) {
+              throw new IOException("Empty D2 footer fragment " + fragment.getPath());
+            }
+            return parseLine(line);
+          }
+        }
+      });
+    }
+    // order by part name
+    Map<String, Line> byName = new TreeMap<>();
+    for (Line line : ParallelTasks.invokeAll(tasks, GATHER_PARALLELISM)) {
+      byName.put(line.name, line);
+    }
+    Map<Path, D2Footer> footers = new LinkedHashMap<>();
+    Map<Path, String> entryNames = new LinkedHashMap<>();
+    Path qualified = fs.makeQualified(dir);
+    for (Line line : byName.values()) {
+      Path part = new Path(qualified, line.name);
+      footers.put(part, line.footer);
+      if (line.entryName != null) {
+        entryNames.put(part, line.entryName);
+      }
+    }
+    if (delete) {
+      deleteFragments(fs, dir);
+    }
+    return new D2Manifest(footers, entryNames);
+  }
+
+  /**
+   * Deletes the fragments in the directory, such as once they are gathered into a manifest that is written and acted
+   * on.
+   *
+   * @param fs  the filesystem holding the directory
+   * @param dir the directory holding the parts and their fragments
+   */
+  public static void deleteFragments(FileSystem fs, Path dir) throws IOException {
+    FileStatus[] fragments = fs.listStatus(dir, new PathFilter() {
+      @Override
+      public boolean accept(Path path) {
+        return path.getName().startsWith(FRAGMENT_PREFIX);
+      }
+    });
+    for (FileStatus fragment : fragments) {
+      fs.delete(fragment.getPath(), false);
+    }
+  }
+
+  /**
+   * Parses a manifest line to the part name as written, its footer and any entry name.
+   */
+  static Line parseLine(String line) {
+    String[] fields = line.split(SEPARATOR);
+    if (fields.length != 5 && fields.length != 6) {
+      throw new IllegalArgumentException("Expected 5 or 6 fields but found " + fields.length);
+    }
+    long adler32 = NO_ADLER32.equals(fields[4]) ? D2Footer.NO_ADLER32 : Long.parseLong(fields[4], 16);
+    D2Footer footer = D2Footer.of(Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3], 16),
+                                  adler32);
+    return new Line(fields[0], footer, fields.length == 6 ? fields[5] : null);
+  }
+
+  private static String line(String name, D2Footer footer, String entryName) {
+    checkField("Part names", name);
+    String line = name + SEPARATOR + footer.getUncompressedLength() + SEPARATOR + footer.getCompressedLength()
+                  + SEPARATOR + Long.toHexString(footer.getCrc()) + SEPARATOR
+                  + (footer.hasAdler32() ? Long.toHexString(footer.getAdler32()) : NO_ADLER32);
+    if (entryName != null) {
+      checkField("Entry names", entryName);
+      line += SEPARATOR + entryName;
+    }
+    return line;
+  }
+
+  private static void checkField(String what, String value) {
+    if (value.isEmpty() || value.contains(SEPARATOR) || value.contains("\n") || value.contains("\r")) {
+      throw new IllegalArgumentException(what + " cannot be empty or contain tabs or newlines: " + value);
+    }
+  }
+
+  /**
+   * Groups the parts by the ZIP entry they belong to, with entries in order of name and parts in manifest order.
+   *
+   * @return a manifest of the parts of each entry, keyed by entry name
+   *
+   * @throws IllegalStateException if a part has no entry name
+   */
+  public Map<String, D2Manifest> groupByEntry() {
+    Map<String, Map<Path, D2Footer>> grouped = new TreeMap<>();
+    for (Map.Entry<Path, D2Footer> part : footers.entrySet()) {
+      String entryName = entryNames.get(part.getKey());
+      if (entryName == null) {
+        throw new IllegalStateException("Part has no entry name: " + part.getKey());
+      }
+      Map<Path, D2Footer> group = grouped.get(entryName);
+      if (group == null) {
+        group = new LinkedHashMap<>();
+        grouped.put(entryName, group);
+      }
+      group.put(part.getKey(), part.getValue());
+    }
+    Map<String, D2Manifest> result = new LinkedHashMap<>();
+    for (Map.Entry<String, Map<Path, D2Footer>> group : grouped.entrySet()) {
+      result.put(group.getKey(), new D2Manifest(group.getValue()));
+    }
+    return result;
+  }
+
+  /**
+   * @return the part paths in order
+   */
+  public List<Path> getParts() {
+    return new ArrayList<>(footers.keySet());
+  }
+
+  /**
+   * @return the footer of each part, in order
+   */
+  public Map<Path, D2Footer> getFooters() {
+    return footers;
+  }
+
+  /**
+   * @return the ZIP entry names of the parts that have one
+   */
+  public Map<Path, String> getEntryNames() {
+    return entryNames;
+  }
+
+  /**
+   * @return the footers in the order of the parts
+   */
+  public List<D2Footer> getFooterList() {
+    return new ArrayList<>(footers.values());
+  }
+
+  /**
+   * @return the combined footer, whose compressed length is the sum of the part data (excluding footers and closing
+   * bytes)
+   */
+  public D2Footer getCombined() {
+    return combined;
+  }
+
+  public long getCompressedLength() {
+    return combined.getCompressedLength();
+  }
+
+  public long getUncompressedLength() {
+    return combined.getUncompressedLength();
+  }
+
+  /**
+   * @return the CRC-32 of the uncompressed data of all parts in order
+   */
+  public long getCrc() {
+    return combined.getCrc();
+  }
+
+  /*
+   * A parsed manifest line.
+   */
+  static final class Line {
+    final String name;
+    final D2Footer footer;
+    final String entryName; // null if none
+
+    Line(String name, D2Footer footer, String entryName) {
+      this.name = name;
+      this.footer = footer;
+      this.entryName = entryName;
+    }
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses a local D2 file by memory mapping it and inflating directly from the mapping, avoiding the copying and
+ * small reads of the stream based path (FooteredInputStream, BufferedInputStream and the 512 byte chunks of
+ * InflaterInputStream).  The footer is read first, and only the compressed data it describes is mapped, in windows of
+ * at most 1GB so that files beyond 2GB can be read.
+ * <p/>
+ * On Java 11 and later the inflater reads the mapping itself through {@code Inflater.setInput(ByteBuffer)}.  On
+ * earlier versions the mapping is copied to the inflater in 64K chunks.
+ * <p/>
+ * Mappings are released when garbage collected rather than on closing, as there is no supported way to unmap them.
+ */
+public class D2MappedInputStream extends InputStream {
+
+  static final long WINDOW_SIZE = 1L << 30; // 1GB
+  private static final int COPY_BUFFER_SIZE = 0x10000; // 64K
+
+  // Inflater.setInput(ByteBuffer) when running on Java 11 or later, otherwise null
+  private static final MethodHandle SET_INPUT_BUFFER = findSetInputBuffer();
+
+  private final FileChannel channel;
+  private final D2Footer footer;
+  private final Inflater inflater = new Inflater(true);
+  private final long windowSize;
+  private ByteBuffer window;
+  private long mapped; // the position up to which the data has been mapped
+  private byte[] copyBuffer;
+  private final byte[] oneByte = new byte[1];
+  private boolean closeMarkerGiven;
+  private boolean closed;
+
+  /**
+   * @param path to a local D2 file, such as a .def2 part file
+   *
+   * @throws IOException if the file cannot be read or does not end with a valid footer
+   */
+  public D2MappedInputStream(Path path) throws IOException {
+    this(path, WINDOW_SIZE);
+  }
+
+  D2MappedInputStream(Path path, long windowSize) throws IOException {
+    this.windowSize = windowSize;
+    channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      footer = D2Channels.readFooter(channel);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return the footer of the file, which is available before reading
+   */
+  public D2Footer getFooter() {
+    return footer;
+  }
+
+  @Override
+  public int read() throws IOException {
+    return read(oneByte, 0, 1) == -1 ? -1 : oneByte[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new IndexOutOfBoundsException();
+    } else if (len == 0) {
+      return 0;
+    }
+    try {
+      while (true) {
+        int n = inflater.inflate(b, off, len);
+        if (n > 0) {
+          return n;
+        }
+        if (inflater.finished()) {
+          return -1;
+        }
+        if (inflater.needsDictionary()) {
+          throw new ZipException("Unexpected preset dictionary in D2 data");
+        }
+        if (inflater.needsInput() && !feed()) {
+          throw new EOFException("Unexpected end of D2 data");
+        }
+      }
+    } catch (DataFormatException e) {
+      String message = e.getMessage();
+      throw new ZipException(message != null ? message : "Invalid D2 data");
+    }
+  }
+
+  @Override
+  public int available() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    return inflater.finished() ? 0 : 1;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      inflater.end();
+      window = null;
+      channel.close();
+    }
+  }
+
+  /*
+   * Provides the next input to the inflater: the rest of the current window, the next window or finally the close
+   * marker that the footer starts with.  Returns false if there is no more input.
+   */
+  private boolean feed() throws IOException {
+    if (window == null || !window.hasRemaining()) {
+      long remaining = footer.getCompressedLength() - mapped;
+      if (remaining > 0) {
+        long size = Math.min(windowSize, remaining);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, mapped, size);
+        mapped += size;
+      } else if (!closeMarkerGiven) {
+        closeMarkerGiven = true;
+        inflater.setInput(D2Footer.FOOTER_CLOSE_DEFLATE.clone());
+        return true;
+      } else {
+        return false;
+      }
+    }
+
+    if (SET_INPUT_BUFFER != null) {
+      // the inflater advances the position of the window as it consumes it
+      try {
+        SET_INPUT_BUFFER.invokeExact(inflater, window);
+      } catch (RuntimeException | Error e) {
+        throw e;
+      } catch (Throwable t) {
+        throw new IOException(t);
+      }
+    } else {
+      if (copyBuffer == null) {
+        copyBuffer = new byte[COPY_BUFFER_SIZE];
+      }
+      int n = Math.min(copyBuffer.length, window.remaining());
+      window.get(copyBuffer, 0, n);
+      inflater.setInput(copyBuffer, 0, n);
+    }
+    return true;
+  }
+
+  private static MethodHandle findSetInputBuffer() {
+    try {
+      return MethodHandles.publicLookup()
+        .findVirtual(Inflater.class, "setInput", MethodType.methodType(void.class, ByteBuffer.class));
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      return null; // before Java 11
+    }
+  }
+}
@@ -0,0 +1,353 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+import java.util.zip.ZipException;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Converts deflate streams produced elsewhere (gzip files, zlib streams and zip entries) into D2 parts in a single
+ * streaming pass, so they can be merged with native D2 output by {@link D2CombineInputStream} or as PRE_DEFLATED zip
+ * entries without recompression.
+ * <p/>
+ * The deflate data is copied with only its end rewritten (see {@link DeflateRewriter}), and the footer is written
+ * from the CRC-32 in the gzip trailer or supplied from a zip central directory.  Zlib streams carry an Adler-32 rather
+ * than a CRC-32, so those are inflated while copying to compute it.
+ */
+@SuppressWarnings("MagicNumber")
+public final class D2PartConverter {
+
+  private static final int GZIP_MAGIC = 0x8b1f;
+  private static final int DEFLATED = 8;
+  private static final int FHCRC = 2;
+  private static final int FEXTRA = 4;
+  private static final int FNAME = 8;
+  private static final int FCOMMENT = 16;
+  private static final int ZLIB_FDICT = 0x20;
+
+  // how a deflate stream built from D2 parts ends: the sync flush marker and then the close marker
+  private static final byte[] SYNC_FLUSH_CLOSE = {
+    (byte) 0, (byte) 0, (byte) 0xFF, (byte) 0xFF, D2Footer.FOOTER_CLOSE_DEFLATE[0], D2Footer.FOOTER_CLOSE_DEFLATE[1]
+  };
+
+  /**
+   * Converts a gzip file into a D2 part.  All members of a multi-member gzip file are converted, giving a part with
+   * the concatenated content.  The target is flushed but not closed.
+   *
+   * @param gzip   stream of the gzip file, which is read to the end but not closed
+   * @param target to write the D2 part to
+   *
+   * @return the footer written
+   */
+  public static D2Footer fromGzip(InputStream gzip, OutputStream target) throws IOException {
+    InputStream in = new BufferedInputStream(gzip);
+    long crc32 = 0;
+    long uncompressed = 0;
+    long compressed = 0;
+    int first = in.read();
+    do {
+      readGzipHeader(first, in);
+      DeflateRewriter rewriter = new DeflateRewriter(in, target);
+      rewriter.rewrite();
+
+      long memberCrc32 = readIntLE(in);
+      long memberSize = readIntLE(in);
+      if (memberSize != (rewriter.getUncompressedLength() & 0xFFFFFFFFL)) {
+        throw new ZipException("Gzip trailer length " + memberSize + " does not match the deflate data");
+      }
+      crc32 = CRCCombine.combine(crc32, memberCrc32, rewriter.getUncompressedLength());
+      uncompressed += rewriter.getUncompressedLength();
+      compressed += rewriter.getCompressedLength();
+      first = in.read();
+    } while (first != -1);
+
+    return writeFooter(target, D2Footer.serialize(uncompressed, compressed, crc32));
+  }
+
+  /**
+   * Converts a zlib stream into a D2 part, inflating it on the way to compute the CRC-32 which a zlib stream does not
+   * carry.  The target is flushed but not closed.
+   *
+   * @param zlib   the zlib stream, which is read through the zlib trailer (possibly beyond) but not closed
+   * @param target to write the D2 part to
+   *
+   * @return the footer written, carrying the Adler-32 from the zlib trailer for recording in a manifest
+   */
+  public static D2Footer fromZlib(InputStream zlib, OutputStream target) throws IOException {
+    InputStream in = new BufferedInputStream(zlib);
+    int cmf = readByte(in);
+    int flg = readByte(in);
+    if ((cmf & 0x0F) != DEFLATED || ((cmf << 8) | flg) % 31 != 0) {
+      throw new ZipException("Not in zlib format");
+    }
+    if ((flg & ZLIB_FDICT) != 0) {
+      throw new ZipException("Zlib streams using a preset dictionary cannot be converted");
+    }
+
+    CRC32 crc = new CRC32();
+    Inflater inflater = new Inflater(true);
+    try {
+      InflaterOutputStream inflating = new InflaterOutputStream(new CheckedOutputStream(NullOutputStream.INSTANCE, crc),
+                                                                inflater);
+      DeflateRewriter rewriter = new DeflateRewriter(in, new TeeOutputStream(target, inflating));
+      rewriter.rewrite();
+      inflating.finish();
+
+      long adler32 = readIntBE(in);
+      return writeFooter(target, D2Footer.serialize(rewriter.getUncompressedLength(), rewriter.getCompressedLength(),
+                                                    crc.getValue())).withAdler32(adler32);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Converts raw deflate data, such as a zip entry, into a D2 part.  The target is flushed but not closed.
+   *
+   * @param deflate stream of the raw deflate data, which is read through the deflate data (possibly beyond) but not
+   *                closed
+   * @param crc32   the CRC-32 of the uncompressed data, such as recorded in a zip central directory
+   * @param target  to write the D2 part to
+   *
+   * @return the footer written
+   */
+  public static D2Footer fromDeflate(InputStream deflate, long crc32, OutputStream target) throws IOException {
+    DeflateRewriter rewriter = new DeflateRewriter(new BufferedInputStream(deflate), target);
+    rewriter.rewrite();
+    return writeFooter(target, D2Footer.serialize(rewriter.getUncompressedLength(), rewriter.getCompressedLength(),
+                                                  crc32));
+  }
+
+  /**
+   * Provides raw deflate data held within a file, such as a zip entry, as a stream of a D2 part.
+   * <p/>
+   * Data built from D2 parts, which ends with the sync flush and close markers, only needs the close marker dropped
+   * and is provided at copy speed.  Otherwise the data is scanned once to locate the end of the final block, and the
+   * changes needed are applied while it is provided.
+   *
+   * @param fs     the filesystem holding the file
+   * @param path   to the file
+   * @param offset of the deflate data in the file
+   * @param length of the deflate data
+   * @param crc32  the CRC-32 of the uncompressed data, such as recorded in a zip central directory
+   * @param size   the length of the uncompressed data, such as recorded in a zip central directory
+   *
+   * @return a stream of the raw D2 part, including the footer
+   */
+  public static InputStream openDeflate(FileSystem fs, Path path, long offset, long length, long crc32, long size)
+    throws IOException {
+    FSDataInputStream in = fs.open(path);
+    try {
+      if (length >= SYNC_FLUSH_CLOSE.length) {
+        byte[] end = new byte[SYNC_FLUSH_CLOSE.length];
+        in.readFully(offset + length - end.length, end);
+        if (Arrays.equals(end, SYNC_FLUSH_CLOSE)) {
+          long compressed = length - D2Footer.FOOTER_CLOSE_DEFLATE.length;
+          in.seek(offset);
+          return new SequenceInputStream(new PatchedInputStream(in, compressed),
+                                         new ByteArrayInputStream(D2Footer.serialize(size, compressed, crc32)));
+        }
+      }
+
+      in.seek(offset);
+      DeflateRewriter scan = new DeflateRewriter(new BufferedInputStream(new PatchedInputStream(in, length)));
+      scan.rewrite();
+      if (scan.getUncompressedLength() != size) {
+        throw new ZipException("Deflate data holds " + scan.getUncompressedLength() + " bytes but expected " + size);
+      }
+
+      in.seek(offset);
+      PatchedInputStream patched = new PatchedInputStream(in, scan.getLastByteOffset() + 1);
+      patched.patch(scan.getFinalBlockOffset(), scan.getFinalBlockMask());
+      patched.patch(scan.getLastByteOffset(), scan.getLastByteMask());
+      byte[] tail = scan.getTail();
+      byte[] footer = D2Footer.serialize(size, scan.getCompressedLength(), crc32);
+      byte[] end = new byte[tail.length + footer.length];
+      System.arraycopy(tail, 0, end, 0, tail.length);
+      System.arraycopy(footer, 0, end, tail.length, footer.length);
+      return new SequenceInputStream(patched, new ByteArrayInputStream(end));
+
+    } catch (IOException | RuntimeException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  private static D2Footer writeFooter(OutputStream target, byte[] footer) throws IOException {
+    target.write(footer);
+    target.flush();
+    return D2Footer.buildFooter(footer);
+  }
+
+  /**
+   * Reads a gzip member header, of which the first byte has already been read.
+   */
+  private static void readGzipHeader(int first, InputStream in) throws IOException {
+    if (first == -1) {
+      throw new EOFException("Unexpected end of gzip stream");
+    }
+    if ((first | (readByte(in) << 8)) != GZIP_MAGIC || readByte(in) != DEFLATED) {
+      throw new ZipException("Not in gzip format");
+    }
+    int flags = readByte(in);
+    skip(in, 6); // modification time, extra flags and operating system
+    if ((flags & FEXTRA) != 0) {
+      skip(in, readByte(in) | (readByte(in) << 8));
+    }
+    if ((flags & FNAME) != 0) {
+      while (readByte(in) != 0) {
+        // skip the zero terminated file name
+      }
+    }
+    if ((flags & FCOMMENT) != 0) {
+      while (readByte(in) != 0) {
+        // skip the zero terminated comment
+      }
+    }
+    if ((flags & FHCRC) != 0) {
+      skip(in, 2);
+    }
+  }
+
+  private static long readIntLE(InputStream in) throws IOException {
+    return (readByte(in) | (readByte(in) << 8) | (readByte(in) << 16) | ((long) readByte(in) << 24));
+  }
+
+  private static long readIntBE(InputStream in) throws IOException {
+    return (((long) readByte(in) << 24) | (readByte(in) << 16) | (readByte(in) << 8) | readByte(in));
+  }
+
+  private static int readByte(InputStream in) throws IOException {
+    int b = in.read();
+    if (b == -1) {
+      throw new EOFException("Unexpected end of stream");
+    }
+    return b;
+  }
+
+  private static void skip(InputStream in, int n) throws IOException {
+    for (int i = 0; i < n; i++) {
+      readByte(in);
+    }
+  }
+
+  /**
+   * Provides a number of bytes of the underlying stream, applying a mask to up to two of them.  Closes the underlying
+   * stream when closed.
+   */
+  private static class PatchedInputStream extends InputStream {
+    private final InputStream in;
+    private final long length;
+    private final long[] offsets = new long[2];
+    private final byte[] masks = new byte[2];
+    private int patches;
+    private long position;
+
+    private PatchedInputStream(InputStream in, long length) {
+      this.in = in;
+      this.length = length;
+    }
+
+    private void patch(long offset, byte mask) {
+      offsets[patches] = offset;
+      masks[patches++] = mask;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (position >= length) {
+        return -1;
+      }
+      int r = in.read(b, off, (int) Math.min(len, length - position));
+      if (r > 0) {
+        for (int i = 0; i < patches; i++) {
+          if (offsets[i] >= position && offsets[i] < position + r) {
+            b[off + (int) (offsets[i] - position)] &= masks[i];
+          }
+        }
+        position += r;
+      }
+      return r;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes to two streams, used to inflate the converted data as it is written.
+   */
+  private static class TeeOutputStream extends OutputStream {
+    private final OutputStream first;
+    private final OutputStream second;
+
+    private TeeOutputStream(OutputStream first, OutputStream second) {
+      this.first = first;
+      this.second = second;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      first.write(b);
+      second.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      first.write(b, off, len);
+      second.write(b, off, len);
+    }
+  }
+
+  /**
+   * Discards everything, used where only the checksum of inflated data is needed.
+   */
+  private static class NullOutputStream extends OutputStream {
+    private static final NullOutputStream INSTANCE = new NullOutputStream();
+
+    @Override
+    public void write(int b) {
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+    }
+  }
+
+  private D2PartConverter() {
+  }
+}
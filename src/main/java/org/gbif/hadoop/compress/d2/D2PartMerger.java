@@ -0,0 +1,384 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+
+/**
+ * Merges D2 parts into a single file on the same filesystem, either a D2 file or the data of groups of parts framed by
+ * given bytes (such as the headers, data descriptors and central directory of a ZIP file).  The data of each part is
+ * used as is, and only the footers are replaced.
+ * <p/>
+ * Where the parts are on HDFS and are to be deleted, the merge is done by the namenode alone: each part is truncated to
+ * its data, with any framing that follows it appended, and the parts are concatenated with
+ * {@link DistributedFileSystem#concat(Path, Path[])}, so no data is read or copied.  Otherwise the parts are copied,
+ * with ranges read concurrently and written in order.
+ * <p/>
+ * A merge that deletes the parts can be repeated after an interruption with the same arguments, such as when a job
+ * commit is retried.  Parts are only deleted once the target is in place, and the parts are concatenated into a file
+ * named after the target alongside them, so a repeated merge finds either the parts (perhaps already truncated, which
+ * is done again), the concatenated file yet to be renamed, or the target with some parts already deleted.
+ */
+public final class D2PartMerger {
+
+  public static final int DEFAULT_PARALLELISM = 8;
+
+  // the size of ranges read concurrently, of which at most the parallelism are held in memory
+  static final int RANGE_SIZE = 4 * 1024 * 1024;
+
+  static final String TEMP_PREFIX = "_d2-merge-";
+
+  /**
+   * Merges the parts into a single D2 file, by concatenating their data and writing the combined footer.
+   *
+   * @param fs          the filesystem holding the parts and the target
+   * @param manifest    of the parts in order
+   * @param target      the D2 file to write, which is replaced if it exists
+   * @param deleteParts whether the parts should be deleted once merged, which allows HDFS concat to be used
+   * @param parallelism the maximum number of concurrent reads when copying
+   */
+  public static void merge(FileSystem fs, D2Manifest manifest, Path target, boolean deleteParts, int parallelism)
+    throws IOException {
+    D2Footer combined = manifest.getCombined();
+    byte[] footer = D2Footer.serialize(combined);
+    List<byte[]> framing = new ArrayList<>();
+    framing.add(new byte[0]);
+    framing.add(footer);
+    merge(fs, framing, Collections.singletonList(manifest), target, deleteParts, parallelism);
+  }
+
+  /**
+   * Merges the data of groups of parts, without their footers, interleaved with framing bytes: the first framing, the
+   * data of the first group, the second framing, and so on, ending with the last framing.
+   *
+   * @param fs          the filesystem holding the parts and the target
+   * @param framing     the bytes before, between and after the groups, one more than there are groups
+   * @param groups      the manifests of the groups of parts, in order
+   * @param target      the file to write, which is replaced if it exists
+   * @param deleteParts whether the parts should be deleted once merged, which allows HDFS concat to be used
+   * @param parallelism the maximum number of concurrent reads when copying
+   */
+  public static void merge(FileSystem fs, List<byte[]> framing, List<D2Manifest> groups, Path target,
+                           boolean deleteParts, int parallelism) throws IOException {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+    }
+    if (framing.size() != groups.size() + 1) {
+      throw new IllegalArgumentException("Expected " + (groups.size() + 1) + " framings for " + groups.size()
+                                         + " groups but found " + framing.size());
+    }
+    List<Piece> pieces = pieces(framing, groups);
+    if (!deleteParts || !isMerged(fs, pieces, target)) {
+      Path merged;
+      if (deleteParts && canConcat(fs, pieces)) {
+        merged = concat((DistributedFileSystem) fs, pieces, target, parallelism);
+      } else {
+        merged = copy(fs, pieces, target, parallelism);
+      }
+      if (fs.exists(target)) {
+        fs.delete(target, false);
+      }
+      if (!fs.rename(merged, target)) {
+        throw new IOException("Unable to rename " + merged + " to " + target);
+      }
+    }
+    if (deleteParts) {
+      // only once the target is in place, along with any indexes of the parts which no longer describe a file
+      for (D2Manifest group : groups) {
+        for (Path part : group.getParts()) {
+          fs.delete(part, false);
+          fs.delete(D2Index.indexPath(part), false);
+        }
+      }
+    }
+  }
+
+  /*
+   * Whether an earlier merge deleting the parts was interrupted once the target was in place.  Parts are only missing
+   * once concatenated or once the target is in place, and concatenated parts are held in a file alongside them until
+   * the target is in place.
+   */
+  private static boolean isMerged(FileSystem fs, List<Piece> pieces, Path target) throws IOException {
+    if (!fs.exists(target)) {
+      return false;
+    }
+    Path dir = null;
+    boolean missing = false;
+    for (Piece piece : pieces) {
+      if (piece.part != null) {
+        dir = piece.part.getParent();
+        missing |= !fs.exists(piece.part);
+      }
+    }
+    return missing && !fs.exists(concatPath(dir, target));
+  }
+
+  private static Path concatPath(Path dir, Path target) {
+    return new Path(dir, TEMP_PREFIX + target.getName());
+  }
+
+  /*
+   * Lays out the framing and parts as a sequence of pieces, where each part is followed by the framing after it (if
+   * any) and the first piece holds the leading framing alone (if any).
+   */
+  private static List<Piece> pieces(List<byte[]> framing, List<D2Manifest> groups) throws IOException {
+    List<Piece> pieces = new ArrayList<>();
+    ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    pending.write(framing.get(0));
+    for (int i = 0; i < groups.size(); i++) {
+      for (Map.Entry<Path, D2Footer> part : groups.get(i).getFooters().entrySet()) {
+        if (pending.size() > 0) {
+          if (pieces.isEmpty()) {
+            pieces.add(new Piece(null, 0, pending.toByteArray()));
+          } else {
+            pieces.get(pieces.size() - 1).append(pending.toByteArray());
+          }
+          pending.reset();
+        }
+        pieces.add(new Piece(part.getKey(), part.getValue().getCompressedLength(), new byte[0]));
+      }
+      pending.write(framing.get(i + 1));
+    }
+    if (pieces.isEmpty()) {
+      pieces.add(new Piece(null, 0, pending.toByteArray()));
+    } else {
+      pieces.get(pieces.size() - 1).append(pending.toByteArray());
+    }
+    return pieces;
+  }
+
+  /*
+   * Concat requires the parts to be in a single directory, in which the merge is then assembled.
+   */
+  private static boolean canConcat(FileSystem fs, List<Piece> pieces) {
+    if (!(fs instanceof DistributedFileSystem)) {
+      return false;
+    }
+    Path dir = null;
+    for (Piece piece : pieces) {
+      if (piece.part != null) {
+        if (dir == null) {
+          dir = piece.part.getParent();
+        } else if (!dir.equals(piece.part.getParent())) {
+          return false;
+        }
+      }
+    }
+    return dir != null;
+  }
+
+  /*
+   * Truncates each part to its data, appending the framing that follows it, and concatenates them into a file named
+   * after the target in the directory of the parts, which is returned.  The leading framing starts the file, or else
+   * the first part with content is renamed to it.  Since the concatenation is atomic, a file of the full length is the
+   * result of an earlier merge that was interrupted before it was renamed to the target.
+   */
+  private static Path concat(final DistributedFileSystem fs, List<Piece> pieces, Path target, int parallelism)
+    throws IOException {
+    Path dir = null;
+    long total = 0;
+    for (Piece piece : pieces) {
+      if (piece.part != null) {
+        dir = piece.part.getParent();
+      }
+      total += piece.length + piece.trailing.length;
+    }
+    Path merged = concatPath(dir, target);
+    Piece first = pieces.get(0);
+    // without leading framing, the first part with content is renamed to start the merged file
+    Piece head = null;
+    for (int i = 0; first.part != null && head == null && i < pieces.size(); i++) {
+      if (pieces.get(i).length > 0 || pieces.get(i).trailing.length > 0) {
+        head = pieces.get(i);
+      }
+    }
+    if (fs.exists(merged)) {
+      if (fs.getFileStatus(merged).getLen() == total) {
+        return merged;
+      }
+      if (head != null && !fs.exists(head.part)) {
+        // the part was renamed but nothing was concatenated onto it
+        rename(fs, merged, head.part);
+      } else {
+        fs.delete(merged, false);
+      }
+    }
+
+    List<Callable<Path>> tasks = new ArrayList<>();
+    for (final Piece piece : pieces) {
+      if (piece.part == null) {
+        continue;
+      }
+      tasks.add(new Callable<Path>() {
+        @Override
+        public Path call() throws IOException {
+          if (piece.length == 0 && piece.trailing.length == 0) {
+            // concat does not accept empty files, and there is nothing to merge, so it is deleted with the others
+            return null;
+          }
+          if (piece.trailing.length == 0) {
+            D2Utils.truncate(fs, piece.part, piece.length);
+          } else {
+            try (FSDataOutputStream out = D2Utils.truncateForAppend(fs, piece.part, piece.length)) {
+              out.write(piece.trailing);
+            }
+          }
+          return piece.part;
+        }
+      });
+    }
+    List<Path> sources = new ArrayList<>();
+    for (Path part : ParallelTasks.invokeAll(tasks, parallelism)) {
+      if (part != null) {
+        sources.add(part);
+      }
+    }
+
+    if (head == null) {
+      // the leading framing, or an empty file if every part was empty and there is no framing
+      try (FSDataOutputStream out = fs.create(merged, true)) {
+        out.write(first.part == null ? first.trailing : new byte[0]);
+      }
+    } else {
+      rename(fs, sources.remove(0), merged); // the head
+    }
+    if (!sources.isEmpty()) {
+      fs.concat(merged, sources.toArray(new Path[0]));
+    }
+    return merged;
+  }
+
+  private static void rename(FileSystem fs, Path from, Path to) throws IOException {
+    if (!fs.rename(from, to)) {
+      throw new IOException("Unable to rename " + from + " to " + to);
+    }
+  }
+
+  /*
+   * Copies the data of the parts in ranges, read concurrently with at most the parallelism in flight and written in
+   * order.  Returns the merged file, alongside the target.
+   */
+  private static Path copy(FileSystem fs, List<Piece> pieces, Path target, int parallelism) throws IOException {
+    Path merged = new Path(target.getParent(), TEMP_PREFIX + target.getName());
+    List<Range> ranges = new ArrayList<>();
+    for (Piece piece : pieces) {
+      for (long position = 0; position < piece.length; position += RANGE_SIZE) {
+        ranges.add(new Range(piece, position, (int) Math.min(RANGE_SIZE, piece.length - position)));
+      }
+    }
+
+    ExecutorService executor = ParallelTasks.newExecutor(parallelism);
+    Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+    Deque<FSDataInputStream> open = new ArrayDeque<>(); // the parts being read, in order
+    try (FSDataOutputStream out = fs.create(merged, true)) {
+      int next = 0;
+      for (Piece piece : pieces) {
+        for (long written = 0; written < piece.length; ) {
+          // keep the reads ahead of the writes
+          while (next < ranges.size() && inFlight.size() < parallelism) {
+            Range read = ranges.get(next++);
+            if (read.position == 0) {
+              open.add(fs.open(read.piece.part)); // positional reads may be concurrent
+            }
+            inFlight.add(executor.submit(read.task(open.getLast())));
+          }
+          byte[] data = ParallelTasks.get(inFlight.removeFirst());
+          out.write(data);
+          written += data.length;
+        }
+        if (piece.length > 0) {
+          // every read of the part has been written
+          open.removeFirst().close();
+        }
+        out.write(piece.trailing);
+      }
+    } finally {
+      for (Future<byte[]> future : inFlight) {
+        future.cancel(true);
+      }
+      executor.shutdownNow();
+      for (FSDataInputStream in : open) {
+        in.close();
+      }
+    }
+    return merged;
+  }
+
+  /*
+   * The data of a part (or none for leading framing) followed by framing.
+   */
+  private static class Piece {
+    private final Path part;
+    private final long length;
+    private byte[] trailing;
+
+    Piece(Path part, long length, byte[] trailing) {
+      this.part = part;
+      this.length = length;
+      this.trailing = trailing;
+    }
+
+    void append(byte[] bytes) {
+      byte[] joined = new byte[trailing.length + bytes.length];
+      System.arraycopy(trailing, 0, joined, 0, trailing.length);
+      System.arraycopy(bytes, 0, joined, trailing.length, bytes.length);
+      trailing = joined;
+    }
+  }
+
+  /*
+   * A range of the data of a part.
+   */
+  private static class Range {
+    private final Piece piece;
+    private final long position;
+    private final int length;
+
+    Range(Piece piece, long position, int length) {
+      this.piece = piece;
+      this.position = position;
+      this.length = length;
+    }
+
+    Callable<byte[]> task(final FSDataInputStream in) {
+      return new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws IOException {
+          byte[] data = new byte[length];
+          in.readFully(position, data, 0, length);
+          return data;
+        }
+      };
+    }
+  }
+
+  private D2PartMerger() {
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Compresses to a sequence of D2 parts, starting a new part once the current one reaches a target compressed size.
+ * Parts are only cut where the writer marks a record boundary with {@link #endRecord()}, so no record spans two parts.
+ * Since D2 parts merge without inflating, the sequence is the same data as a single part, but evenly sized parts let
+ * decompression, verification and splitting spread across cores and nodes.
+ * <p/>
+ * Parts are named from a base path with a sequence number, e.g. part-r-00000-00000.def2, part-r-00000-00001.def2 so
+ * they sort in order, and once closed the parts are listed in a {@link D2Manifest}.  The first part is always written,
+ * even if empty, and later parts only once written to.  Given an index interval, each part is written with a
+ * {@link D2Index} alongside.
+ */
+public class D2RollingOutputStream extends OutputStream {
+
+  private static final String SEQUENCE_FORMAT = "-%05d";
+
+  private final FileSystem fs;
+  private final Path base;
+  private final long partSize;
+  private final long indexInterval;
+  private final Map<Path, D2Footer> parts = new LinkedHashMap<>();
+  private Path file;
+  private D2CompressorStream current;
+  private boolean closed;
+
+  /**
+   * @param fs       the filesystem to write to
+   * @param base     the path the parts are named from, e.g. /output/part-r-00000
+   * @param partSize the compressed size at which a part is cut at the next record boundary
+   */
+  public D2RollingOutputStream(FileSystem fs, Path base, long partSize) throws IOException {
+    this(fs, base, partSize, 0);
+  }
+
+  /**
+   * @param fs            the filesystem to write to
+   * @param base          the path the parts are named from, e.g. /output/part-r-00000
+   * @param partSize      the compressed size at which a part is cut at the next record boundary
+   * @param indexInterval the uncompressed bytes between the points indexed in each part, or 0 for no index
+   */
+  public D2RollingOutputStream(FileSystem fs, Path base, long partSize, long indexInterval) throws IOException {
+    if (partSize < 1) {
+      throw new IllegalArgumentException("Part size must be positive: " + partSize);
+    }
+    this.fs = fs;
+    this.base = base;
+    this.partSize = partSize;
+    this.indexInterval = indexInterval;
+    open();
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    part().write(b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    part().write(b, off, len);
+  }
+
+  /**
+   * Marks a record boundary, cutting the current part if it has reached the part size.
+   *
+   * @return true if the part was cut
+   */
+  public boolean endRecord() throws IOException {
+    if (current != null && current.getCompressedLength() >= partSize) {
+      finishPart();
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (current != null) {
+      current.flush();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      if (current != null) {
+        finishPart();
+      }
+    }
+  }
+
+  /**
+   * @return the parts written, in order
+   * @throws IllegalStateException if the stream is not closed
+   */
+  public D2Manifest getManifest() {
+    if (!closed) {
+      throw new IllegalStateException("The manifest is only available once the stream is closed");
+    }
+    return new D2Manifest(parts);
+  }
+
+  private D2CompressorStream part() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    if (current == null) {
+      open();
+    }
+    return current;
+  }
+
+  private void open() throws IOException {
+    file = new Path(base.getParent(),
+                    base.getName() + String.format(SEQUENCE_FORMAT, parts.size()) + D2Utils.FILE_EXTENSION);
+    current = new D2CompressorStream(fs.create(file, false), new D2Compressor(indexInterval));
+  }
+
+  private void finishPart() throws IOException {
+    current.close();
+    parts.put(file, current.getFooter());
+    if (indexInterval > 0) {
+      current.getIndex().write(fs, file);
+    }
+    current = null;
+  }
+}
@@ -0,0 +1,350 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
+
+/**
+ * Reads a D2 file with random access over the uncompressed data.  Reading after a seek restarts inflating from the
+ * nearest point of the {@link D2Index} at or before the position, so only the data between that point and the position
+ * is inflated and discarded, rather than everything from the start of the file.  Reading forward within the current
+ * block continues from where the last read stopped.
+ * <p/>
+ * Given a {@link D2BlockCache}, whole blocks are inflated and cached, and reads copy from the cached blocks, so readers
+ * sharing the cache inflate each block once.  Blocks too large for the cache are read as without one.
+ * <p/>
+ * The compressed data is read with positional reads, so the source is never repositioned and may be shared.  Positional
+ * reads of the uncompressed data seek to the position and back, and are serialized with the other reads.
+ * <p/>
+ * Open one over a file with {@link D2Utils#openSeekable(org.apache.hadoop.fs.FileSystem, org.apache.hadoop.fs.Path)},
+ * which reads the index alongside the file if there is one.
+ */
+public class D2SeekableInputStream extends InputStream implements Seekable, PositionedReadable {
+
+  private static final int BUFFER_SIZE = 0x10000; // 64K
+
+  private final InputStream in;
+  private final PositionedReadable source;
+  private final D2Index index;
+  private final D2BlockCache cache; // or null
+  private final String identity; // of the file in the cache
+  private final Inflater inflater = new Inflater(true);
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private final byte[] oneByte = new byte[1];
+  private byte[] skipBuffer;
+  private long position; // in the uncompressed data
+  private long inflated; // the uncompressed position the inflater has reached
+  private long compressedPosition; // of the next compressed bytes to give the inflater
+  private boolean closeMarkerGiven;
+  private ByteBuffer block; // the cached block last read from
+  private long blockStart; // the uncompressed offset of the block
+  private boolean closed;
+
+  /**
+   * @param in    the raw D2 file, which must be {@link PositionedReadable} (e.g. an FSDataInputStream)
+   * @param index of the file, or {@link D2Index#of(D2Footer)} for a file with no index
+   */
+  public D2SeekableInputStream(InputStream in, D2Index index) {
+    this(in, index, null, null);
+  }
+
+  /**
+   * @param in       the raw D2 file, which must be {@link PositionedReadable} (e.g. an FSDataInputStream)
+   * @param index    of the file, or {@link D2Index#of(D2Footer)} for a file with no index
+   * @param cache    of decompressed blocks to read through, or null for none
+   * @param location the qualified path or other unique name of the file, identifying it in the cache
+   */
+  public D2SeekableInputStream(InputStream in, D2Index index, D2BlockCache cache, String location) {
+    if (!(in instanceof PositionedReadable)) {
+      throw new IllegalArgumentException("Random access requires a PositionedReadable stream");
+    }
+    if (cache != null && location == null) {
+      throw new IllegalArgumentException("A location is required to identify the file in the cache");
+    }
+    this.in = in;
+    this.source = (PositionedReadable) in;
+    this.index = index;
+    this.cache = cache;
+    this.identity = cache == null ? null : D2BlockCache.identity(location, index.getFooter());
+  }
+
+  /**
+   * @return the footer of the file, which is available before reading
+   */
+  public D2Footer getFooter() {
+    return index.getFooter();
+  }
+
+  public D2Index getIndex() {
+    return index;
+  }
+
+  @Override
+  public synchronized int read() throws IOException {
+    return read(oneByte, 0, 1) == -1 ? -1 : oneByte[0] & 0xff;
+  }
+
+  @Override
+  public synchronized int read(byte[] b, int off, int len) throws IOException {
+    checkOpen();
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new IndexOutOfBoundsException();
+    } else if (len == 0) {
+      return 0;
+    }
+    if (position >= getFooter().getUncompressedLength()) {
+      return -1;
+    }
+    if (cache != null && (blockHolds(position) || loadBlock())) {
+      ByteBuffer view = block.duplicate();
+      view.position((int) (position - blockStart));
+      int n = Math.min(len, view.remaining());
+      view.get(b, off, n);
+      position += n;
+      return n;
+    }
+    catchUp();
+    int n = inflate(b, off, len);
+    if (n > 0) {
+      position += n;
+    }
+    return n;
+  }
+
+  /**
+   * Seeks to an offset in the uncompressed data.  The data is only inflated on the next read.
+   *
+   * @throws EOFException if the offset is beyond the end of the data
+   */
+  @Override
+  public synchronized void seek(long target) throws IOException {
+    checkOpen();
+    if (target < 0 || target > getFooter().getUncompressedLength()) {
+      throw new EOFException("Cannot seek to " + target + " in " + getFooter().getUncompressedLength()
+                             + " uncompressed bytes");
+    }
+    position = target;
+  }
+
+  /**
+   * Skips by seeking, so the next read inflates from the nearest indexed point rather than from the current position.
+   */
+  @Override
+  public synchronized long skip(long n) throws IOException {
+    checkOpen();
+    if (n <= 0) {
+      return 0;
+    }
+    long from = position;
+    seek(Math.min(getFooter().getUncompressedLength(), from + Math.min(n, Long.MAX_VALUE - from)));
+    return position - from;
+  }
+
+  @Override
+  public synchronized long getPos() {
+    return position;
+  }
+
+  @Override
+  public boolean seekToNewSource(long targetPos) {
+    return false;
+  }
+
+  @Override
+  public synchronized int available() throws IOException {
+    checkOpen();
+    return (int) Math.min(Integer.MAX_VALUE, getFooter().getUncompressedLength() - position);
+  }
+
+  /**
+   * Reads from an offset in the uncompressed data, leaving the position of the stream unchanged.
+   */
+  @Override
+  public synchronized int read(long offset, byte[] b, int off, int len) throws IOException {
+    if (offset >= getFooter().getUncompressedLength()) {
+      return len == 0 ? 0 : -1;
+    }
+    long restore = position;
+    try {
+      seek(offset);
+      int total = 0;
+      while (total < len) {
+        int n = read(b, off + total, len - total);
+        if (n == -1) {
+          break;
+        }
+        total += n;
+      }
+      return total;
+    } finally {
+      position = restore;
+    }
+  }
+
+  @Override
+  public void readFully(long offset, byte[] b, int off, int len) throws IOException {
+    if (offset < 0 || offset + len > getFooter().getUncompressedLength()) {
+      throw new EOFException("Cannot read " + len + " bytes at " + offset + " of " + getFooter().getUncompressedLength()
+                             + " uncompressed bytes");
+    }
+    read(offset, b, off, len);
+  }
+
+  @Override
+  public void readFully(long offset, byte[] b) throws IOException {
+    readFully(offset, b, 0, b.length);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      inflater.end();
+      block = null;
+      in.close();
+    }
+  }
+
+  private boolean blockHolds(long offset) {
+    return block != null && offset >= blockStart && offset < blockStart + block.capacity();
+  }
+
+  /*
+   * Makes the block holding the position current, from the cache or by inflating it.  Returns false if the block is
+   * too large to cache, leaving it to be read as without a cache.
+   */
+  private boolean loadBlock() throws IOException {
+    int point = index.floor(position);
+    long start = index.getUncompressedOffset(point);
+    long end = point + 1 < index.size() ? index.getUncompressedOffset(point + 1) : getFooter().getUncompressedLength();
+    if (!cache.isCacheable(end - start)) {
+      return false;
+    }
+    long offset = index.getCompressedOffset(point);
+    ByteBuffer cached = cache.get(identity, offset);
+    if (cached == null) {
+      restart(point);
+      byte[] data = new byte[(int) (end - start)];
+      discard(data, data.length);
+      cached = cache.put(identity, offset, data, data.length);
+    }
+    block = cached;
+    blockStart = start;
+    return true;
+  }
+
+  /*
+   * Brings the inflater to the position, inflating from the nearest indexed point unless continuing from the current
+   * point is nearer.
+   */
+  private void catchUp() throws IOException {
+    if (inflated == position) {
+      return;
+    }
+    int point = index.floor(position);
+    if (position < inflated || index.getUncompressedOffset(point) > inflated) {
+      restart(point);
+    }
+    if (skipBuffer == null) {
+      skipBuffer = new byte[BUFFER_SIZE];
+    }
+    while (inflated < position) {
+      discard(skipBuffer, (int) Math.min(skipBuffer.length, position - inflated));
+    }
+  }
+
+  private void restart(int point) {
+    inflater.reset();
+    byte[] window = index.getWindow(point);
+    if (window != null) {
+      inflater.setDictionary(window); // the data preceding the point, which the data following may refer to
+    }
+    closeMarkerGiven = false;
+    inflated = index.getUncompressedOffset(point);
+    compressedPosition = index.getCompressedOffset(point);
+  }
+
+  /*
+   * Inflates exactly the given number of bytes.
+   */
+  private void discard(byte[] b, int len) throws IOException {
+    int total = 0;
+    while (total < len) {
+      int n = inflate(b, total, len - total);
+      if (n == -1) {
+        throw new EOFException("Unexpected end of D2 data");
+      }
+      total += n;
+    }
+  }
+
+  private int inflate(byte[] b, int off, int len) throws IOException {
+    try {
+      while (true) {
+        int n = inflater.inflate(b, off, len);
+        if (n > 0) {
+          inflated += n;
+          return n;
+        }
+        if (inflater.finished()) {
+          return -1;
+        }
+        if (inflater.needsDictionary()) {
+          throw new ZipException("Unexpected preset dictionary in D2 data");
+        }
+        if (inflater.needsInput() && !feed()) {
+          throw new EOFException("Unexpected end of D2 data");
+        }
+      }
+    } catch (DataFormatException e) {
+      String message = e.getMessage();
+      throw new ZipException(message != null ? message : "Invalid D2 data");
+    }
+  }
+
+  /*
+   * Provides the next compressed bytes to the inflater, and finally the close marker that the footer starts with.
+   * Returns false if there is no more input.
+   */
+  private boolean feed() throws IOException {
+    long remaining = getFooter().getCompressedLength() - compressedPosition;
+    if (remaining > 0) {
+      int n = (int) Math.min(buffer.length, remaining);
+      source.readFully(compressedPosition, buffer, 0, n);
+      compressedPosition += n;
+      inflater.setInput(buffer, 0, n);
+      return true;
+    } else if (!closeMarkerGiven) {
+      closeMarkerGiven = true;
+      inflater.setInput(D2Footer.FOOTER_CLOSE_DEFLATE.clone());
+      return true;
+    }
+    return false;
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+}
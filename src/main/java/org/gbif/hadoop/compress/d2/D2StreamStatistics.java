@@ -0,0 +1,146 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.apache.hadoop.fs.statistics.IOStatistics;
+import org.apache.hadoop.fs.statistics.IOStatisticsSource;
+import org.apache.hadoop.fs.statistics.MeanStatistic;
+import org.apache.hadoop.fs.statistics.impl.DynamicIOStatisticsBuilder;
+
+/**
+ * The statistics published as Hadoop {@link IOStatistics} by the D2 streams, such as {@link D2CompressorStream},
+ * {@link D2ConcatenatedInputStream}, {@link D2CombineInputStream} and the ZIP output stream.  They tell whether a
+ * stream is bound by the CPU in the deflater or inflater, or by the I/O of the stream beneath it (e.g. HDFS), without
+ * attaching a profiler:
+ * <pre>
+ *   LOG.info("{}", IOStatisticsLogging.ioStatisticsSourceToString(stream));
+ * </pre>
+ * <p/>
+ * Values are held in plain atomic counters updated once per buffer rather than per byte, and the statistics are a live
+ * view of them, so collection is cheap enough to be always on.  Times are in nanoseconds.
+ */
+public final class D2StreamStatistics implements IOStatisticsSource {
+
+  /** Uncompressed bytes written to a compressing stream, or read from a decompressing one. */
+  public static final String UNCOMPRESSED_BYTES = "d2_uncompressed_bytes";
+
+  /** Compressed bytes written to or read from the underlying stream, including footers. */
+  public static final String COMPRESSED_BYTES = "d2_compressed_bytes";
+
+  /** A mean statistic of the uncompressed bytes per compressed byte, i.e. the compression ratio. */
+  public static final String COMPRESSION_RATIO = "d2_compression_ratio";
+
+  /** Time spent in the deflater. */
+  public static final String DEFLATE_NANOS = "d2_deflate_nanos";
+
+  /** Time spent in the inflater. */
+  public static final String INFLATE_NANOS = "d2_inflate_nanos";
+
+  /** Time blocked reading from or writing to the underlying stream. */
+  public static final String BLOCKED_NANOS = "d2_blocked_nanos";
+
+  /** D2 parts, or members of a concatenated file, opened for reading. */
+  public static final String PARTS_OPENED = "d2_parts_opened";
+
+  /** D2 footers read. */
+  public static final String FOOTER_READS = "d2_footer_reads";
+
+  /** Flushes made, being a sync or full flush of the deflater for each write to a D2 stream. */
+  public static final String FLUSHES = "d2_flushes";
+
+  private final AtomicLong uncompressedBytes = new AtomicLong();
+  private final AtomicLong compressedBytes = new AtomicLong();
+  private final AtomicLong deflateNanos = new AtomicLong();
+  private final AtomicLong inflateNanos = new AtomicLong();
+  private final AtomicLong blockedNanos = new AtomicLong();
+  private final AtomicLong partsOpened = new AtomicLong();
+  private final AtomicLong footerReads = new AtomicLong();
+  private final AtomicLong flushes = new AtomicLong();
+  private final IOStatistics statistics = new DynamicIOStatisticsBuilder()
+    .withAtomicLongCounter(UNCOMPRESSED_BYTES, uncompressedBytes)
+    .withAtomicLongCounter(COMPRESSED_BYTES, compressedBytes)
+    .withAtomicLongCounter(DEFLATE_NANOS, deflateNanos)
+    .withAtomicLongCounter(INFLATE_NANOS, inflateNanos)
+    .withAtomicLongCounter(BLOCKED_NANOS, blockedNanos)
+    .withAtomicLongCounter(PARTS_OPENED, partsOpened)
+    .withAtomicLongCounter(FOOTER_READS, footerReads)
+    .withAtomicLongCounter(FLUSHES, flushes)
+    .withMeanStatisticFunction(COMPRESSION_RATIO, new Function<String, MeanStatistic>() {
+      @Override
+      public MeanStatistic apply(String key) {
+        return new MeanStatistic(compressedBytes.get(), uncompressedBytes.get());
+      }
+    })
+    .build();
+
+  /**
+   * @return a live view of the statistics
+   */
+  @Override
+  public IOStatistics getIOStatistics() {
+    return statistics;
+  }
+
+  public void addUncompressedBytes(long n) {
+    uncompressedBytes.addAndGet(n);
+  }
+
+  public void addCompressedBytes(long n) {
+    compressedBytes.addAndGet(n);
+  }
+
+  public void addDeflateNanos(long nanos) {
+    deflateNanos.addAndGet(nanos);
+  }
+
+  public void addInflateNanos(long nanos) {
+    inflateNanos.addAndGet(nanos);
+  }
+
+  public void addBlockedNanos(long nanos) {
+    blockedNanos.addAndGet(nanos);
+  }
+
+  public void partOpened() {
+    partsOpened.incrementAndGet();
+  }
+
+  public void footerRead() {
+    footerReads.incrementAndGet();
+  }
+
+  public void flushed() {
+    flushes.incrementAndGet();
+  }
+
+  /**
+   * Adds the time blocked, parts opened and footer reads of another stream whose work is part of this one, such as the
+   * parts read into a ZIP entry.  Bytes are not added, as they are usually counted by both streams.
+   *
+   * @param other the statistics of the other stream
+   */
+  public void addReads(IOStatistics other) {
+    blockedNanos.addAndGet(counter(other, BLOCKED_NANOS));
+    partsOpened.addAndGet(counter(other, PARTS_OPENED));
+    footerReads.addAndGet(counter(other, FOOTER_READS));
+  }
+
+  private static long counter(IOStatistics statistics, String key) {
+    Long value = statistics.counters().get(key);
+    return value != null ? value : 0;
+  }
+}
@@ -0,0 +1,263 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Builds a .tar.gz archive from D2 parts without inflating the compressed data.
+ * <p/>
+ * A tar archive is a sequence of 512 byte headers, each followed by the entry content padded to a multiple of 512
+ * bytes, and closed by two empty 512 byte blocks.  All of the tar structure is spliced into the deflate stream as
+ * stored blocks between the sync flushed parts, and the CRC-32 and length of the whole is combined from the parts'
+ * footers, giving a single gzip member.  The content lengths written into the tar headers come from the footers.
+ * <p/>
+ * Entry names longer than 100 bytes are written using the GNU long name extension.
+ */
+@SuppressWarnings("MagicNumber")
+public class D2TarGzBuilder {
+
+  static final int TAR_BLOCK_LENGTH = 512;
+
+  // gzip header: magic, deflate, no flags, no modification time, maximum compression, unknown OS
+  private static final byte[] GZIP_HEADER = {
+    (byte) 0x1f, (byte) 0x8b, (byte) 8, (byte) 0, (byte) 0, (byte) 0, (byte) 0, (byte) 0, (byte) 2, (byte) 0xff
+  };
+
+  private static final int NAME_LENGTH = 100;
+  private static final long MAX_OCTAL_SIZE = 077777777777L; // the largest size an 11 digit octal field holds
+  private static final String LONG_NAME = "././@LongLink";
+  private static final byte TYPE_FILE = '0';
+  private static final byte TYPE_LONG_NAME = 'L';
+
+  private final FileSystem fs;
+  private final List<Entry> entries = new ArrayList<>();
+  private long modificationTime = System.currentTimeMillis();
+
+  private long crc32;
+  private long uncompressedLength;
+  private long written;
+
+  private static class Entry {
+    private final String name;
+    private final List<Path> parts;
+    private final List<D2Footer> footers; // null until read, unless given in a manifest
+
+    private Entry(String name, List<Path> parts, List<D2Footer> footers) {
+      this.name = name;
+      this.parts = parts;
+      this.footers = footers;
+    }
+  }
+
+  /**
+   * @param fs the filesystem holding the parts
+   */
+  public D2TarGzBuilder(FileSystem fs) {
+    this.fs = fs;
+  }
+
+  /**
+   * Adds an entry to the archive, with content being the concatenation of the parts in the order given.
+   *
+   * @param name  the name of the entry in the archive
+   * @param parts paths to the raw D2 files, such as .def2 part files
+   */
+  public D2TarGzBuilder addEntry(String name, List<Path> parts) {
+    entries.add(new Entry(name, new ArrayList<>(parts), null));
+    return this;
+  }
+
+  /**
+   * Adds an entry to the archive, with content being the concatenation of the parts of the manifest in order.  The
+   * footers are taken from the manifest rather than read from the parts.
+   *
+   * @param name     the name of the entry in the archive
+   * @param manifest the parts in order with their footers
+   */
+  public D2TarGzBuilder addEntry(String name, D2Manifest manifest) {
+    entries.add(new Entry(name, manifest.getParts(), manifest.getFooterList()));
+    return this;
+  }
+
+  /**
+   * Sets the modification time recorded for all entries, defaulting to the time the builder was created.
+   *
+   * @param modificationTime in milliseconds since the epoch
+   */
+  public D2TarGzBuilder setModificationTime(long modificationTime) {
+    this.modificationTime = modificationTime;
+    return this;
+  }
+
+  /**
+   * Writes the .tar.gz archive onto the target which is flushed but not closed.
+   *
+   * @param target to write the archive to
+   *
+   * @return the number of bytes written to the target
+   */
+  public long build(OutputStream target) throws IOException {
+    crc32 = 0;
+    uncompressedLength = 0;
+    written = 0;
+    write(target, GZIP_HEADER);
+
+    for (Entry entry : entries) {
+      List<D2Footer> footers = entry.footers;
+      if (footers == null) {
+        footers = new ArrayList<>();
+        for (Path part : entry.parts) {
+          footers.add(D2Utils.readFooter(fs, part));
+        }
+      }
+      long size = 0;
+      for (D2Footer footer : footers) {
+        size += footer.getUncompressedLength();
+      }
+
+      writeUncompressed(target, headers(entry.name, size, modificationTime / 1000));
+      for (int i = 0; i < entry.parts.size(); i++) {
+        writePart(target, entry.parts.get(i), footers.get(i));
+      }
+      writeUncompressed(target, new byte[padding(size)]);
+    }
+
+    // end of archive, then close the deflate stream
+    writeUncompressed(target, new byte[2 * TAR_BLOCK_LENGTH]);
+    write(target, D2Footer.FOOTER_CLOSE_DEFLATE);
+
+    // gzip trailer: CRC-32 and the length modulo 2^32, both little endian
+    write(target, new byte[] {
+      (byte) crc32, (byte) (crc32 >>> 8), (byte) (crc32 >>> 16), (byte) (crc32 >>> 24),
+      (byte) uncompressedLength, (byte) (uncompressedLength >>> 8), (byte) (uncompressedLength >>> 16),
+      (byte) (uncompressedLength >>> 24)
+    });
+    target.flush();
+    return written;
+  }
+
+  /**
+   * Copies the compressed data of the part, stripping the complete footer.
+   */
+  private void writePart(OutputStream target, Path part, D2Footer footer) throws IOException {
+    try (InputStream in = new FooteredInputStream(fs.open(part), D2Footer.FOOTER_LENGTH)) {
+      written += D2Utils.copy(in, target);
+    }
+    crc32 = CRCCombine.combine(crc32, footer.getCrc(), footer.getUncompressedLength());
+    uncompressedLength += footer.getUncompressedLength();
+  }
+
+  /**
+   * Writes uncompressed content into the deflate stream as stored blocks.
+   */
+  private void writeUncompressed(OutputStream target, byte[] data) throws IOException {
+    if (data.length > 0) {
+      CRC32 crc = new CRC32();
+      crc.update(data);
+      write(target, StoredBlocks.encode(data));
+      crc32 = CRCCombine.combine(crc32, crc.getValue(), data.length);
+      uncompressedLength += data.length;
+    }
+  }
+
+  private void write(OutputStream target, byte[] data) throws IOException {
+    target.write(data);
+    written += data.length;
+  }
+
+  /**
+   * @return the bytes needed to pad content of the given size to a whole number of tar blocks
+   */
+  static int padding(long size) {
+    return (int) ((TAR_BLOCK_LENGTH - size % TAR_BLOCK_LENGTH) % TAR_BLOCK_LENGTH);
+  }
+
+  /**
+   * Builds the tar header for an entry, preceded by a GNU long name entry if the name does not fit the header.
+   */
+  static byte[] headers(String name, long size, long modificationTimeSeconds) {
+    byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    if (nameBytes.length <= NAME_LENGTH) {
+      return header(nameBytes, size, modificationTimeSeconds, TYPE_FILE);
+    }
+
+    // the long name entry content is the NUL terminated name, padded to a whole number of blocks
+    int longNameLength = nameBytes.length + 1;
+    byte[] longName = header(LONG_NAME.getBytes(StandardCharsets.UTF_8), longNameLength, 0, TYPE_LONG_NAME);
+    byte[] headers = new byte[longName.length + longNameLength + padding(longNameLength) + TAR_BLOCK_LENGTH];
+    System.arraycopy(longName, 0, headers, 0, longName.length);
+    System.arraycopy(nameBytes, 0, headers, TAR_BLOCK_LENGTH, nameBytes.length);
+    byte[] header = header(nameBytes, size, modificationTimeSeconds, TYPE_FILE);
+    System.arraycopy(header, 0, headers, headers.length - TAR_BLOCK_LENGTH, TAR_BLOCK_LENGTH);
+    return headers;
+  }
+
+  /**
+   * Builds a single ustar header, truncating the name to the 100 bytes available.
+   */
+  private static byte[] header(byte[] name, long size, long modificationTimeSeconds, byte type) {
+    byte[] header = new byte[TAR_BLOCK_LENGTH];
+    System.arraycopy(name, 0, header, 0, Math.min(name.length, NAME_LENGTH));
+    octal(header, 100, 8, 0644);                         // mode
+    octal(header, 108, 8, 0);                            // uid
+    octal(header, 116, 8, 0);                            // gid
+    if (size <= MAX_OCTAL_SIZE) {
+      octal(header, 124, 12, size);                      // size
+    } else {
+      // GNU base-256 encoding for sizes of 8GB and over: a marker bit then big endian binary
+      header[124] = (byte) 0x80;
+      for (int i = 0; i < 8; i++) {
+        header[135 - i] = (byte) (size >>> (8 * i));
+      }
+    }
+    octal(header, 136, 12, modificationTimeSeconds);     // mtime
+    header[156] = type;                                  // typeflag
+    System.arraycopy("ustar".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 5); // magic (NUL terminated)
+    header[263] = '0';                                   // version
+    header[264] = '0';
+
+    // the checksum is the sum of the header bytes, taking the checksum field itself as spaces
+    for (int i = 148; i < 156; i++) {
+      header[i] = ' ';
+    }
+    long checksum = 0;
+    for (byte b : header) {
+      checksum += b & 0xff;
+    }
+    octal(header, 148, 7, checksum);                     // 6 digits, NUL and the space left in place
+    return header;
+  }
+
+  /**
+   * Writes the value as zero padded octal digits filling the field, except for a trailing NUL.
+   */
+  private static void octal(byte[] header, int offset, int length, long value) {
+    long remaining = value;
+    for (int i = offset + length - 2; i >= offset; i--) {
+      header[i] = (byte) ('0' + (remaining & 7));
+      remaining >>>= 3;
+    }
+    header[offset + length - 1] = 0;
+  }
+}
@@ -13,11 +13,21 @@
  */
 package org.gbif.hadoop.compress.d2;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.zip.CRC32;
 import java.util.zip.InflaterInputStream;
 
+import org.apache.hadoop.fs.ChecksumFileSystem;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+
 /**
  * Utilities that help use D2 correctly, and in particular the setting up of streams.
  * <p/>
@@ -30,6 +40,10 @@ public final class D2Utils {
 
   private static final int BUF_SIZE = 0x1000; // 4K
 
+  // how long to wait for HDFS to recover the last block after truncating
+  private static final long RECOVERY_TIMEOUT_MS = 60000;
+  private static final long RECOVERY_POLL_MS = 100;
+
   /**
    * Utility to construct an input stream suitable for reading a d2 file in isolation.  Note that this will return a
    * stream which includes closing bytes.  It is not suitable for combining deflated streams.
@@ -50,6 +64,204 @@ public final class D2Utils {
     return new InflaterInputStream(in, new D2Decompressor());
   }
 
+  /**
+   * Provides uncompressed content as a raw D2 byte stream, encoded using deflate stored blocks and with the D2Footer.
+   * This allows content such as a header row to be spliced between parts at any position when combining, at no
+   * compression cost and with the CRC-32 and lengths maintained as for any other part.
+   *
+   * @param uncompressed the bytes to provide as a part
+   *
+   * @return a stream of the raw D2 bytes
+   */
+  public static InputStream asD2Part(byte[] uncompressed) {
+    byte[] stored = StoredBlocks.encode(uncompressed);
+    CRC32 crc = new CRC32();
+    crc.update(uncompressed);
+    byte[] footer = D2Footer.serialize(uncompressed.length, stored.length, crc.getValue());
+
+    byte[] part = new byte[stored.length + footer.length];
+    System.arraycopy(stored, 0, part, 0, stored.length);
+    System.arraycopy(footer, 0, part, stored.length, footer.length);
+    return new ByteArrayInputStream(part);
+  }
+
+  /**
+   * Reads the footer of a D2 file using a positional read of the trailing bytes only, leaving the compressed data
+   * untouched.
+   *
+   * @param fs   the filesystem holding the file
+   * @param path to the raw D2 file, such as a .def2 part file
+   *
+   * @return the footer of the file
+   */
+  public static D2Footer readFooter(FileSystem fs, Path path) throws IOException {
+    return readFooter(fs, path, fs.getFileStatus(path).getLen());
+  }
+
+  /**
+   * Reads the footer of a D2 file of known length, saving a call to the filesystem for the length (e.g. when already
+   * listed).
+   */
+  static D2Footer readFooter(FileSystem fs, Path path, long length) throws IOException {
+    if (length < D2Footer.FOOTER_LENGTH) {
+      throw new IOException("File " + path + " is too short to hold a D2 footer: " + length + " bytes");
+    }
+    byte[] footer = new byte[D2Footer.FOOTER_LENGTH];
+    try (FSDataInputStream in = fs.open(path)) {
+      in.readFully(length - D2Footer.FOOTER_LENGTH, footer);
+    }
+    D2Footer d2Footer = D2Footer.buildFooter(footer);
+    if (!D2Footer.isComplete(footer, length)) {
+      throw new IOException("File " + path + " does not end with a valid D2 footer, perhaps a write or append was "
+                            + "interrupted?");
+    }
+    return d2Footer;
+  }
+
+  /**
+   * Opens a D2 file for random access over the uncompressed data, using the index alongside the file if there is one
+   * (see {@link D2Index}).  Without an index the file can still be read and seeked, but each backward seek inflates
+   * from the start of the file.
+   *
+   * @param fs   the filesystem holding the file
+   * @param path to the D2 file, such as a .def2 part file
+   *
+   * @return a seekable stream of the uncompressed data
+   */
+  public static D2SeekableInputStream openSeekable(FileSystem fs, Path path) throws IOException {
+    return openSeekable(fs, path, null);
+  }
+
+  /**
+   * Opens a D2 file for random access as {@link #openSeekable(FileSystem, Path)} does, reading through a cache of
+   * decompressed blocks such as {@link D2BlockCache#shared()}.
+   *
+   * @param fs    the filesystem holding the file
+   * @param path  to the D2 file, such as a .def2 part file
+   * @param cache of decompressed blocks, or null for none
+   *
+   * @return a seekable stream of the uncompressed data
+   */
+  public static D2SeekableInputStream openSeekable(FileSystem fs, Path path, D2BlockCache cache) throws IOException {
+    D2Footer footer = readFooter(fs, path);
+    D2Index index = D2Index.read(fs, path, footer);
+    return new D2SeekableInputStream(fs.open(path), index != null ? index : D2Index.of(footer), cache,
+                                     fs.makeQualified(path).toString());
+  }
+
+  /**
+   * Provides a decompressing stream over a local D2 file, which is memory mapped and inflated directly from the mapping.
+   * This avoids the buffer copies of {@link #prepareD2Stream(InputStream)} and {@link #decompressInputSteam(InputStream)}
+   * when reading local files.
+   *
+   * @param file a local D2 file, such as a .def2 part file
+   *
+   * @return a stream of the uncompressed data
+   */
+  public static D2MappedInputStream decompressMapped(java.nio.file.Path file) throws IOException {
+    return new D2MappedInputStream(file);
+  }
+
+  /**
+   * Provides the raw bytes of a local D2 file from a memory mapping, which is suitable for combining with
+   * {@link D2CombineInputStream} or adding to ZIP entries.
+   *
+   * @param file a local D2 file, such as a .def2 part file
+   *
+   * @return a stream of the raw D2 bytes including the footer
+   */
+  public static InputStream openMapped(java.nio.file.Path file) throws IOException {
+    return new MappedFileInputStream(file, D2MappedInputStream.WINDOW_SIZE);
+  }
+
+  /**
+   * Opens an existing D2 file to append further compressed data to it in place.  The footer is removed, new data is
+   * compressed after the existing data and on closing a footer is written that describes the whole file, with the
+   * CRC-32 and Adler-32 combined from those of the existing and new data.  The existing data is neither read nor
+   * recompressed.
+   * <p/>
+   * The existing footer is kept in a hidden journal file alongside until the stream is closed.  Should the append be
+   * interrupted the file will not read as valid, and the next append or {@link #recoverAppend(FileSystem, Path)}
+   * restores it to its state before the append.
+   *
+   * @param fs   the filesystem holding the file, which must support truncate and append (e.g. local or HDFS)
+   * @param path to the D2 file
+   *
+   * @return a stream compressing onto the end of the file, which must be closed to complete the file
+   */
+  public static OutputStream append(FileSystem fs, Path path) throws IOException {
+    return D2AppendStream.open(fs, path);
+  }
+
+  /**
+   * Restores a D2 file to its state before an interrupted append, should one have been interrupted.
+   *
+   * @param fs   the filesystem holding the file
+   * @param path to the D2 file
+   *
+   * @return true if the file was restored, false if there was no interrupted append
+   */
+  public static boolean recoverAppend(FileSystem fs, Path path) throws IOException {
+    return D2AppendStream.recover(fs, path);
+  }
+
+  /**
+   * Truncates a file and opens it for appending.  On a checksummed filesystem (e.g. the local filesystem) the raw
+   * filesystem is used and the checksum file removed, since checksums are not maintained through truncate and append.
+   * On HDFS this waits for the recovery of the last block if the truncate did not fall on a block boundary.
+   *
+   * @param fs     the filesystem holding the file, which must support truncate and append
+   * @param path   to the file
+   * @param length the length to truncate to
+   *
+   * @return a stream appending to the truncated file
+   */
+  public static FSDataOutputStream truncateForAppend(FileSystem fs, Path path, long length) throws IOException {
+    return truncateFile(fs, path, length).append(path);
+  }
+
+  /**
+   * Truncates a file, waiting for the recovery of its last block on HDFS so that the file is closed on return (e.g. to
+   * be appended to or concatenated).  On a checksummed filesystem the checksum file is removed, as it no longer
+   * matches.
+   *
+   * @param fs     the filesystem holding the file
+   * @param path   the file to truncate
+   * @param length the length to truncate to
+   */
+  public static void truncate(FileSystem fs, Path path, long length) throws IOException {
+    truncateFile(fs, path, length);
+  }
+
+  /*
+   * Truncates the file, returning the filesystem that truncated it, which is the raw filesystem for a checksummed one.
+   */
+  private static FileSystem truncateFile(FileSystem fs, Path path, long length) throws IOException {
+    FileSystem target = fs;
+    if (fs instanceof ChecksumFileSystem) {
+      ChecksumFileSystem cfs = (ChecksumFileSystem) fs;
+      cfs.getRawFileSystem().delete(cfs.getChecksumFile(path), false);
+      target = cfs.getRawFileSystem();
+    }
+    if (!target.truncate(path, length) && target instanceof DistributedFileSystem) {
+      // the last block is being recovered, which must complete before appending
+      DistributedFileSystem dfs = (DistributedFileSystem) target;
+      long deadline = System.currentTimeMillis() + RECOVERY_TIMEOUT_MS;
+      while (!dfs.isFileClosed(path)) {
+        if (System.currentTimeMillis() > deadline) {
+          throw new IOException("Timed out waiting for block recovery after truncating " + path);
+        }
+        try {
+          Thread.sleep(RECOVERY_POLL_MS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted waiting for block recovery of " + path);
+        }
+      }
+    }
+    return target;
+  }
+
   public static long copy(InputStream from, OutputStream to) throws IOException {
     byte[] buf = new byte[BUF_SIZE];
     long total = 0;
@@ -83,14 +295,14 @@ public final class D2Utils {
 
   /**
    * Decompresses the content of the incoming stream of compressed content onto the output stream which are both then
-   * closed.
+   * closed.  The stream may hold several D2 files back to back, each of which is checked against its footer.
    *
    * @param compressed stream of compressed content
    * @param target     to write to
    */
   public static void decompress(InputStream compressed, OutputStream target) throws IOException {
     try (
-      InputStream in = decompressInputSteam(compressed)
+      InputStream in = new D2ConcatenatedInputStream(compressed)
     ) {
       copy(in, target);
       target.flush();  // probably unnecessary but not guaranteed by close()
@@ -0,0 +1,148 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Adler32;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Assembles D2 parts into a single zlib (RFC 1950) stream without inflating the compressed data.
+ * <p/>
+ * A zlib stream is a 2 byte header, the raw deflate data and the Adler-32 of the uncompressed data.  The deflate data
+ * is exactly what a {@link D2CombineInputStream} provides, and the Adler-32 is combined from those of the parts.  The
+ * Adler-32 of a part is taken from the manifest, or else from its sidecar {@link D2Index}, and parts with neither are
+ * inflated once to compute it.
+ * <p/>
+ * The D2 footer does not hold the Adler-32, so that it stays readable by existing readers (see {@link D2Footer}).
+ * Parts written by a plain {@link D2CompressorStream}, or without an index interval, therefore only avoid the inflate
+ * when assembled from the manifest of the job that wrote them.
+ */
+@SuppressWarnings("MagicNumber")
+public final class D2ZlibAssembler {
+
+  // CMF: deflate with a 32K window, FLG: maximum compression (as used by D2Compressor) and a valid FCHECK
+  static final byte[] ZLIB_HEADER = {(byte) 0x78, (byte) 0xDA};
+
+  private static final int BUF_SIZE = 0x1000; // 4K
+
+  /**
+   * Writes a zlib stream of the parts, in the order given, onto the target which is flushed but not closed.
+   *
+   * @param fs     the filesystem holding the parts
+   * @param parts  paths to the raw D2 files, such as .def2 part files
+   * @param target to write the zlib stream to
+   *
+   * @return the number of bytes written to the target
+   */
+  public static long assemble(FileSystem fs, Iterable<Path> parts, OutputStream target) throws IOException {
+    // the footers are read without touching the compressed data, and the Adler-32 is found from the indexes
+    List<Path> paths = new ArrayList<>();
+    List<D2Footer> footers = new ArrayList<>();
+    for (Path part : parts) {
+      paths.add(part);
+      footers.add(D2Utils.readFooter(fs, part));
+    }
+    return assemble(fs, paths, footers, target);
+  }
+
+  /**
+   * Writes a zlib stream of the parts of the manifest onto the target which is flushed but not closed.  The footers are
+   * taken from the manifest, so parts are only opened to copy their data (or to compute an Adler-32 not recorded).
+   *
+   * @param fs       the filesystem holding the parts
+   * @param manifest the parts in order with their footers
+   * @param target   to write the zlib stream to
+   *
+   * @return the number of bytes written to the target
+   */
+  public static long assemble(FileSystem fs, D2Manifest manifest, OutputStream target) throws IOException {
+    return assemble(fs, manifest.getParts(), manifest.getFooterList(), target);
+  }
+
+  private static long assemble(FileSystem fs, List<Path> parts, List<D2Footer> footers, OutputStream target)
+    throws IOException {
+    long adler32 = AdlerCombine.ADLER32_EMPTY;
+    for (int i = 0; i < parts.size(); i++) {
+      Path part = parts.get(i);
+      D2Footer footer = footers.get(i);
+      long partAdler32;
+      D2Index index = footer.hasAdler32() ? null : D2Index.read(fs, part, footer);
+      if (footer.hasAdler32()) {
+        partAdler32 = footer.getAdler32();
+      } else if (index != null && index.getFooter().hasAdler32()) {
+        partAdler32 = index.getFooter().getAdler32();
+      } else {
+        try (InputStream in = fs.open(part)) {
+          partAdler32 = adler32(in);
+        }
+      }
+      adler32 = AdlerCombine.combine(adler32, partAdler32, footer.getUncompressedLength());
+    }
+
+    List<InputStream> streams = new ArrayList<>();
+    try {
+      for (Path part : parts) {
+        streams.add(fs.open(part));
+      }
+      target.write(ZLIB_HEADER);
+      long total = ZLIB_HEADER.length;
+      try (D2CombineInputStream in = new D2CombineInputStream(streams)) {
+        total += D2Utils.copy(in, target);
+      }
+      target.write(trailer(adler32));
+      target.flush();
+      return total + 4;
+    } finally {
+      for (InputStream in : streams) {
+        in.close();
+      }
+    }
+  }
+
+  /**
+   * Computes the Adler-32 of the uncompressed content of a D2 file with a single streaming inflate pass.  This is the
+   * fallback for parts with no Adler-32 recorded in a manifest or index.
+   *
+   * @param d2 stream of the raw D2 file, which is read to completion but not closed
+   */
+  static long adler32(InputStream d2) throws IOException {
+    Adler32 adler = new Adler32();
+    InputStream in = D2Utils.decompressInputSteam(D2Utils.prepareD2Stream(d2));
+    byte[] buf = new byte[BUF_SIZE];
+    int r;
+    while ((r = in.read(buf)) != -1) {
+      adler.update(buf, 0, r);
+    }
+    return adler.getValue();
+  }
+
+  /**
+   * The zlib trailer, which is the Adler-32 in network byte order.
+   */
+  private static byte[] trailer(long adler32) {
+    return new byte[] {
+      (byte) (adler32 >>> 24), (byte) (adler32 >>> 16), (byte) (adler32 >>> 8), (byte) adler32
+    };
+  }
+
+  private D2ZlibAssembler() {
+  }
+}
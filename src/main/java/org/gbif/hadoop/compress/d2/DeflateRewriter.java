@@ -0,0 +1,379 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Copies a complete raw deflate stream, rewriting it so that it ends as a sync flushed D2 part would: the final block
+ * is no longer marked as final, and an empty stored block pads the stream to a byte boundary.
+ * <p/>
+ * Locating the final block and its end requires walking the block structure, so the Huffman codes are parsed, but
+ * nothing is inflated: no window is kept and back references are never resolved.  The length of the uncompressed
+ * data is counted on the way.  The parsing follows puff.c by Mark Adler, distributed with zlib.
+ * <p/>
+ * The input is never read beyond the end of the deflate stream, so trailers following it remain available.  Callers
+ * should provide a buffered stream.  Without an output the stream is only scanned, and the changes needed to rewrite
+ * it are available afterwards so they may be applied while copying the original later.
+ */
+@SuppressWarnings("MagicNumber")
+class DeflateRewriter {
+
+  private static final int MAX_BITS = 15;
+  private static final int MAX_LITERAL_LENGTH_CODES = 286;
+  private static final int MAX_DISTANCE_CODES = 30;
+  private static final int FIXED_LITERAL_LENGTH_CODES = 288;
+  private static final int BUF_SIZE = 0x10000; // 64K
+
+  // base lengths and extra bits for length codes 257..285
+  private static final int[] LENGTH_BASE = {
+    3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258
+  };
+  private static final int[] LENGTH_EXTRA = {
+    0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0
+  };
+  // base distances and extra bits for distance codes 0..29
+  private static final int[] DISTANCE_BASE = {
+    1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145,
+    8193, 12289, 16385, 24577
+  };
+  private static final int[] DISTANCE_EXTRA = {
+    0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13
+  };
+  // the order in which code length code lengths are given in a dynamic block header
+  private static final int[] CODE_LENGTH_ORDER = {16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+
+  // an empty stored block, excluding the 3 header bits which may share the final byte of the preceding block
+  private static final byte[] EMPTY_STORED_LENGTHS = {(byte) 0, (byte) 0, (byte) 0xFF, (byte) 0xFF};
+
+  private static final Huffman FIXED_LITERAL_LENGTH;
+  private static final Huffman FIXED_DISTANCE;
+  static {
+    int[] lengths = new int[FIXED_LITERAL_LENGTH_CODES];
+    for (int symbol = 0; symbol < FIXED_LITERAL_LENGTH_CODES; symbol++) {
+      lengths[symbol] = symbol < 144 ? 8 : symbol < 256 ? 9 : symbol < 280 ? 7 : 8;
+    }
+    FIXED_LITERAL_LENGTH = new Huffman(lengths, FIXED_LITERAL_LENGTH_CODES);
+    int[] distances = new int[MAX_DISTANCE_CODES];
+    for (int symbol = 0; symbol < MAX_DISTANCE_CODES; symbol++) {
+      distances[symbol] = 5;
+    }
+    FIXED_DISTANCE = new Huffman(distances, MAX_DISTANCE_CODES);
+  }
+
+  private final InputStream in;
+  private final OutputStream out; // null when only scanning
+
+  // bytes read from the input and not yet written, of which the last may still be patched
+  private final byte[] pending = new byte[BUF_SIZE];
+  private int pendingCount;
+
+  private int bitBuffer;
+  private int bitCount;
+
+  private long uncompressedLength;
+  private long compressedLength;
+  private long bytesRead;
+
+  // the changes made to the original: two masked bytes and the bytes appended
+  private long finalBlockOffset;
+  private byte finalBlockMask;
+  private long lastByteOffset;
+  private byte lastByteMask;
+  private byte[] tail;
+
+  /**
+   * A canonical Huffman code, as counts of codes per length and the symbols ordered by code.
+   */
+  private static class Huffman {
+    private final int[] count = new int[MAX_BITS + 1];
+    private final int[] symbol;
+
+    private Huffman(int[] lengths, int n) {
+      symbol = new int[n];
+      for (int s = 0; s < n; s++) {
+        count[lengths[s]]++;
+      }
+      int[] offsets = new int[MAX_BITS + 1];
+      for (int len = 1; len < MAX_BITS; len++) {
+        offsets[len + 1] = offsets[len] + count[len];
+      }
+      for (int s = 0; s < n; s++) {
+        if (lengths[s] != 0) {
+          symbol[offsets[lengths[s]]++] = s;
+        }
+      }
+    }
+  }
+
+  DeflateRewriter(InputStream in, OutputStream out) {
+    this.in = in;
+    this.out = out;
+  }
+
+  /**
+   * Constructs a rewriter that only scans the input.
+   */
+  DeflateRewriter(InputStream in) {
+    this(in, null);
+  }
+
+  /**
+   * Copies the deflate stream to the output, rewriting the end so it may be followed by further deflate data.
+   */
+  void rewrite() throws IOException {
+    boolean last;
+    do {
+      last = bits(1) == 1;
+      if (last) {
+        // the bit just read is the highest read bit of the most recently read byte
+        finalBlockOffset = bytesRead - 1;
+        finalBlockMask = (byte) ~(1 << (7 - bitCount));
+        pending[pendingCount - 1] &= finalBlockMask;
+      }
+      switch (bits(2)) {
+        case 0:
+          stored();
+          break;
+        case 1:
+          codes(FIXED_LITERAL_LENGTH, FIXED_DISTANCE);
+          break;
+        case 2:
+          dynamic();
+          break;
+        default:
+          throw new ZipException("Invalid deflate block type");
+      }
+    } while (!last);
+
+    // clear the padding of the final byte, and append an empty stored block (BFINAL=0, BTYPE=00) to align the stream
+    int usedBits = 8 - bitCount;
+    lastByteOffset = bytesRead - 1;
+    lastByteMask = (byte) ((1 << usedBits) - 1);
+    pending[pendingCount - 1] &= lastByteMask;
+    tail = new byte[(usedBits + 3 > 8 ? 1 : 0) + EMPTY_STORED_LENGTHS.length];
+    System.arraycopy(EMPTY_STORED_LENGTHS, 0, tail, tail.length - EMPTY_STORED_LENGTHS.length,
+                     EMPTY_STORED_LENGTHS.length);
+    for (byte b : tail) {
+      append(b);
+    }
+    flush(pendingCount);
+  }
+
+  /**
+   * @return the offset in the original of the byte holding the final block bit, which is cleared by
+   * {@link #getFinalBlockMask()}
+   */
+  long getFinalBlockOffset() {
+    return finalBlockOffset;
+  }
+
+  byte getFinalBlockMask() {
+    return finalBlockMask;
+  }
+
+  /**
+   * @return the offset in the original of the last byte of the deflate stream, of which the padding bits are cleared
+   * by {@link #getLastByteMask()}
+   */
+  long getLastByteOffset() {
+    return lastByteOffset;
+  }
+
+  byte getLastByteMask() {
+    return lastByteMask;
+  }
+
+  /**
+   * @return the bytes appended after the last byte of the original
+   */
+  byte[] getTail() {
+    return tail.clone();
+  }
+
+  /**
+   * @return the number of bytes written, being the rewritten deflate stream
+   */
+  long getCompressedLength() {
+    return compressedLength;
+  }
+
+  /**
+   * @return the length of the uncompressed data the deflate stream represents
+   */
+  long getUncompressedLength() {
+    return uncompressedLength;
+  }
+
+  private void stored() throws IOException {
+    // discard the rest of the current byte, which is copied regardless
+    bitBuffer = 0;
+    bitCount = 0;
+    int len = bits(16);
+    int nlen = bits(16);
+    if (len != (~nlen & 0xFFFF)) {
+      throw new ZipException("Invalid deflate stored block lengths");
+    }
+    for (int i = 0; i < len; i++) {
+      read();
+    }
+    uncompressedLength += len;
+  }
+
+  private void dynamic() throws IOException {
+    int nlen = bits(5) + 257;
+    int ndist = bits(5) + 1;
+    int ncode = bits(4) + 4;
+    if (nlen > MAX_LITERAL_LENGTH_CODES || ndist > MAX_DISTANCE_CODES) {
+      throw new ZipException("Invalid deflate dynamic block code counts");
+    }
+
+    int[] lengths = new int[CODE_LENGTH_ORDER.length];
+    for (int i = 0; i < ncode; i++) {
+      lengths[CODE_LENGTH_ORDER[i]] = bits(3);
+    }
+    Huffman lencode = new Huffman(lengths, CODE_LENGTH_ORDER.length);
+
+    // the literal/length and distance code lengths, which are themselves coded
+    lengths = new int[nlen + ndist];
+    int index = 0;
+    while (index < nlen + ndist) {
+      int symbol = decode(lencode);
+      if (symbol < 16) {
+        lengths[index++] = symbol;
+      } else {
+        int len = 0;
+        int repeat;
+        if (symbol == 16) {
+          if (index == 0) {
+            throw new ZipException("Invalid deflate code length repeat with no previous length");
+          }
+          len = lengths[index - 1];
+          repeat = 3 + bits(2);
+        } else if (symbol == 17) {
+          repeat = 3 + bits(3);
+        } else {
+          repeat = 11 + bits(7);
+        }
+        if (index + repeat > nlen + ndist) {
+          throw new ZipException("Invalid deflate code length repeat");
+        }
+        while (repeat-- > 0) {
+          lengths[index++] = len;
+        }
+      }
+    }
+
+    int[] distances = new int[ndist];
+    System.arraycopy(lengths, nlen, distances, 0, ndist);
+    codes(new Huffman(lengths, nlen), new Huffman(distances, ndist));
+  }
+
+  /**
+   * Walks the literal/length and distance codes to the end of block code, counting the uncompressed length.
+   */
+  private void codes(Huffman lencode, Huffman distcode) throws IOException {
+    int symbol;
+    while ((symbol = decode(lencode)) != 256) {
+      if (symbol < 256) {
+        uncompressedLength++;
+      } else {
+        symbol -= 257;
+        if (symbol >= LENGTH_BASE.length) {
+          throw new ZipException("Invalid deflate length code");
+        }
+        int len = LENGTH_BASE[symbol] + bits(LENGTH_EXTRA[symbol]);
+        int distSymbol = decode(distcode);
+        if (distSymbol >= DISTANCE_BASE.length) {
+          throw new ZipException("Invalid deflate distance code");
+        }
+        long dist = DISTANCE_BASE[distSymbol] + bits(DISTANCE_EXTRA[distSymbol]);
+        if (dist > uncompressedLength) {
+          throw new ZipException("Invalid deflate distance too far back");
+        }
+        uncompressedLength += len;
+      }
+    }
+  }
+
+  /**
+   * Decodes a symbol, reading the code a bit at a time as the code is stored most significant bit first.
+   */
+  private int decode(Huffman h) throws IOException {
+    int code = 0;
+    int first = 0;
+    int index = 0;
+    for (int len = 1; len <= MAX_BITS; len++) {
+      code |= bits(1);
+      int count = h.count[len];
+      if (code - count < first) {
+        return h.symbol[index + (code - first)];
+      }
+      index += count;
+      first += count;
+      first <<= 1;
+      code <<= 1;
+    }
+    throw new ZipException("Invalid deflate Huffman code");
+  }
+
+  /**
+   * Reads the given number of bits, least significant first, reading no more bytes than needed.
+   */
+  private int bits(int need) throws IOException {
+    int value = bitBuffer;
+    while (bitCount < need) {
+      value |= read() << bitCount;
+      bitCount += 8;
+    }
+    bitBuffer = value >>> need;
+    bitCount -= need;
+    return value & ((1 << need) - 1);
+  }
+
+  /**
+   * Reads a byte from the input, keeping it pending for output.
+   */
+  private int read() throws IOException {
+    int b = in.read();
+    if (b == -1) {
+      throw new EOFException("Unexpected end of deflate stream");
+    }
+    append((byte) b);
+    bytesRead++;
+    return b;
+  }
+
+  private void append(byte b) throws IOException {
+    if (pendingCount == pending.length) {
+      // keep the most recent byte, which may yet be patched
+      flush(pendingCount - 1);
+      pending[0] = pending[pending.length - 1];
+      pendingCount = 1;
+    }
+    pending[pendingCount++] = b;
+  }
+
+  private void flush(int count) throws IOException {
+    if (out != null) {
+      out.write(pending, 0, count);
+    }
+    compressedLength += count;
+    pendingCount = 0;
+  }
+}
@@ -120,7 +120,17 @@ public class FooteredInputStream extends BufferedInputStream {
     int totalLength = requestedBytes + footerLengthBytes;
     mark(totalLength);
     try {
-      int read = super.read(new byte[totalLength], 0, totalLength); // importantly calls the parent!
+      // the underlying stream may return fewer bytes than are available (e.g. at the boundaries of a sequence of
+      // streams) so keep reading until we have enough or hit the end
+      byte[] peek = new byte[totalLength];
+      int read = 0;
+      while (read < totalLength) {
+        int r = super.read(peek, read, totalLength - read); // importantly calls the parent!
+        if (r == EOF) {
+          break;
+        }
+        read += r;
+      }
       return read - footerLengthBytes;  // how many bytes can actually be read
     } finally {
       reset();
@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Provides the raw bytes of a local file from a memory mapping, in windows so that files beyond 2GB can be read.  Reads
+ * copy directly from the mapping without system calls, which suits the combining paths that read raw D2 parts.
+ */
+class MappedFileInputStream extends InputStream {
+
+  private final FileChannel channel;
+  private final long length;
+  private final long windowSize;
+  private ByteBuffer window;
+  private long mapped; // the position up to which the file has been mapped
+  private boolean closed;
+
+  MappedFileInputStream(Path path, long windowSize) throws IOException {
+    this.windowSize = windowSize;
+    channel = FileChannel.open(path, StandardOpenOption.READ);
+    length = channel.size();
+  }
+
+  @Override
+  public int read() throws IOException {
+    return nextWindow() ? window.get() & 0xff : -1;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new IndexOutOfBoundsException();
+    } else if (len == 0) {
+      return 0;
+    }
+    if (!nextWindow()) {
+      return -1;
+    }
+    int n = Math.min(len, window.remaining());
+    window.get(b, off, n);
+    return n;
+  }
+
+  @Override
+  public int available() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    long remaining = length - mapped + (window == null ? 0 : window.remaining());
+    return (int) Math.min(Integer.MAX_VALUE, remaining);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      window = null;
+      channel.close();
+    }
+  }
+
+  /*
+   * Ensures the current window has bytes remaining, mapping the next if required, returning false at the end of file.
+   */
+  private boolean nextWindow() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    if (window != null && window.hasRemaining()) {
+      return true;
+    }
+    if (mapped >= length) {
+      return false;
+    }
+    long size = Math.min(windowSize, length - mapped);
+    window = channel.map(FileChannel.MapMode.READ_ONLY, mapped, size);
+    mapped += size;
+    return true;
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs blocking I/O tasks concurrently, such as reads of many small files on HDFS, returning the results in the order of
+ * the tasks.  Where the JDK provides virtual threads (Java 21 and later) each task runs on its own virtual thread, with
+ * no more than the given number running at once.  Otherwise a pool of that number of daemon threads is used.
+ */
+final class ParallelTasks {
+
+  // Executors.newVirtualThreadPerTaskExecutor() when running on Java 21 or later, otherwise null
+  private static final Method VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutor();
+
+  private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+  /**
+   * Runs the tasks, with at most the given number running at once.
+   *
+   * @return the results in the order of the tasks
+   *
+   * @throws IOException the first failure of a task, with further tasks cancelled
+   */
+  static <T> List<T> invokeAll(List<? extends Callable<T>> tasks, int parallelism) throws IOException {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+    }
+    if (tasks.isEmpty()) {
+      return new ArrayList<>();
+    }
+    ExecutorService executor = newExecutor(Math.min(parallelism, tasks.size()));
+    final Semaphore permits = new Semaphore(parallelism);
+    List<Future<T>> futures = new ArrayList<>(tasks.size());
+    try {
+      for (final Callable<T> task : tasks) {
+        futures.add(executor.submit(new Callable<T>() {
+          @Override
+          public T call() throws Exception {
+            permits.acquire();
+            try {
+              return task.call();
+            } finally {
+              permits.release();
+            }
+          }
+        }));
+      }
+      List<T> results = new ArrayList<>(tasks.size());
+      for (Future<T> future : futures) {
+        results.add(get(future));
+      }
+      return results;
+
+    } finally {
+      for (Future<T> future : futures) {
+        future.cancel(true);
+      }
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Waits for the result of a task, unwrapping the failure of the task.
+   *
+   * @throws IOException the failure of the task, or if interrupted while waiting
+   */
+  static <T> T get(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for tasks to complete");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Creates an executor of virtual threads where available, or otherwise of the given number of daemon threads.  Callers
+   * bound the number of tasks in flight themselves and must shut the executor down.
+   */
+  static ExecutorService newExecutor(int threads) {
+    if (VIRTUAL_THREAD_EXECUTOR != null) {
+      try {
+        return (ExecutorService) VIRTUAL_THREAD_EXECUTOR.invoke(null);
+      } catch (ReflectiveOperationException | RuntimeException ignored) {
+        // fall through to platform threads
+      }
+    }
+    final int pool = POOL_NUMBER.incrementAndGet();
+    return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private final AtomicInteger number = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "d2-parallel-" + pool + "-" + number.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  private static Method findVirtualThreadExecutor() {
+    try {
+      return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      return null; // before Java 21
+    }
+  }
+
+  private ParallelTasks() {
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes uncompressed bytes as deflate stored blocks (see https://www.ietf.org/rfc/rfc1951.txt section 3.2.4).
+ * <p/>
+ * A stored block is a byte aligned header followed by the bytes verbatim, so it may be placed between sync flushed D2
+ * parts to splice uncompressed content into a merged deflate stream without any compression effort.  The blocks are
+ * never marked as final, leaving the stream open for following parts and the closing sequence.
+ */
+@SuppressWarnings("MagicNumber")
+public final class StoredBlocks {
+
+  // the maximum number of bytes a single stored block may carry
+  static final int MAX_BLOCK_LENGTH = 0xFFFF;
+
+  // BFINAL=0, BTYPE=00 padded to the byte boundary, then LEN and NLEN
+  private static final int HEADER_LENGTH = 5;
+
+  /**
+   * @return the number of bytes the stored block encoding of the given number of uncompressed bytes occupies
+   */
+  public static long encodedLength(long length) {
+    long blocks = length == 0 ? 1 : (length + MAX_BLOCK_LENGTH - 1) / MAX_BLOCK_LENGTH;
+    return length + blocks * HEADER_LENGTH;
+  }
+
+  /**
+   * Encodes the bytes as a sequence of non-final stored blocks.  Empty input encodes to a single empty stored block,
+   * which is the same marker a sync flush leaves.
+   */
+  public static byte[] encode(byte[] b, int off, int len) {
+    ByteBuffer encoded = ByteBuffer.allocate((int) encodedLength(len));
+    int written = 0;
+    do {
+      int blockLength = Math.min(len - written, MAX_BLOCK_LENGTH);
+      encoded.put((byte) 0);                      // BFINAL=0, BTYPE=00 (stored)
+      encoded.put((byte) blockLength);            // LEN, little endian
+      encoded.put((byte) (blockLength >>> 8));
+      encoded.put((byte) ~blockLength);           // NLEN, the one's complement of LEN
+      encoded.put((byte) (~blockLength >>> 8));
+      encoded.put(b, off + written, blockLength);
+      written += blockLength;
+    } while (written < len);
+    return encoded.array();
+  }
+
+  /**
+   * Encodes the bytes as a sequence of non-final stored blocks.
+   */
+  public static byte[] encode(byte[] b) {
+    return encode(b, 0, b.length);
+  }
+
+  private StoredBlocks() {
+  }
+}
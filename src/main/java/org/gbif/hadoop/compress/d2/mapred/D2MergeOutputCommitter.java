@@ -0,0 +1,44 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2.mapred;
+
+import org.gbif.hadoop.compress.d2.D2Manifest;
+import org.gbif.hadoop.compress.d2.mapreduce.D2MergeOutputFormat;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobContext;
+
+/**
+ * The mapred API equivalent of {@link org.gbif.hadoop.compress.d2.mapreduce.D2MergeOutputCommitter}, merging the parts
+ * written by {@link D2OutputFormat} into a single .def2 or ZIP file at job commit.  The merge is configured with the
+ * settings of {@link D2MergeOutputFormat}, for example:
+ * <pre>
+ * job.setOutputFormat(D2OutputFormat.class);
+ * job.setOutputCommitter(D2MergeOutputCommitter.class);
+ * D2MergeOutputFormat.setFormat(job, D2MergeOutputFormat.Format.ZIP);
+ * D2MergeOutputFormat.setDeleteParts(job, true);
+ * </pre>
+ */
+public class D2MergeOutputCommitter extends D2OutputCommitter {
+
+  @Override
+  protected void commitManifest(JobContext context, FileSystem fs, Path outputPath, D2Manifest manifest)
+    throws IOException {
+    org.gbif.hadoop.compress.d2.mapreduce.D2MergeOutputCommitter.merge(context.getJobConf(), fs, outputPath,
+                                                                        manifest);
+  }
+}
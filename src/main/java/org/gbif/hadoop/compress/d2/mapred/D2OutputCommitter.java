@@ -0,0 +1,66 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2.mapred;
+
+import org.gbif.hadoop.compress.d2.D2Manifest;
+import org.gbif.hadoop.compress.d2.mapreduce.D2OutputCommitter.JobCommit;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileOutputCommitter;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.JobContext;
+
+import static org.gbif.hadoop.compress.d2.mapreduce.D2OutputCommitter.commit;
+
+/**
+ * The mapred API equivalent of {@link org.gbif.hadoop.compress.d2.mapreduce.D2OutputCommitter}, gathering the footers
+ * recorded by {@link D2OutputFormat} into a {@link D2Manifest} at job commit, before the _SUCCESS marker is written.
+ * The commit itself is shared with that committer.
+ */
+public class D2OutputCommitter extends FileOutputCommitter {
+
+  @Override
+  public void commitJob(final JobContext context) throws IOException {
+    JobConf conf = context.getJobConf();
+    commit(conf, FileOutputFormat.getOutputPath(conf), new JobCommit() {
+      @Override
+      public void commitOutput() throws IOException {
+        D2OutputCommitter.super.commitJob(context);
+      }
+
+      @Override
+      public void commitManifest(FileSystem fs, Path outputPath, D2Manifest manifest) throws IOException {
+        D2OutputCommitter.this.commitManifest(context, fs, outputPath, manifest);
+      }
+    });
+  }
+
+  /**
+   * Called once the manifest of the committed parts has been written, before the job is marked successful.  Subclasses
+   * may act on the parts here, such as merging them.  A repeated commit of the job calls this again with the same
+   * manifest, so it must tolerate finding its work already done.
+   *
+   * @param context    of the job
+   * @param fs         the filesystem of the output
+   * @param outputPath the output directory
+   * @param manifest   of the committed parts, as written to the output directory
+   */
+  protected void commitManifest(JobContext context, FileSystem fs, Path outputPath, D2Manifest manifest)
+    throws IOException {
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2.mapred;
+
+import org.gbif.hadoop.compress.d2.D2Compressor;
+import org.gbif.hadoop.compress.d2.D2CompressorStream;
+import org.gbif.hadoop.compress.d2.D2Footer;
+import org.gbif.hadoop.compress.d2.D2Manifest;
+import org.gbif.hadoop.compress.d2.D2RollingOutputStream;
+import org.gbif.hadoop.compress.d2.D2Utils;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.TextOutputFormat;
+import org.apache.hadoop.util.Progressable;
+
+/**
+ * The mapred API equivalent of {@link org.gbif.hadoop.compress.d2.mapreduce.D2OutputFormat}, writing lines of text to
+ * D2 part files and recording the footer of each part alongside it.  Use with {@link D2OutputCommitter} (or
+ * {@link D2MergeOutputCommitter}) set with {@link JobConf#setOutputCommitter(Class)} to gather the footers into a
+ * manifest at job commit.  The part size set with
+ * {@link org.gbif.hadoop.compress.d2.mapreduce.D2OutputFormat#setPartSize(org.apache.hadoop.conf.Configuration, long)}
+ * and the index interval set with
+ * {@link org.gbif.hadoop.compress.d2.mapreduce.D2OutputFormat#setIndexInterval(org.apache.hadoop.conf.Configuration,
+ * long)} apply as for the mapreduce API.
+ */
+public class D2OutputFormat<K, V> extends TextOutputFormat<K, V> {
+
+  @Override
+  public RecordWriter<K, V> getRecordWriter(FileSystem ignored, JobConf job, String name, Progressable progress)
+    throws IOException {
+    String separator = job.get(org.apache.hadoop.mapreduce.lib.output.TextOutputFormat.SEPARATOR, "\t");
+    long partSize = org.gbif.hadoop.compress.d2.mapreduce.D2OutputFormat.getPartSize(job);
+    if (partSize > 0) {
+      return rollingRecordWriter(FileOutputFormat.getTaskOutputPath(job, name), job, partSize, separator);
+    }
+    final Path file = FileOutputFormat.getTaskOutputPath(job, name + D2Utils.FILE_EXTENSION);
+    final FileSystem fs = file.getFileSystem(job);
+    final long indexInterval = org.gbif.hadoop.compress.d2.mapreduce.D2OutputFormat.getIndexInterval(job);
+    final D2CompressorStream part = new D2CompressorStream(fs.create(file, progress), new D2Compressor(indexInterval));
+
+    return new LineRecordWriter<K, V>(new DataOutputStream(part), separator) {
+      @Override
+      public synchronized void close(Reporter reporter) throws IOException {
+        super.close(reporter); // finishes the part, writing its footer
+        // alongside the part, so they are committed with it
+        D2Manifest.writeFragment(fs, file, part.getFooter());
+        if (indexInterval > 0) {
+          part.getIndex().write(fs, file);
+        }
+      }
+    };
+  }
+
+  private RecordWriter<K, V> rollingRecordWriter(Path base, JobConf job, long partSize, String separator)
+    throws IOException {
+    final FileSystem fs = base.getFileSystem(job);
+    final D2RollingOutputStream parts = new D2RollingOutputStream(
+      fs, base, partSize, org.gbif.hadoop.compress.d2.mapreduce.D2OutputFormat.getIndexInterval(job));
+
+    return new LineRecordWriter<K, V>(new DataOutputStream(parts), separator) {
+      @Override
+      public synchronized void write(K key, V value) throws IOException {
+        super.write(key, value);
+        parts.endRecord();
+      }
+
+      @Override
+      public synchronized void close(Reporter reporter) throws IOException {
+        super.close(reporter);
+        for (Map.Entry<Path, D2Footer> part : parts.getManifest().getFooters().entrySet()) {
+          D2Manifest.writeFragment(fs, part.getKey(), part.getValue());
+        }
+      }
+    };
+  }
+}
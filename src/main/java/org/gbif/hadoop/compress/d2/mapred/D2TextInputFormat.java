@@ -0,0 +1,113 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2.mapred;
+
+import org.gbif.hadoop.compress.d2.mapreduce.D2LineRecordReader;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * The mapred API equivalent of {@link org.gbif.hadoop.compress.d2.mapreduce.D2TextInputFormat}, reading lines of text
+ * from D2 files split at the points of their indexes.  As for {@link org.apache.hadoop.mapred.TextInputFormat}, the
+ * split size is the total input size divided by the requested number of splits, bounded by the minimum split size and
+ * the block size.
+ */
+public class D2TextInputFormat extends FileInputFormat<LongWritable, Text> {
+
+  @Override
+  public InputSplit[] getSplits(JobConf job, int numSplits) throws IOException {
+    FileStatus[] files = listStatus(job);
+    long totalSize = 0;
+    for (FileStatus file : files) {
+      totalSize += file.getLen();
+    }
+    long goalSize = totalSize / Math.max(1, numSplits);
+    long minSize = Math.max(1, job.getLong(org.apache.hadoop.mapreduce.lib.input.FileInputFormat.SPLIT_MINSIZE, 1));
+
+    List<InputSplit> splits = new ArrayList<>();
+    for (FileStatus file : files) {
+      FileSystem fs = file.getPath().getFileSystem(job);
+      long splitSize = computeSplitSize(goalSize, minSize, file.getBlockSize());
+      for (org.apache.hadoop.mapreduce.lib.input.FileSplit split
+        : org.gbif.hadoop.compress.d2.mapreduce.D2TextInputFormat.getSplits(fs, file, splitSize)) {
+        splits.add(new FileSplit(split.getPath(), split.getStart(), split.getLength(), split.getLocations()));
+      }
+    }
+    job.setLong(NUM_INPUT_FILES, files.length);
+    return splits.toArray(new InputSplit[0]);
+  }
+
+  @Override
+  public RecordReader<LongWritable, Text> getRecordReader(InputSplit split, JobConf job, Reporter reporter)
+    throws IOException {
+    reporter.setStatus(split.toString());
+    String delimiter = job.get("textinputformat.record.delimiter");
+    final D2LineRecordReader reader =
+      new D2LineRecordReader(delimiter == null ? null : delimiter.getBytes(StandardCharsets.UTF_8));
+    FileSplit fileSplit = (FileSplit) split;
+    reader.initialize(new org.apache.hadoop.mapreduce.lib.input.FileSplit(
+      fileSplit.getPath(), fileSplit.getStart(), fileSplit.getLength(), fileSplit.getLocations()), job);
+
+    return new RecordReader<LongWritable, Text>() {
+      @Override
+      public boolean next(LongWritable key, Text value) throws IOException {
+        if (!reader.nextKeyValue()) {
+          return false;
+        }
+        key.set(reader.getCurrentKey().get());
+        value.set(reader.getCurrentValue());
+        return true;
+      }
+
+      @Override
+      public LongWritable createKey() {
+        return new LongWritable();
+      }
+
+      @Override
+      public Text createValue() {
+        return new Text();
+      }
+
+      @Override
+      public long getPos() {
+        return reader.getPosition();
+      }
+
+      @Override
+      public float getProgress() {
+        return reader.getProgress();
+      }
+
+      @Override
+      public void close() throws IOException {
+        reader.close();
+      }
+    };
+  }
+}
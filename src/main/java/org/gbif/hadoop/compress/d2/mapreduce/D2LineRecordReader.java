@@ -0,0 +1,155 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2.mapreduce;
+
+import org.gbif.hadoop.compress.d2.D2Index;
+import org.gbif.hadoop.compress.d2.D2SeekableInputStream;
+import org.gbif.hadoop.compress.d2.D2Utils;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
+import org.apache.hadoop.util.LineReader;
+
+/**
+ * Reads the lines of a split of a D2 file made by {@link D2TextInputFormat}.  The split's compressed offsets are
+ * indexed points, which are translated to uncompressed offsets through the index.  As for text, a split other than
+ * the first skips its first line, which the previous split reads, and reads any line starting at or before its end.
+ */
+public class D2LineRecordReader extends RecordReader<LongWritable, Text> {
+
+  private final byte[] delimiter;
+  private D2SeekableInputStream in;
+  private LineReader lineReader;
+  private int maxLineLength;
+  private long start; // uncompressed offsets
+  private long end;
+  private long position;
+  private LongWritable key;
+  private Text value;
+
+  /**
+   * @param delimiter the record delimiter, or null for line endings
+   */
+  public D2LineRecordReader(byte[] delimiter) {
+    this.delimiter = delimiter;
+  }
+
+  @Override
+  public void initialize(InputSplit split, TaskAttemptContext context) throws IOException {
+    initialize((FileSplit) split, context.getConfiguration());
+  }
+
+  /**
+   * Initializes the reader outside a task, such as for the mapred API.
+   */
+  public void initialize(FileSplit split, Configuration conf) throws IOException {
+    maxLineLength = conf.getInt(LineRecordReader.MAX_LINE_LENGTH, Integer.MAX_VALUE);
+    FileSystem fs = split.getPath().getFileSystem(conf);
+    in = D2Utils.openSeekable(fs, split.getPath());
+    D2Index index = in.getIndex();
+    long splitEnd = split.getStart() + split.getLength();
+    start = uncompressedOffset(index, split);
+    end = splitEnd >= index.getFooter().getCompressedLength()
+      ? index.getFooter().getUncompressedLength()
+      : uncompressedOffset(index, splitEnd, split);
+
+    in.seek(start);
+    lineReader = delimiter == null ? new LineReader(in, conf) : new LineReader(in, conf, delimiter);
+    position = start;
+    if (start != 0) {
+      // the previous split reads the line running across the start
+      position += lineReader.readLine(new Text(), 0, Integer.MAX_VALUE);
+    }
+  }
+
+  @Override
+  public boolean nextKeyValue() throws IOException {
+    if (key == null) {
+      key = new LongWritable();
+    }
+    key.set(position);
+    if (value == null) {
+      value = new Text();
+    }
+    int size = 0;
+    while (position <= end) {
+      size = lineReader.readLine(value, maxLineLength, Integer.MAX_VALUE);
+      position += size;
+      if (size == 0 || size < maxLineLength) {
+        break;
+      }
+      // the line was too long and is skipped
+      key.set(position);
+    }
+    if (size == 0) {
+      key = null;
+      value = null;
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  public LongWritable getCurrentKey() {
+    return key;
+  }
+
+  @Override
+  public Text getCurrentValue() {
+    return value;
+  }
+
+  /**
+   * @return the position in the uncompressed data
+   */
+  public long getPosition() {
+    return position;
+  }
+
+  @Override
+  public float getProgress() {
+    return end == start ? 0.0f : Math.min(1.0f, (position - start) / (float) (end - start));
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (lineReader != null) {
+      lineReader.close(); // closes the stream
+    } else if (in != null) {
+      in.close();
+    }
+  }
+
+  private static long uncompressedOffset(D2Index index, FileSplit split) throws IOException {
+    return uncompressedOffset(index, split.getStart(), split);
+  }
+
+  private static long uncompressedOffset(D2Index index, long compressedOffset, FileSplit split) throws IOException {
+    int point = index.pointAt(compressedOffset);
+    if (point < 0) {
+      throw new IOException("Split " + split + " is not at an indexed point, perhaps the file was indexed again "
+                            + "since the splits were made?");
+    }
+    return index.getUncompressedOffset(point);
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2.mapreduce;
+
+import org.gbif.hadoop.compress.d2.D2Manifest;
+import org.gbif.hadoop.compress.d2.D2PartMerger;
+import org.gbif.hadoop.compress.d2.zip.VirtualZipFile;
+import org.gbif.hadoop.compress.d2.zip.ZipEntry;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * Commits the output of {@link D2MergeOutputFormat}, merging the parts into a single file once the manifest is written
+ * and before the job is marked successful.  See {@link D2PartMerger} for how the merge is done.
+ * <p/>
+ * Where the parts are deleted once merged, the manifest is deleted with them, leaving only the _SUCCESS marker in the
+ * output directory.
+ */
+public class D2MergeOutputCommitter extends D2OutputCommitter {
+
+  public D2MergeOutputCommitter(Path outputPath, TaskAttemptContext context) throws IOException {
+    super(outputPath, context);
+  }
+
+  public D2MergeOutputCommitter(Path outputPath, JobContext context) throws IOException {
+    super(outputPath, context);
+  }
+
+  @Override
+  protected void commitManifest(JobContext context, FileSystem fs, D2Manifest manifest) throws IOException {
+    merge(context.getConfiguration(), fs, getOutputPath(), manifest);
+  }
+
+  /**
+   * Merges the parts of the manifest as configured with {@link D2MergeOutputFormat}, which is also used by the
+   * committer for the mapred API.
+   *
+   * @param conf       of the job
+   * @param fs         the filesystem of the output
+   * @param outputPath the output directory of the job, holding the parts and manifest
+   * @param manifest   of the committed parts
+   *
+   * @return the merged file
+   */
+  public static Path merge(Configuration conf, FileSystem fs, Path outputPath, D2Manifest manifest)
+    throws IOException {
+    Path target = D2MergeOutputFormat.getPath(conf, outputPath);
+    boolean deleteParts = D2MergeOutputFormat.getDeleteParts(conf);
+    int parallelism = D2MergeOutputFormat.getParallelism(conf);
+    if (deleteParts && isMerged(fs, manifest, target)) {
+      fs.delete(new Path(outputPath, D2Manifest.FILE_NAME), false);
+      return target;
+    }
+
+    if (D2MergeOutputFormat.getFormat(conf) == D2MergeOutputFormat.Format.ZIP) {
+      // the ZIP file is the data of the parts, framed by the headers that precede and follow it
+      ZipEntry entry = new ZipEntry(D2MergeOutputFormat.getZipEntryName(conf, outputPath));
+      entry.setMethod(ZipEntry.DEFLATED);
+      List<byte[]> framing;
+      try (VirtualZipFile zip = new VirtualZipFile(fs)) {
+        zip.addEntry(entry, manifest);
+        framing = zip.getFraming();
+      }
+      D2PartMerger.merge(fs, framing, Collections.singletonList(manifest), target, deleteParts, parallelism);
+    } else {
+      D2PartMerger.merge(fs, manifest, target, deleteParts, parallelism);
+    }
+
+    if (deleteParts) {
+      fs.delete(new Path(outputPath, D2Manifest.FILE_NAME), false);
+    }
+    return target;
+  }
+
+  /**
+   * Whether an earlier commit of the job completed the merge and removed the manifest and footers, leaving an empty
+   * manifest.  A merge interrupted part way is instead completed by {@link D2PartMerger} from the manifest.
+   */
+  static boolean isMerged(FileSystem fs, D2Manifest manifest, Path target) throws IOException {
+    return manifest.getParts().isEmpty() && fs.exists(target);
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2.mapreduce;
+
+import org.gbif.hadoop.compress.d2.D2PartMerger;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * Writes D2 parts as {@link D2OutputFormat} does, and merges them at job commit into a single .def2 file or a single
+ * entry ZIP file next to the output directory (e.g. /data/export.zip for the output directory /data/export), removing
+ * the need for a merge after the job.  See {@link D2MergeOutputCommitter}.
+ * <p/>
+ * The settings are shared with the mapred API, see {@link org.gbif.hadoop.compress.d2.mapred.D2MergeOutputCommitter}.
+ */
+public class D2MergeOutputFormat<K, V> extends D2OutputFormat<K, V> {
+
+  /**
+   * What the parts are merged into.
+   */
+  public enum Format {
+    DEF2(".def2"),
+    ZIP(".zip");
+
+    private final String extension;
+
+    Format(String extension) {
+      this.extension = extension;
+    }
+
+    public String getExtension() {
+      return extension;
+    }
+  }
+
+  public static final String FORMAT = "d2.merge.format";
+  public static final String PATH = "d2.merge.path";
+  public static final String ZIP_ENTRY_NAME = "d2.merge.zip.entry.name";
+  public static final String DELETE_PARTS = "d2.merge.delete.parts";
+  public static final String PARALLELISM = "d2.merge.parallelism";
+
+  private D2MergeOutputCommitter committer;
+
+  /**
+   * Sets what the parts are merged into, by default {@link Format#DEF2}.
+   */
+  public static void setFormat(Configuration conf, Format format) {
+    conf.setEnum(FORMAT, format);
+  }
+
+  public static Format getFormat(Configuration conf) {
+    return conf.getEnum(FORMAT, Format.DEF2);
+  }
+
+  /**
+   * Sets the file to merge into, by default the output directory with the extension of the format.
+   */
+  public static void setPath(Configuration conf, Path path) {
+    conf.set(PATH, path.toString());
+  }
+
+  /**
+   * @return the file to merge into
+   */
+  public static Path getPath(Configuration conf, Path outputPath) {
+    return getPath(conf, outputPath, getFormat(conf));
+  }
+
+  /**
+   * @return the file to merge into, defaulting to the output directory with the extension of the given format
+   */
+  public static Path getPath(Configuration conf, Path outputPath, Format format) {
+    String path = conf.get(PATH);
+    return path != null
+      ? new Path(path)
+      : new Path(outputPath.getParent(), outputPath.getName() + format.getExtension());
+  }
+
+  /**
+   * Sets the name of the entry in the ZIP file, by default the name of the output directory with .txt appended.
+   */
+  public static void setZipEntryName(Configuration conf, String name) {
+    conf.set(ZIP_ENTRY_NAME, name);
+  }
+
+  public static String getZipEntryName(Configuration conf, Path outputPath) {
+    return conf.get(ZIP_ENTRY_NAME, outputPath.getName() + ".txt");
+  }
+
+  /**
+   * Sets whether the parts are deleted once merged, by default false.  Deleting the parts lets HDFS merge them with
+   * concat, without copying any data.
+   */
+  public static void setDeleteParts(Configuration conf, boolean delete) {
+    conf.setBoolean(DELETE_PARTS, delete);
+  }
+
+  public static boolean getDeleteParts(Configuration conf) {
+    return conf.getBoolean(DELETE_PARTS, false);
+  }
+
+  /**
+   * Sets the maximum number of concurrent reads when the parts are copied.
+   */
+  public static void setParallelism(Configuration conf, int parallelism) {
+    conf.setInt(PARALLELISM, parallelism);
+  }
+
+  public static int getParallelism(Configuration conf) {
+    return conf.getInt(PARALLELISM, D2PartMerger.DEFAULT_PARALLELISM);
+  }
+
+  @Override
+  public synchronized OutputCommitter getOutputCommitter(TaskAttemptContext context) throws IOException {
+    if (committer == null) {
+      committer = new D2MergeOutputCommitter(getOutputPath(context), context);
+    }
+    return committer;
+  }
+}
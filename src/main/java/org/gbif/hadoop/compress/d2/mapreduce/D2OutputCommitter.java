@@ -0,0 +1,125 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2.mapreduce;
+
+import org.gbif.hadoop.compress.d2.D2Manifest;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter;
+
+/**
+ * Commits the output of {@link D2OutputFormat} as {@link FileOutputCommitter} does, and then gathers the footers that
+ * each task recorded alongside its part into a single {@link D2Manifest} named {@value D2Manifest#FILE_NAME} in the
+ * output directory.  The manifest is written before the _SUCCESS marker, so a job marked successful always has a
+ * complete manifest.  The footers are only deleted once the manifest is written and committed, so a commit that is
+ * interrupted or repeated finds either the footers or the manifest written from them.
+ * <p/>
+ * Only footers of committed task attempts reach the output directory, so failed and speculative attempts are never
+ * listed.
+ */
+public class D2OutputCommitter extends FileOutputCommitter {
+
+  public D2OutputCommitter(Path outputPath, TaskAttemptContext context) throws IOException {
+    super(outputPath, context);
+  }
+
+  public D2OutputCommitter(Path outputPath, JobContext context) throws IOException {
+    super(outputPath, context);
+  }
+
+  @Override
+  public void commitJob(final JobContext context) throws IOException {
+    commit(context.getConfiguration(), getOutputPath(), new JobCommit() {
+      @Override
+      public void commitOutput() throws IOException {
+        D2OutputCommitter.super.commitJob(context);
+      }
+
+      @Override
+      public void commitManifest(FileSystem fs, Path outputPath, D2Manifest manifest) throws IOException {
+        D2OutputCommitter.this.commitManifest(context, fs, manifest);
+      }
+    });
+  }
+
+  /**
+   * The steps of a job commit that differ between the committers of the mapred and mapreduce APIs.
+   */
+  public interface JobCommit {
+
+    /**
+     * Commits the output as {@link FileOutputCommitter} does, without the _SUCCESS marker.
+     */
+    void commitOutput() throws IOException;
+
+    /**
+     * Acts on the manifest of the committed parts (see {@link D2OutputCommitter#commitManifest(JobContext, FileSystem, D2Manifest)}).
+     */
+    void commitManifest(FileSystem fs, Path outputPath, D2Manifest manifest) throws IOException;
+  }
+
+  /**
+   * Commits a job as described above, which is also used by the committer for the mapred API so that both handle an
+   * interrupted or repeated commit alike.
+   *
+   * @param conf       of the job
+   * @param outputPath the output directory of the job, or null if there is none
+   * @param commit     the steps particular to the committer
+   */
+  public static void commit(Configuration conf, Path outputPath, JobCommit commit) throws IOException {
+    boolean markSuccess = conf.getBoolean(SUCCESSFUL_JOB_OUTPUT_DIR_MARKER, true);
+    // hold back the marker until the manifest is written
+    conf.setBoolean(SUCCESSFUL_JOB_OUTPUT_DIR_MARKER, false);
+    try {
+      commit.commitOutput();
+    } finally {
+      conf.setBoolean(SUCCESSFUL_JOB_OUTPUT_DIR_MARKER, markSuccess);
+    }
+
+    if (outputPath != null) {
+      FileSystem fs = outputPath.getFileSystem(conf);
+      D2Manifest manifest = D2Manifest.gatherFragments(fs, outputPath, false);
+      Path manifestPath = new Path(outputPath, D2Manifest.FILE_NAME);
+      if (manifest.getParts().isEmpty() && fs.exists(manifestPath)) {
+        // the footers were gathered by an earlier commit of the job
+        manifest = D2Manifest.read(fs, manifestPath);
+      } else {
+        manifest.write(fs, manifestPath);
+      }
+      commit.commitManifest(fs, outputPath, manifest);
+      D2Manifest.deleteFragments(fs, outputPath);
+      if (markSuccess) {
+        fs.create(new Path(outputPath, SUCCEEDED_FILE_NAME)).close();
+      }
+    }
+  }
+
+  /**
+   * Called once the manifest of the committed parts has been written, before the job is marked successful.  Subclasses
+   * may act on the parts here, such as merging them.  A repeated commit of the job calls this again with the same
+   * manifest, so it must tolerate finding its work already done.
+   *
+   * @param context  of the job
+   * @param fs       the filesystem of the output
+   * @param manifest of the committed parts, as written to the output directory
+   */
+  protected void commitManifest(JobContext context, FileSystem fs, D2Manifest manifest) throws IOException {
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2.mapreduce;
+
+import org.gbif.hadoop.compress.d2.D2Compressor;
+import org.gbif.hadoop.compress.d2.D2CompressorStream;
+import org.gbif.hadoop.compress.d2.D2Footer;
+import org.gbif.hadoop.compress.d2.D2Index;
+import org.gbif.hadoop.compress.d2.D2Manifest;
+import org.gbif.hadoop.compress.d2.D2RollingOutputStream;
+import org.gbif.hadoop.compress.d2.D2Utils;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+
+/**
+ * Writes lines of text as {@link TextOutputFormat} does, but always to D2 part files (part-r-00000.def2 etc), recording the
+ * footer of each part so that {@link D2OutputCommitter} can write a {@link D2Manifest} of all parts at job commit.
+ * Parts can then be assembled into a ZIP or merged file from the manifest alone, without reading their footers.
+ * <p/>
+ * The key and value separator is read from {@link TextOutputFormat#SEPARATOR} as for text output.
+ * <p/>
+ * Where a part size is set with {@link #setPartSize(Configuration, long)}, each task writes a sequence of parts
+ * (part-r-00000-00000.def2, part-r-00000-00001.def2 etc), cutting a part at the end of the record which takes it to
+ * that compressed size.  This evens out the parts of skewed jobs, without changing the merged output.
+ * <p/>
+ * Where an index interval is set with {@link #setIndexInterval(Configuration, long)}, each part is written with a
+ * {@link D2Index} alongside for random access.
+ */
+public class D2OutputFormat<K, V> extends TextOutputFormat<K, V> {
+
+  public static final String PART_SIZE = "d2.output.part.size";
+
+  private D2OutputCommitter committer;
+
+  /**
+   * Sets the compressed size at which each task starts a new part, or 0 (the default) for a single part per task.
+   */
+  public static void setPartSize(Configuration conf, long partSize) {
+    conf.setLong(PART_SIZE, partSize);
+  }
+
+  public static long getPartSize(Configuration conf) {
+    return conf.getLong(PART_SIZE, 0);
+  }
+
+  /**
+   * Sets the uncompressed bytes between the points indexed in each part, or 0 (the default) for no index.
+   */
+  public static void setIndexInterval(Configuration conf, long indexInterval) {
+    conf.setLong(D2Index.INTERVAL, indexInterval);
+  }
+
+  public static long getIndexInterval(Configuration conf) {
+    return conf.getLong(D2Index.INTERVAL, 0);
+  }
+
+  @Override
+  public RecordWriter<K, V> getRecordWriter(TaskAttemptContext context) throws IOException {
+    Configuration conf = context.getConfiguration();
+    String separator = conf.get(SEPARATOR, "\t");
+    if (getPartSize(conf) > 0) {
+      return rollingRecordWriter(context, separator);
+    }
+    final Path file = getDefaultWorkFile(context, D2Utils.FILE_EXTENSION);
+    final FileSystem fs = file.getFileSystem(conf);
+    final long indexInterval = getIndexInterval(conf);
+    final D2CompressorStream part = new D2CompressorStream(fs.create(file, false), new D2Compressor(indexInterval));
+
+    return new LineRecordWriter<K, V>(new DataOutputStream(part), separator) {
+      @Override
+      public synchronized void close(TaskAttemptContext context) throws IOException {
+        super.close(context); // finishes the part, writing its footer
+        // alongside the part, so they are committed with it
+        D2Manifest.writeFragment(fs, file, part.getFooter());
+        if (indexInterval > 0) {
+          part.getIndex().write(fs, file);
+        }
+      }
+    };
+  }
+
+  private RecordWriter<K, V> rollingRecordWriter(TaskAttemptContext context, String separator) throws IOException {
+    Path base = getDefaultWorkFile(context, ""); // e.g. part-r-00000
+    final FileSystem fs = base.getFileSystem(context.getConfiguration());
+    final D2RollingOutputStream parts =
+      new D2RollingOutputStream(fs, base, getPartSize(context.getConfiguration()),
+                                getIndexInterval(context.getConfiguration()));
+
+    return new LineRecordWriter<K, V>(new DataOutputStream(parts), separator) {
+      @Override
+      public synchronized void write(K key, V value) throws IOException {
+        super.write(key, value);
+        parts.endRecord();
+      }
+
+      @Override
+      public synchronized void close(TaskAttemptContext context) throws IOException {
+        super.close(context);
+        for (Map.Entry<Path, D2Footer> part : parts.getManifest().getFooters().entrySet()) {
+          D2Manifest.writeFragment(fs, part.getKey(), part.getValue());
+        }
+      }
+    };
+  }
+
+  @Override
+  public synchronized OutputCommitter getOutputCommitter(TaskAttemptContext context) throws IOException {
+    if (committer == null) {
+      committer = new D2OutputCommitter(getOutputPath(context), context);
+    }
+    return committer;
+  }
+}
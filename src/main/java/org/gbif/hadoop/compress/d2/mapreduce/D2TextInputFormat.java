@@ -0,0 +1,117 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2.mapreduce;
+
+import org.gbif.hadoop.compress.d2.D2Footer;
+import org.gbif.hadoop.compress.d2.D2Index;
+import org.gbif.hadoop.compress.d2.D2IndexBuilder;
+import org.gbif.hadoop.compress.d2.D2Utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * Reads lines of text from D2 files as {@link org.apache.hadoop.mapreduce.lib.input.TextInputFormat} does, but splits
+ * each file at the points of its {@link D2Index} so that large files are read by several mappers.  Each split starts
+ * and ends at an indexed point, and decompresses only from its start, reading past its end only to finish its last
+ * line.  As with text files, the key is the offset of the line, here in the uncompressed data.
+ * <p/>
+ * Files are indexed when written with an index interval (see {@link D2OutputFormat#setIndexInterval}) or afterwards
+ * with {@link D2IndexBuilder}.  Files without an index are read by a single mapper.
+ */
+public class D2TextInputFormat extends FileInputFormat<LongWritable, Text> {
+
+  @Override
+  public RecordReader<LongWritable, Text> createRecordReader(InputSplit split, TaskAttemptContext context) {
+    String delimiter = context.getConfiguration().get("textinputformat.record.delimiter");
+    return new D2LineRecordReader(delimiter == null ? null : delimiter.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public List<InputSplit> getSplits(JobContext job) throws IOException {
+    long minSize = Math.max(getFormatMinSplitSize(), getMinSplitSize(job));
+    long maxSize = getMaxSplitSize(job);
+    List<FileStatus> files = listStatus(job);
+    List<InputSplit> splits = new ArrayList<>();
+    for (FileStatus file : files) {
+      FileSystem fs = file.getPath().getFileSystem(job.getConfiguration());
+      splits.addAll(getSplits(fs, file, computeSplitSize(file.getBlockSize(), minSize, maxSize)));
+    }
+    job.getConfiguration().setLong(NUM_INPUT_FILES, files.size());
+    return splits;
+  }
+
+  /**
+   * Splits a D2 file at the first indexed point after each split size of compressed data.  The last split runs to the
+   * end of the file, including the footer.
+   *
+   * @param fs        the filesystem holding the file
+   * @param file      the status of the D2 file
+   * @param splitSize the compressed size of the splits
+   *
+   * @return the splits of the file, in order
+   */
+  public static List<FileSplit> getSplits(FileSystem fs, FileStatus file, long splitSize) throws IOException {
+    Path path = file.getPath();
+    D2Footer footer = D2Utils.readFooter(fs, path);
+    D2Index index = D2Index.read(fs, path, footer);
+    BlockLocation[] blocks = file instanceof LocatedFileStatus
+      ? ((LocatedFileStatus) file).getBlockLocations()
+      : fs.getFileBlockLocations(file, 0, file.getLen());
+
+    List<FileSplit> splits = new ArrayList<>();
+    long start = 0;
+    if (index != null) {
+      for (int i = 1; i < index.size(); i++) {
+        long offset = index.getCompressedOffset(i);
+        if (offset - start >= splitSize) {
+          splits.add(new FileSplit(path, start, offset - start, hosts(blocks, start)));
+          start = offset;
+        }
+      }
+    }
+    splits.add(new FileSplit(path, start, file.getLen() - start, hosts(blocks, start)));
+    return splits;
+  }
+
+  /*
+   * The hosts of the block holding the offset, which is where the split starts reading.
+   */
+  private static String[] hosts(BlockLocation[] blocks, long offset) throws IOException {
+    if (blocks != null) {
+      for (BlockLocation block : blocks) {
+        if (offset >= block.getOffset() && offset < block.getOffset() + block.getLength()) {
+          return block.getHosts();
+        }
+      }
+    }
+    return new String[0];
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2.mapreduce;
+
+import org.gbif.hadoop.compress.d2.D2Manifest;
+import org.gbif.hadoop.compress.d2.D2PartMerger;
+import org.gbif.hadoop.compress.d2.zip.VirtualZipFile;
+import org.gbif.hadoop.compress.d2.zip.ZipEntry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * Commits the output of {@link D2ZipOutputFormat}, assembling the parts into a ZIP file with an entry for each entry
+ * name recorded in the manifest, in order of name.  The layout is that
+ * {@link org.gbif.hadoop.compress.d2.zip.ModalZipOutputStream} writes for pre-deflated entries, and the parts are merged
+ * into it by {@link D2PartMerger}, concatenated on HDFS or otherwise copied with concurrent reads.
+ */
+public class D2ZipOutputCommitter extends D2OutputCommitter {
+
+  public D2ZipOutputCommitter(Path outputPath, TaskAttemptContext context) throws IOException {
+    super(outputPath, context);
+  }
+
+  public D2ZipOutputCommitter(Path outputPath, JobContext context) throws IOException {
+    super(outputPath, context);
+  }
+
+  @Override
+  protected void commitManifest(JobContext context, FileSystem fs, D2Manifest manifest) throws IOException {
+    Configuration conf = context.getConfiguration();
+    Path outputPath = getOutputPath();
+    Path target = D2MergeOutputFormat.getPath(conf, outputPath, D2MergeOutputFormat.Format.ZIP);
+    boolean deleteParts = D2MergeOutputFormat.getDeleteParts(conf);
+    if (deleteParts && D2MergeOutputCommitter.isMerged(fs, manifest, target)) {
+      fs.delete(new Path(outputPath, D2Manifest.FILE_NAME), false);
+      return;
+    }
+
+    Map<String, D2Manifest> entries = manifest.groupByEntry();
+    List<byte[]> framing;
+    try (VirtualZipFile zip = new VirtualZipFile(fs)) {
+      for (Map.Entry<String, D2Manifest> entry : entries.entrySet()) {
+        ZipEntry e = new ZipEntry(entry.getKey());
+        e.setMethod(ZipEntry.DEFLATED);
+        zip.addEntry(e, entry.getValue());
+      }
+      framing = zip.getFraming();
+    }
+    D2PartMerger.merge(fs, framing, new ArrayList<>(entries.values()), target, deleteParts,
+                       D2MergeOutputFormat.getParallelism(conf));
+
+    if (deleteParts) {
+      fs.delete(new Path(outputPath, D2Manifest.FILE_NAME), false);
+    }
+  }
+}
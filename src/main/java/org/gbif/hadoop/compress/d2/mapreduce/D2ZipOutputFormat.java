@@ -0,0 +1,181 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2.mapreduce;
+
+import org.gbif.hadoop.compress.d2.D2Compressor;
+import org.gbif.hadoop.compress.d2.D2CompressorStream;
+import org.gbif.hadoop.compress.d2.D2Manifest;
+import org.gbif.hadoop.compress.d2.D2Utils;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * Writes lines of text to D2 parts destined for the entries of a single ZIP file, which {@link D2ZipOutputCommitter}
+ * assembles at job commit without inflating any data.  For example, one TSV entry per country from a job partitioned
+ * by country.
+ * <p/>
+ * By default each task (i.e. reducer partition) becomes an entry named by formatting its partition number with the
+ * pattern {@value #DEFAULT_ENTRY_NAME_PATTERN}, and lines are written as {@link D2OutputFormat} does.  Alternatively
+ * the entry names are taken from the keys with a suffix appended (such as DK.tsv for the key DK), and only the values
+ * are written.  A task then writes a part for each key it sees, and parts of the same entry from several tasks are
+ * concatenated in task order.  Subclasses may name entries otherwise by overriding
+ * {@link #getEntryName(Object, TaskAttemptContext)}.
+ * <p/>
+ * The file to write, whether parts are deleted and the parallelism of the copy are set with
+ * {@link D2MergeOutputFormat}, with the output directory with a .zip extension as the default file.
+ * <p/>
+ * Each part is written with a {@link org.gbif.hadoop.compress.d2.D2Index} where an index interval is set with
+ * {@link #setIndexInterval(Configuration, long)}, as for {@link D2OutputFormat}.  The part size set with
+ * {@link #setPartSize(Configuration, long)} does not apply, and each task writes a single part per entry.
+ */
+public class D2ZipOutputFormat<K, V> extends D2OutputFormat<K, V> {
+
+  public static final String ENTRY_NAMES_FROM_KEYS = "d2.zip.entry.names.from.keys";
+  public static final String ENTRY_NAME_PATTERN = "d2.zip.entry.name.pattern";
+  public static final String ENTRY_NAME_SUFFIX = "d2.zip.entry.name.suffix";
+
+  public static final String DEFAULT_ENTRY_NAME_PATTERN = "part-%05d.txt";
+  public static final String DEFAULT_ENTRY_NAME_SUFFIX = ".txt";
+
+  private D2ZipOutputCommitter committer;
+
+  /**
+   * Sets whether the entry names are taken from the keys, by default false.
+   */
+  public static void setEntryNamesFromKeys(Configuration conf, boolean fromKeys) {
+    conf.setBoolean(ENTRY_NAMES_FROM_KEYS, fromKeys);
+  }
+
+  /**
+   * Sets the pattern formatted with the partition number to name the entry of each task, when names are not taken from
+   * the keys.
+   */
+  public static void setEntryNamePattern(Configuration conf, String pattern) {
+    conf.set(ENTRY_NAME_PATTERN, pattern);
+  }
+
+  /**
+   * Sets the suffix appended to keys to name entries, when names are taken from the keys.
+   */
+  public static void setEntryNameSuffix(Configuration conf, String suffix) {
+    conf.set(ENTRY_NAME_SUFFIX, suffix);
+  }
+
+  /**
+   * Names the entry a record belongs to.
+   *
+   * @param key     of the record
+   * @param context of the task
+   */
+  protected String getEntryName(K key, TaskAttemptContext context) {
+    Configuration conf = context.getConfiguration();
+    if (conf.getBoolean(ENTRY_NAMES_FROM_KEYS, false)) {
+      return key + conf.get(ENTRY_NAME_SUFFIX, DEFAULT_ENTRY_NAME_SUFFIX);
+    }
+    return String.format(conf.get(ENTRY_NAME_PATTERN, DEFAULT_ENTRY_NAME_PATTERN),
+                         context.getTaskAttemptID().getTaskID().getId());
+  }
+
+  @Override
+  public RecordWriter<K, V> getRecordWriter(TaskAttemptContext context) throws IOException {
+    EntryRecordWriter writer = new EntryRecordWriter(context);
+    if (!context.getConfiguration().getBoolean(ENTRY_NAMES_FROM_KEYS, false)) {
+      // the entry of the partition, even if empty
+      writer.writerFor(getEntryName(null, context));
+    }
+    return writer;
+  }
+
+  @Override
+  public synchronized OutputCommitter getOutputCommitter(TaskAttemptContext context) throws IOException {
+    if (committer == null) {
+      committer = new D2ZipOutputCommitter(getOutputPath(context), context);
+    }
+    return committer;
+  }
+
+  /*
+   * Writes a D2 part for each entry, recording the entry name with the footer.
+   */
+  private class EntryRecordWriter extends RecordWriter<K, V> {
+    private final TaskAttemptContext context;
+    private final boolean valuesOnly;
+    private final String separator;
+    private final Map<String, Part> parts = new LinkedHashMap<>();
+
+    EntryRecordWriter(TaskAttemptContext context) {
+      this.context = context;
+      Configuration conf = context.getConfiguration();
+      valuesOnly = conf.getBoolean(ENTRY_NAMES_FROM_KEYS, false);
+      separator = conf.get(SEPARATOR, "\t");
+    }
+
+    @Override
+    public synchronized void write(K key, V value) throws IOException {
+      LineRecordWriter<Object, V> writer = writerFor(getEntryName(key, context)).writer;
+      writer.write(valuesOnly ? NullWritable.get() : key, value);
+    }
+
+    Part writerFor(String entryName) throws IOException {
+      Part part = parts.get(entryName);
+      if (part == null) {
+        // e.g. part-r-00000-0.def2
+        Path file = getDefaultWorkFile(context, "-" + parts.size() + D2Utils.FILE_EXTENSION);
+        Configuration conf = context.getConfiguration();
+        part = new Part(file, file.getFileSystem(conf), getIndexInterval(conf), separator);
+        parts.put(entryName, part);
+      }
+      return part;
+    }
+
+    @Override
+    public synchronized void close(TaskAttemptContext context) throws IOException {
+      for (Map.Entry<String, Part> entry : parts.entrySet()) {
+        Part part = entry.getValue();
+        part.writer.close(context); // finishes the part, writing its footer
+        D2Manifest.writeFragment(part.fs, part.file, part.stream.getFooter(), entry.getKey());
+        if (part.indexed) {
+          part.stream.getIndex().write(part.fs, part.file);
+        }
+      }
+    }
+  }
+
+  private class Part {
+    private final Path file;
+    private final FileSystem fs;
+    private final boolean indexed;
+    private final D2CompressorStream stream;
+    private final LineRecordWriter<Object, V> writer;
+
+    Part(Path file, FileSystem fs, long indexInterval, String separator) throws IOException {
+      this.file = file;
+      this.fs = fs;
+      indexed = indexInterval > 0;
+      stream = new D2CompressorStream(fs.create(file, false), new D2Compressor(indexInterval));
+      writer = new LineRecordWriter<>(new DataOutputStream(stream), separator);
+    }
+  }
+}
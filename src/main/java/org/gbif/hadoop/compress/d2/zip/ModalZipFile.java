@@ -0,0 +1,376 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2.zip;
+
+import org.gbif.hadoop.compress.d2.D2PartConverter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipException;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import static org.gbif.hadoop.compress.d2.zip.ZipConstants64.*;
+
+/**
+ * Reads the central directory of a ZIP file to provide the raw compressed
+ * data of its entries, such as those written by
+ * {@link ModalZipOutputStream}.
+ * <p/>
+ * The raw data of a DEFLATED entry can be provided as a D2 part, which
+ * allows entries of existing ZIP files to be merged into new entries (for
+ * example, joining yearly archives into one entry) with
+ * {@link ModalZipOutputStream#putEntry(ZipEntry, Iterable)} at copy speed
+ * rather than recompression speed.
+ * <p/>
+ * The file is read using positional reads, so works equally on local files
+ * and HDFS.
+ */
+public class ModalZipFile implements Closeable, ZipConstants {
+
+  // the END header is at the end of the file, preceded by up to 64K of comment
+  private static final int END_MAXLEN = 0xFFFF + ENDHDR;
+
+  private final FileSystem fs;
+  private final Path path;
+  private final FSDataInputStream in;
+  private final ZipCoder zc;
+  private final Map<String, ZipEntry> entries = new LinkedHashMap<>();
+  private final Map<ZipEntry, Long> offsets = new IdentityHashMap<>();
+  private long centralDirectoryOffset;
+  private byte[] comment;
+
+  /**
+   * Opens a ZIP file, reading the central directory.
+   *
+   * <p>The UTF-8 {@link java.nio.charset.Charset charset} is used
+   * to decode the entry names and comments, unless flagged otherwise.
+   *
+   * @param fs the filesystem holding the file
+   * @param path to the ZIP file
+   * @exception ZipException if a ZIP format error has occurred
+   * @exception IOException if an I/O error has occurred
+   */
+  public ModalZipFile(FileSystem fs, Path path) throws IOException {
+    this(fs, path, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Opens a ZIP file, reading the central directory.
+   *
+   * @param fs the filesystem holding the file
+   * @param path to the ZIP file
+   * @param charset the {@linkplain java.nio.charset.Charset charset}
+   *                used to decode the entry names and comments
+   * @exception ZipException if a ZIP format error has occurred
+   * @exception IOException if an I/O error has occurred
+   */
+  public ModalZipFile(FileSystem fs, Path path, Charset charset) throws IOException {
+    this.fs = fs;
+    this.path = path;
+    this.zc = ZipCoder.get(charset);
+    this.in = fs.open(path);
+    try {
+      readCentralDirectory(fs.getFileStatus(path).getLen());
+    } catch (IOException | RuntimeException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return the entries in central directory order
+   */
+  public List<ZipEntry> getEntries() {
+    return Collections.unmodifiableList(new ArrayList<>(entries.values()));
+  }
+
+  /**
+   * @return the named entry, or null if not present
+   */
+  public ZipEntry getEntry(String name) {
+    return entries.get(name);
+  }
+
+  /**
+   * @return the ZIP file comment, or null if none
+   */
+  public String getComment() {
+    return comment == null ? null : zc.toString(comment, comment.length);
+  }
+
+  /**
+   * Provides the raw data of the entry as stored in the file, which for a
+   * DEFLATED entry is the raw deflate data.
+   * @param e an entry of this file
+   * @exception IOException if an I/O error has occurred
+   */
+  public InputStream getRawInputStream(ZipEntry e) throws IOException {
+    final FSDataInputStream raw = fs.open(path);
+    raw.seek(getDataOffset(e));
+    final long length = e.csize;
+    return new InputStream() {
+      private long remaining = length;
+
+      @Override
+      public int read() throws IOException {
+        if (remaining <= 0) {
+          return -1;
+        }
+        remaining--;
+        return raw.read();
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining <= 0) {
+          return -1;
+        }
+        int r = raw.read(b, off, (int) Math.min(len, remaining));
+        if (r > 0) {
+          remaining -= r;
+        }
+        return r;
+      }
+
+      @Override
+      public void close() throws IOException {
+        raw.close();
+      }
+    };
+  }
+
+  /**
+   * Provides a DEFLATED entry as a D2 part, with the footer built from the
+   * CRC-32 and sizes of the central directory.  Entries built from D2 parts
+   * are provided at copy speed, while other entries are scanned once first
+   * to locate the end of the deflate data (see
+   * {@link D2PartConverter#openDeflate}).
+   * @param e an entry of this file
+   * @exception ZipException if the entry is not DEFLATED
+   * @exception IOException if an I/O error has occurred
+   */
+  public InputStream openD2Part(ZipEntry e) throws IOException {
+    if (e.method != ZipEntry.DEFLATED) {
+      throw new ZipException("Only DEFLATED entries can be provided as D2 parts: " + e.name);
+    }
+    return D2PartConverter.openDeflate(fs, path, getDataOffset(e), e.csize, e.crc, e.size);
+  }
+
+  /**
+   * @return the offset of the LOC header of the entry
+   */
+  long getLocalHeaderOffset(ZipEntry e) {
+    Long offset = offsets.get(e);
+    if (offset == null) {
+      throw new IllegalArgumentException("Not an entry of this file: " + e.name);
+    }
+    return offset;
+  }
+
+  /**
+   * @return the offset of the first CEN header, which is where the entry data ends
+   */
+  long getCentralDirectoryOffset() {
+    return centralDirectoryOffset;
+  }
+
+  /**
+   * @return the raw bytes of the ZIP file comment, or null if none
+   */
+  byte[] getRawComment() {
+    return comment;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /*
+   * Reads the LOC header of the entry, of which the name and extra field
+   * lengths may differ from those of the CEN header.
+   */
+  private long getDataOffset(ZipEntry e) throws IOException {
+    long offset = getLocalHeaderOffset(e);
+    byte[] loc = new byte[LOCHDR];
+    in.readFully(offset, loc);
+    if (get32(loc, 0) != LOCSIG) {
+      throw new ZipException("invalid LOC header (bad signature) for " + e.name);
+    }
+    return offset + LOCHDR + get16(loc, LOCNAM) + get16(loc, LOCEXT);
+  }
+
+  /*
+   * Locates the END header (and Zip64 END record if present) and reads the
+   * CEN headers it points to.
+   */
+  private void readCentralDirectory(long length) throws IOException {
+    int tailLength = (int) Math.min(length, END_MAXLEN);
+    byte[] tail = new byte[tailLength];
+    in.readFully(length - tailLength, tail);
+
+    // scan backwards for the END header, which must account for the rest of the file
+    int end = -1;
+    for (int i = tailLength - ENDHDR; i >= 0; i--) {
+      if (get32(tail, i) == ENDSIG && i + ENDHDR + get16(tail, i + ENDCOM) == tailLength) {
+        end = i;
+        break;
+      }
+    }
+    if (end == -1) {
+      throw new ZipException("zip END header not found");
+    }
+    int commentLength = get16(tail, end + ENDCOM);
+    if (commentLength > 0) {
+      comment = new byte[commentLength];
+      System.arraycopy(tail, end + ENDHDR, comment, 0, commentLength);
+    }
+    long total = get16(tail, end + ENDTOT);
+    long cenLength = get32(tail, end + ENDSIZ);
+    long cenOffset = get32(tail, end + ENDOFF);
+
+    if (total == ZIP64_MAGICCOUNT || cenLength == ZIP64_MAGICVAL || cenOffset == ZIP64_MAGICVAL) {
+      long endPosition = length - tailLength + end;
+      byte[] locator = new byte[ZIP64_LOCHDR];
+      in.readFully(endPosition - ZIP64_LOCHDR, locator);
+      if (get32(locator, 0) != ZIP64_LOCSIG) {
+        throw new ZipException("zip64 END locator not found");
+      }
+      byte[] end64 = new byte[ZIP64_ENDHDR];
+      in.readFully(get64(locator, ZIP64_LOCOFF), end64);
+      if (get32(end64, 0) != ZIP64_ENDSIG) {
+        throw new ZipException("zip64 END header not found");
+      }
+      total = get64(end64, ZIP64_ENDTOT);
+      cenLength = get64(end64, ZIP64_ENDSIZ);
+      cenOffset = get64(end64, ZIP64_ENDOFF);
+    }
+    if (cenLength > Integer.MAX_VALUE) {
+      throw new ZipException("central directory too large: " + cenLength + " bytes");
+    }
+    centralDirectoryOffset = cenOffset;
+
+    byte[] cen = new byte[(int) cenLength];
+    in.readFully(cenOffset, cen);
+    int pos = 0;
+    for (long i = 0; i < total; i++) {
+      pos = readCEN(cen, pos);
+    }
+  }
+
+  /*
+   * Reads a CEN header at the given position, returning the position of the
+   * following header.
+   */
+  private int readCEN(byte[] cen, int pos) throws IOException {
+    if (pos + CENHDR > cen.length || get32(cen, pos) != CENSIG) {
+      throw new ZipException("invalid CEN header (bad signature)");
+    }
+    int flag = get16(cen, pos + CENFLG);
+    int nlen = get16(cen, pos + CENNAM);
+    int elen = get16(cen, pos + CENEXT);
+    int clen = get16(cen, pos + CENCOM);
+    byte[] nameBytes = new byte[nlen];
+    System.arraycopy(cen, pos + CENHDR, nameBytes, 0, nlen);
+    String name = (flag & EFS) != 0 ? zc.toStringUTF8(nameBytes, nlen) : zc.toString(nameBytes, nlen);
+
+    ZipEntry e = new ZipEntry(name);
+    e.flag = flag;
+    e.method = get16(cen, pos + CENHOW);
+    e.time = get32(cen, pos + CENTIM);
+    e.crc = get32(cen, pos + CENCRC);
+    e.csize = get32(cen, pos + CENSIZ);
+    e.size = get32(cen, pos + CENLEN);
+    long offset = get32(cen, pos + CENOFF);
+
+    // the Zip64 extra field holds those values that did not fit, in order
+    int extraPos = pos + CENHDR + nlen;
+    int extraEnd = extraPos + elen;
+    byte[] extra = null;
+    while (extraPos + 4 <= extraEnd) {
+      int id = get16(cen, extraPos);
+      int size = get16(cen, extraPos + 2);
+      int data = extraPos + 4;
+      if (id == ZIP64_EXTID) {
+        if (e.size == ZIP64_MAGICVAL) {
+          e.size = get64(cen, data);
+          data += 8;
+        }
+        if (e.csize == ZIP64_MAGICVAL) {
+          e.csize = get64(cen, data);
+          data += 8;
+        }
+        if (offset == ZIP64_MAGICVAL) {
+          offset = get64(cen, data);
+        }
+      } else {
+        // keep other extra fields, as ModalZipOutputStream writes them
+        byte[] field = new byte[4 + size];
+        System.arraycopy(cen, extraPos, field, 0, field.length);
+        extra = extra == null ? field : concat(extra, field);
+      }
+      extraPos += 4 + size;
+    }
+    e.extra = extra;
+    if (clen > 0) {
+      byte[] commentBytes = new byte[clen];
+      System.arraycopy(cen, pos + CENHDR + nlen + elen, commentBytes, 0, clen);
+      e.comment = (flag & EFS) != 0 ? zc.toStringUTF8(commentBytes, clen) : zc.toString(commentBytes, clen);
+    }
+
+    entries.put(name, e);
+    offsets.put(e, offset);
+    return pos + CENHDR + nlen + elen + clen;
+  }
+
+  private static byte[] concat(byte[] first, byte[] second) {
+    byte[] result = new byte[first.length + second.length];
+    System.arraycopy(first, 0, result, 0, first.length);
+    System.arraycopy(second, 0, result, first.length, second.length);
+    return result;
+  }
+
+  /*
+   * Fetches an unsigned 16-bit value in little-endian byte order.
+   */
+  private static int get16(byte[] b, int off) {
+    return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8);
+  }
+
+  /*
+   * Fetches an unsigned 32-bit value in little-endian byte order.
+   */
+  private static long get32(byte[] b, int off) {
+    return (get16(b, off) | ((long) get16(b, off + 2) << 16)) & 0xffffffffL;
+  }
+
+  /*
+   * Fetches a signed 64-bit value in little-endian byte order.
+   */
+  private static long get64(byte[] b, int off) {
+    return get32(b, off) | (get32(b, off + 4) << 32);
+  }
+}
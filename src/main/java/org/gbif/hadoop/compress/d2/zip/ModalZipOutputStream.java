@@ -13,7 +13,12 @@
  */
 package org.gbif.hadoop.compress.d2.zip;
 
+import org.gbif.hadoop.compress.d2.D2CombineInputStream;
+import org.gbif.hadoop.compress.d2.D2StreamStatistics;
+import org.gbif.hadoop.compress.d2.D2Utils;
+
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
@@ -23,6 +28,11 @@ import java.util.zip.CRC32;
 import java.util.zip.Deflater;
 import java.util.zip.ZipException;
 
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.statistics.IOStatistics;
+import org.apache.hadoop.fs.statistics.IOStatisticsSource;
+
 import static org.gbif.hadoop.compress.d2.zip.ZipConstants64.*;
 
 /**
@@ -38,10 +48,15 @@ import static org.gbif.hadoop.compress.d2.zip.ZipConstants64.*;
  * patched.  <b>All</b> changes to the original are commented inline with
  * (Support modal behavior).
  *
+ * The entry bytes written, time spent deflating and blocked on the
+ * underlying streams, and the parts and footers read for pre-deflated
+ * entries are published as {@link IOStatistics}, as named by
+ * {@link D2StreamStatistics}.  (Support IO statistics)
+ *
  * @author      David Connelly
  * @author      Tim Robertson (Modal version)
  */
-public class ModalZipOutputStream extends DeflaterOutputStream implements ZipConstants {
+public class ModalZipOutputStream extends DeflaterOutputStream implements ZipConstants, IOStatisticsSource {
   // The mode in which the stream is operating
   // (Support modal behavior)
   public static enum MODE {DEFAULT, PRE_DEFLATED};
@@ -73,6 +88,9 @@ public class ModalZipOutputStream extends DeflaterOutputStream implements ZipCon
 
   private final ZipCoder zc;
 
+  // (Support IO statistics)
+  private final D2StreamStatistics statistics = new D2StreamStatistics();
+
   private static int version(ZipEntry e) throws ZipException {
     switch (e.method) {
       case DEFLATED: return 20;
@@ -129,6 +147,63 @@ public class ModalZipOutputStream extends DeflaterOutputStream implements ZipCon
     usesDefaultDeflater = true;
   }
 
+  /**
+   * Opens an existing ZIP file to append entries to it.
+   *
+   * <p>The UTF-8 {@link java.nio.charset.Charset charset} is used
+   * to decode and encode the entry names and comments.
+   *
+   * @see #append(FileSystem, Path, Charset)
+   */
+  public static ModalZipOutputStream append(FileSystem fs, Path path)
+    throws IOException
+  {
+    return append(fs, path, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Opens an existing ZIP file to append entries to it.  Only the central
+   * directory is read, and the file is truncated where it began so that new
+   * entries are written in its place.  On {@link #finish()} a central
+   * directory covering both the existing and the new entries is written.
+   * The existing entry data is neither read nor copied, so the cost of
+   * appending depends only on the size of the new entries.
+   * <p/>
+   * The filesystem must support truncate and append, as the local
+   * filesystem and HDFS do.  Note that the file is not a readable ZIP file
+   * again until the stream has been closed.
+   * (Support append)
+   * @param fs the filesystem holding the file
+   * @param path to the ZIP file
+   * @param charset the {@linkplain java.nio.charset.Charset charset}
+   *                used to decode and encode the entry names and comments
+   * @exception ZipException if a ZIP format error has occurred
+   * @exception IOException if an I/O error has occurred
+   */
+  public static ModalZipOutputStream append(FileSystem fs, Path path, Charset charset)
+    throws IOException
+  {
+    Vector<XEntry> existing = new Vector<>();
+    long cenOffset;
+    byte[] comment;
+    try (ModalZipFile zip = new ModalZipFile(fs, path, charset)) {
+      for (ZipEntry e : zip.getEntries()) {
+        existing.add(new XEntry(e, zip.getLocalHeaderOffset(e)));
+      }
+      cenOffset = zip.getCentralDirectoryOffset();
+      comment = zip.getRawComment();
+    }
+
+    ModalZipOutputStream zos = new ModalZipOutputStream(D2Utils.truncateForAppend(fs, path, cenOffset), charset);
+    for (XEntry xentry : existing) {
+      zos.xentries.add(xentry);
+      zos.names.add(xentry.entry.name);
+    }
+    zos.written = cenOffset;
+    zos.comment = comment;
+    return zos;
+  }
+
   /**
    * Sets the ZIP file comment.
    * @param comment the comment string
@@ -235,6 +310,33 @@ public class ModalZipOutputStream extends DeflaterOutputStream implements ZipCon
     }
   }
 
+  /**
+   * Writes a complete entry of pre-deflated D2 parts, in the order given,
+   * setting the sizes and CRC-32 of the entry from the part footers.
+   * Uncompressed content such as a header row may be inserted at any
+   * position by including a part from {@link D2Utils#asD2Part(byte[])}.
+   * The part streams are read to completion and closed.
+   * (Support modal behavior)
+   * @param e the ZIP entry to be written
+   * @param parts streams of raw D2 bytes, such as streams to .def2 files
+   * @exception ZipException if a ZIP format error has occurred
+   * @exception IOException if an I/O error has occurred
+   */
+  public void putEntry(ZipEntry e, Iterable<InputStream> parts)
+    throws IOException
+  {
+    putNextEntry(e, MODE.PRE_DEFLATED);
+    try (D2CombineInputStream in = new D2CombineInputStream(parts)) {
+      D2Utils.copy(in, this);
+      in.close(); // required to get the sizes
+      e.setSize(in.getUncompressedLength());
+      e.setCompressedSize(in.getCompressedLength());
+      e.setCrc(in.getCrc32());
+      statistics.addReads(in.getIOStatistics()); // (Support IO statistics)
+    }
+    closeEntry();
+  }
+
   /**
    * Closes the current ZIP entry and positions the stream for writing
    * the next entry.
@@ -306,6 +408,9 @@ public class ModalZipOutputStream extends DeflaterOutputStream implements ZipCon
         default:
           throw new ZipException("invalid compression method");
       }
+      // (Support IO statistics)
+      statistics.addUncompressedBytes(e.size);
+      statistics.addCompressedBytes(e.csize);
       crc.reset();
       current = null;
       mode = MODE.DEFAULT; // just for safety
@@ -341,7 +446,7 @@ public class ModalZipOutputStream extends DeflaterOutputStream implements ZipCon
         // If pre deflated, write to the underlying stream, else deflate
         // (Support modal behavior)
         if (mode == MODE.PRE_DEFLATED) {
-          out.write(b, off, len);
+          writeTimed(b, off, len);
         } else {
           super.write(b, off, len);
         }
@@ -353,7 +458,7 @@ public class ModalZipOutputStream extends DeflaterOutputStream implements ZipCon
           throw new ZipException(
             "attempt to write past end of STORED entry");
         }
-        out.write(b, off, len);
+        writeTimed(b, off, len);
         break;
       default:
         throw new ZipException("invalid compression method");
@@ -398,6 +503,53 @@ public class ModalZipOutputStream extends DeflaterOutputStream implements ZipCon
     }
   }
 
+  /**
+   * @return a live view of the statistics of the entries written
+   * (Support IO statistics)
+   */
+  @Override
+  public IOStatistics getIOStatistics() {
+    return statistics.getIOStatistics();
+  }
+
+  /**
+   * As parent, timing the deflater separately from the write of its output.
+   * (Support IO statistics)
+   */
+  @Override
+  protected void deflate() throws IOException {
+    long start = System.nanoTime();
+    int len = def.deflate(buf, 0, buf.length);
+    long deflated = System.nanoTime();
+    statistics.addDeflateNanos(deflated - start);
+    if (len > 0) {
+      out.write(buf, 0, len);
+      statistics.addBlockedNanos(System.nanoTime() - deflated);
+    }
+  }
+
+  /**
+   * As parent, recording the flush.
+   * (Support IO statistics)
+   */
+  @Override
+  public void flush() throws IOException {
+    long start = System.nanoTime();
+    super.flush();
+    statistics.addBlockedNanos(System.nanoTime() - start);
+    statistics.flushed();
+  }
+
+  /*
+   * Writes entry data to the underlying stream, recording the time blocked.
+   * (Support IO statistics)
+   */
+  private void writeTimed(byte[] b, int off, int len) throws IOException {
+    long start = System.nanoTime();
+    out.write(b, off, len);
+    statistics.addBlockedNanos(System.nanoTime() - start);
+  }
+
   /*
    * Writes local file (LOC) header for specified entry.
    */
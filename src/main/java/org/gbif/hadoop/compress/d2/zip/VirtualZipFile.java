@@ -0,0 +1,623 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2.zip;
+
+import org.gbif.hadoop.compress.d2.D2Channels;
+import org.gbif.hadoop.compress.d2.D2Footer;
+import org.gbif.hadoop.compress.d2.D2Manifest;
+import org.gbif.hadoop.compress.d2.D2Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipException;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+
+/**
+ * A ZIP file of entries built from D2 parts that is never materialised.
+ * Since the layout of the ZIP file is fully determined by the entry names
+ * and the part footers, it is computed once and any byte range is then
+ * served by generating the header bytes or reading slices of the part
+ * files.  This allows (e.g.) resumable downloads with HTTP range requests
+ * without storing the ZIP file alongside the parts.
+ * <p/>
+ * The bytes are exactly those {@link ModalZipOutputStream} writes when each
+ * entry is written with
+ * {@link ModalZipOutputStream#putEntry(ZipEntry, Iterable)}, with the
+ * entries in the order added.  The layout is computed on the first read,
+ * after which no more entries may be added.
+ * <p/>
+ * Reads are positional and may be made concurrently.  The whole ZIP file
+ * may also be written to a channel with
+ * {@link #transferTo(WritableByteChannel)}, which moves the entry data of
+ * local parts with {@link FileChannel#transferTo} and so never through the
+ * heap.
+ */
+public class VirtualZipFile implements Closeable {
+
+  // as D2Footer.FOOTER_CLOSE_DEFLATE, which ends the data of each entry
+  private static final byte[] CLOSE_DEFLATE = {(byte) 3, (byte) 0};
+
+  // slices up to this length are read and gathered with the surrounding headers rather than transferred
+  private static final int GATHER_MAX_SLICE = 0x10000; // 64K
+
+  private final FileSystem fs;
+  private final List<ZipEntry> entries = new ArrayList<>();
+  private final List<List<Source>> entryParts = new ArrayList<>();
+  private final Map<Path, FSDataInputStream> open = new HashMap<>();
+  private final Map<Path, FileChannel> openChannels = new HashMap<>();
+  private String comment;
+
+  // the layout as contiguous segments, with the position at which each starts
+  private List<Segment> segments;
+  private long[] starts;
+  private long length;
+  private long[] dataOffsets;
+  private long[] dataLengths; // excluding the closing bytes
+
+  /**
+   * @param fs the filesystem holding the part files
+   */
+  public VirtualZipFile(FileSystem fs) {
+    this.fs = fs;
+  }
+
+  /**
+   * For a ZIP file of entries built only from channels.
+   * @see #addChannelEntry(ZipEntry, List)
+   */
+  public VirtualZipFile() {
+    this(null);
+  }
+
+  /**
+   * Adds an entry of the D2 parts given in order.  The modification time of
+   * the entry is set now unless already set.
+   * @param e the ZIP entry, which must be DEFLATED if the method is set
+   * @param parts the D2 part files, such as .def2 files
+   * @exception ZipException if the entry is not DEFLATED
+   * @exception IllegalStateException if the layout has already been computed
+   */
+  public synchronized void addEntry(ZipEntry e, List<Path> parts) throws ZipException {
+    if (fs == null) {
+      throw new IllegalStateException("No filesystem was given to read the parts from");
+    }
+    List<Source> sources = new ArrayList<>();
+    for (Path part : parts) {
+      sources.add(new PathSource(part, null));
+    }
+    addSources(e, sources);
+  }
+
+  /**
+   * Adds an entry of the parts of the manifest in order.  The footers are
+   * taken from the manifest rather than read from the parts.
+   * @param e the ZIP entry, which must be DEFLATED if the method is set
+   * @param manifest the parts in order with their footers
+   * @exception ZipException if the entry is not DEFLATED
+   * @exception IllegalStateException if the layout has already been computed
+   */
+  public synchronized void addEntry(ZipEntry e, D2Manifest manifest) throws ZipException {
+    if (fs == null) {
+      throw new IllegalStateException("No filesystem was given to read the parts from");
+    }
+    List<Source> sources = new ArrayList<>();
+    for (Map.Entry<Path, D2Footer> part : manifest.getFooters().entrySet()) {
+      sources.add(new PathSource(part.getKey(), part.getValue()));
+    }
+    addSources(e, sources);
+  }
+
+  /**
+   * Adds an entry of the D2 parts given in order as channels, such as
+   * parts held in local files.  The channels are read with positional reads
+   * and are not closed by this class.
+   * @param e the ZIP entry, which must be DEFLATED if the method is set
+   * @param parts channels to the D2 part files
+   * @exception ZipException if the entry is not DEFLATED
+   * @exception IllegalStateException if the layout has already been computed
+   */
+  public synchronized void addChannelEntry(ZipEntry e, List<FileChannel> parts) throws ZipException {
+    List<Source> sources = new ArrayList<>();
+    for (FileChannel part : parts) {
+      sources.add(new ChannelSource(part));
+    }
+    addSources(e, sources);
+  }
+
+  private void addSources(ZipEntry e, List<Source> parts) throws ZipException {
+    checkNotLaidOut();
+    if (e.method != -1 && e.method != ZipEntry.DEFLATED) {
+      throw new ZipException("Only DEFLATED entries can be built from D2 parts: " + e.name);
+    }
+    if (e.time == -1) {
+      e.setTime(System.currentTimeMillis());
+    }
+    entries.add(e);
+    entryParts.add(parts);
+  }
+
+  /**
+   * Sets the ZIP file comment.
+   * @param comment the comment string
+   * @exception IllegalStateException if the layout has already been computed
+   */
+  public synchronized void setComment(String comment) {
+    checkNotLaidOut();
+    this.comment = comment;
+  }
+
+  /**
+   * @return the total length of the ZIP file
+   */
+  public long getLength() throws IOException {
+    layout();
+    return length;
+  }
+
+  /**
+   * Provides the position at which the compressed data of an entry starts,
+   * immediately after its local file header.  The data runs for the
+   * combined compressed length of the parts and the 2 closing bytes, and is
+   * followed by the data descriptor.
+   * @param index of the entry, in the order added
+   */
+  public long getDataOffset(int index) throws IOException {
+    layout();
+    return dataOffsets[index];
+  }
+
+  /**
+   * Provides the bytes that frame the compressed data of the parts: those
+   * before the data of the first entry, between the data of each entry and
+   * the next, and after the data of the last entry.  These are the headers,
+   * closing bytes, data descriptors and central directory, and with the data
+   * of the parts make up the ZIP file, such as when merging the parts with
+   * {@link org.gbif.hadoop.compress.d2.D2PartMerger}.
+   * @return one more framing than there are entries
+   */
+  public List<byte[]> getFraming() throws IOException {
+    layout();
+    List<byte[]> framing = new ArrayList<>();
+    long position = 0;
+    for (int i = 0; i < dataOffsets.length; i++) {
+      framing.add(readRange(position, dataOffsets[i]));
+      position = dataOffsets[i] + dataLengths[i];
+    }
+    framing.add(readRange(position, length));
+    return framing;
+  }
+
+  private byte[] readRange(long from, long to) throws IOException {
+    byte[] bytes = new byte[(int) (to - from)];
+    readFully(from, bytes, 0, bytes.length);
+    return bytes;
+  }
+
+  /**
+   * Reads up to the given number of bytes from the position, which may be
+   * fewer than requested only if the end of the ZIP file is reached.
+   * @param position in the ZIP file
+   * @param b the buffer to read into
+   * @param off the offset in the buffer
+   * @param len the maximum number of bytes to read
+   * @return the number of bytes read, or -1 if the position is at or beyond
+   *         the end of the ZIP file
+   * @exception IOException if an I/O error has occurred
+   */
+  public int read(long position, byte[] b, int off, int len) throws IOException {
+    layout();
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (position < 0) {
+      throw new IllegalArgumentException("Negative position: " + position);
+    }
+    if (position >= length) {
+      return -1;
+    }
+    int total = 0;
+    int index = segmentAt(position);
+    while (total < len && index < segments.size()) {
+      Segment segment = segments.get(index);
+      long within = position + total - starts[index];
+      int n = (int) Math.min(len - total, segment.length - within);
+      segment.read(within, b, off + total, n);
+      total += n;
+      index++;
+    }
+    return total;
+  }
+
+  /**
+   * Reads exactly the number of bytes requested from the position.
+   * @exception EOFException if the end of the ZIP file is reached first
+   * @exception IOException if an I/O error has occurred
+   */
+  public void readFully(long position, byte[] b, int off, int len) throws IOException {
+    int read = read(position, b, off, len);
+    if (read < len) {
+      throw new EOFException("Reached the end of the ZIP file reading " + len + " bytes at position " + position);
+    }
+  }
+
+  /**
+   * Provides the ZIP file from the given position to the end as a stream,
+   * such as for serving a range request.
+   * @param position in the ZIP file
+   */
+  public InputStream openStream(final long position) throws IOException {
+    layout();
+    return new InputStream() {
+      private long pos = position;
+      private final byte[] oneByte = new byte[1];
+
+      @Override
+      public int read() throws IOException {
+        return read(oneByte, 0, 1) == -1 ? -1 : oneByte[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+          return 0;
+        }
+        int r = VirtualZipFile.this.read(pos, b, off, len);
+        if (r > 0) {
+          pos += r;
+        }
+        return r;
+      }
+
+      @Override
+      public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, length - pos));
+        pos += skipped;
+        return skipped;
+      }
+
+      @Override
+      public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, length - pos));
+      }
+    };
+  }
+
+  /**
+   * Writes the whole ZIP file to the channel, which is not closed.  The
+   * generated bytes are written with gathering writes, together with short
+   * slices of the parts, while longer slices of channel parts or of parts on
+   * the local filesystem are transferred with
+   * {@link FileChannel#transferTo}.  The channel is expected to be in
+   * blocking mode.
+   * @param target such as a file or socket channel
+   * @return the number of bytes written
+   * @exception IOException if an I/O error has occurred
+   */
+  public long transferTo(WritableByteChannel target) throws IOException {
+    layout();
+    List<ByteBuffer> gathered = new ArrayList<>();
+    for (Segment segment : segments) {
+      if (segment instanceof SliceSegment && segment.length > GATHER_MAX_SLICE) {
+        SliceSegment slice = (SliceSegment) segment;
+        D2Channels.writeFully(target, gathered.toArray(new ByteBuffer[gathered.size()]));
+        gathered.clear();
+        slice.source.transferTo(slice.length, target);
+      } else {
+        byte[] bytes = new byte[(int) segment.length];
+        segment.read(0, bytes, 0, bytes.length);
+        gathered.add(ByteBuffer.wrap(bytes));
+      }
+    }
+    D2Channels.writeFully(target, gathered.toArray(new ByteBuffer[gathered.size()]));
+    return length;
+  }
+
+  /**
+   * Closes the part files opened for reading, but not the channels given
+   * as parts.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    IOException first = null;
+    List<Closeable> closeables = new ArrayList<>();
+    closeables.addAll(open.values());
+    closeables.addAll(openChannels.values());
+    for (Closeable in : closeables) {
+      try {
+        in.close();
+      } catch (IOException e) {
+        first = first == null ? e : first;
+      }
+    }
+    open.clear();
+    openChannels.clear();
+    if (first != null) {
+      throw first;
+    }
+  }
+
+  private void checkNotLaidOut() {
+    if (segments != null) {
+      throw new IllegalStateException("Entries cannot be changed once the layout is computed");
+    }
+  }
+
+  /*
+   * Computes the layout by writing the ZIP file with ModalZipOutputStream,
+   * recording the header bytes it writes and substituting slices of the
+   * part files for the entry data.
+   */
+  private synchronized void layout() throws IOException {
+    if (segments != null) {
+      return;
+    }
+    Recorder recorder = new Recorder();
+    long[] offsets = new long[entries.size()];
+    long[] lengths = new long[entries.size()];
+    try (ModalZipOutputStream zos = new ModalZipOutputStream(recorder)) {
+      zos.setComment(comment);
+      for (int i = 0; i < entries.size(); i++) {
+        ZipEntry e = entries.get(i);
+        List<D2Footer> footers = new ArrayList<>();
+        zos.putNextEntry(e, ModalZipOutputStream.MODE.PRE_DEFLATED);
+        offsets[i] = recorder.written;
+        for (Source part : entryParts.get(i)) {
+          D2Footer footer = part.footer();
+          footers.add(footer);
+          recorder.slice(part, footer.getCompressedLength()); // the data, without the footer
+        }
+        recorder.write(CLOSE_DEFLATE);
+
+        // as ModalZipOutputStream#putEntry sets them
+        D2Footer combined = D2Footer.combine(footers);
+        lengths[i] = combined.getCompressedLength();
+        e.setSize(combined.getUncompressedLength());
+        e.setCompressedSize(combined.getCompressedLength() + CLOSE_DEFLATE.length);
+        e.setCrc(combined.getCrc());
+        zos.closeEntry();
+      }
+      zos.finish();
+    }
+    recorder.literal();
+
+    List<Segment> laidOut = recorder.segments;
+    long[] positions = new long[laidOut.size()];
+    long position = 0;
+    for (int i = 0; i < laidOut.size(); i++) {
+      positions[i] = position;
+      position += laidOut.get(i).length;
+    }
+    starts = positions;
+    length = position;
+    dataOffsets = offsets;
+    dataLengths = lengths;
+    segments = laidOut;
+  }
+
+  /*
+   * Finds the index of the segment holding the position by binary search.
+   */
+  private int segmentAt(long position) {
+    int low = 0;
+    int high = starts.length - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (starts[mid] <= position) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+
+  private synchronized FSDataInputStream open(Path path) throws IOException {
+    FSDataInputStream in = open.get(path);
+    if (in == null) {
+      in = fs.open(path);
+      open.put(path, in);
+    }
+    return in;
+  }
+
+  /*
+   * Opens a channel to a file of the local filesystem, or returns null if
+   * the file is on another filesystem.
+   */
+  private synchronized FileChannel openChannel(Path path) throws IOException {
+    FileChannel channel = openChannels.get(path);
+    if (channel == null) {
+      java.io.File file;
+      if (fs instanceof LocalFileSystem) {
+        file = ((LocalFileSystem) fs).pathToFile(path);
+      } else if (fs instanceof RawLocalFileSystem) {
+        file = ((RawLocalFileSystem) fs).pathToFile(path);
+      } else {
+        return null;
+      }
+      channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      openChannels.put(path, channel);
+    }
+    return channel;
+  }
+
+  /*
+   * A D2 part, of which the footer is read and the compressed data sliced.
+   */
+  private interface Source {
+    D2Footer footer() throws IOException;
+
+    void read(long position, byte[] b, int off, int len) throws IOException;
+
+    /*
+     * Writes the first length bytes of the part to the target.
+     */
+    void transferTo(long length, WritableByteChannel target) throws IOException;
+  }
+
+  private class PathSource implements Source {
+    private final Path path;
+    private final D2Footer footer; // null if to be read from the part
+
+    PathSource(Path path, D2Footer footer) {
+      this.path = path;
+      this.footer = footer;
+    }
+
+    @Override
+    public D2Footer footer() throws IOException {
+      return footer != null ? footer : D2Utils.readFooter(fs, path);
+    }
+
+    @Override
+    public void read(long position, byte[] b, int off, int len) throws IOException {
+      open(path).readFully(position, b, off, len);
+    }
+
+    @Override
+    public void transferTo(long length, WritableByteChannel target) throws IOException {
+      FileChannel channel = openChannel(path);
+      if (channel != null) {
+        D2Channels.transferFully(channel, 0, length, target);
+      } else {
+        // not a local file, so copy through a buffer
+        byte[] buffer = new byte[GATHER_MAX_SLICE];
+        for (long position = 0; position < length; position += buffer.length) {
+          int n = (int) Math.min(buffer.length, length - position);
+          read(position, buffer, 0, n);
+          D2Channels.writeFully(target, ByteBuffer.wrap(buffer, 0, n));
+        }
+      }
+    }
+  }
+
+  private static class ChannelSource implements Source {
+    private final FileChannel channel;
+
+    ChannelSource(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public D2Footer footer() throws IOException {
+      return D2Channels.readFooter(channel);
+    }
+
+    @Override
+    public void read(long position, byte[] b, int off, int len) throws IOException {
+      D2Channels.readFully(channel, position, ByteBuffer.wrap(b, off, len));
+    }
+
+    @Override
+    public void transferTo(long length, WritableByteChannel target) throws IOException {
+      D2Channels.transferFully(channel, 0, length, target);
+    }
+  }
+
+  /*
+   * A contiguous range of the ZIP file, being either generated bytes or a
+   * slice of a part file.
+   */
+  private abstract static class Segment {
+    final long length;
+
+    Segment(long length) {
+      this.length = length;
+    }
+
+    abstract void read(long position, byte[] b, int off, int len) throws IOException;
+  }
+
+  private static class LiteralSegment extends Segment {
+    private final byte[] bytes;
+
+    LiteralSegment(byte[] bytes) {
+      super(bytes.length);
+      this.bytes = bytes;
+    }
+
+    @Override
+    void read(long position, byte[] b, int off, int len) {
+      System.arraycopy(bytes, (int) position, b, off, len);
+    }
+  }
+
+  private static class SliceSegment extends Segment {
+    private final Source source;
+
+    SliceSegment(Source source, long length) {
+      super(length);
+      this.source = source;
+    }
+
+    @Override
+    void read(long position, byte[] b, int off, int len) throws IOException {
+      source.read(position, b, off, len);
+    }
+  }
+
+  /*
+   * Records what is written as literal segments, interleaved with slices of
+   * part files.
+   */
+  private class Recorder extends OutputStream {
+    private final List<Segment> segments = new ArrayList<>();
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long written;
+
+    @Override
+    public void write(int b) {
+      pending.write(b);
+      written++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      pending.write(b, off, len);
+      written += len;
+    }
+
+    void slice(Source source, long length) {
+      literal();
+      written += length;
+      if (length > 0) {
+        segments.add(new SliceSegment(source, length));
+      }
+    }
+
+    void literal() {
+      if (pending.size() > 0) {
+        segments.add(new LiteralSegment(pending.toByteArray()));
+        pending.reset();
+      }
+    }
+  }
+}
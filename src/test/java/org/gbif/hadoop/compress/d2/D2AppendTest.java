@@ -0,0 +1,130 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests appending to D2 files in place.
+ */
+public class D2AppendTest {
+
+  private static final byte[] ORIGINAL = RandomStringUtils.randomAlphabetic(100000).getBytes(StandardCharsets.UTF_8);
+  private static final byte[] INCREMENT = RandomStringUtils.randomAlphabetic(20000).getBytes(StandardCharsets.UTF_8);
+
+  @Test
+  public void testAppendLocal() throws IOException {
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    assertAppends(fs, new Path(Files.createTempDirectory("d2-append").toUri().toString(), "data.def2"));
+  }
+
+  @Test
+  public void testAppendHdfs() throws IOException {
+    Configuration conf = new Configuration();
+    File baseDir = Files.createTempDirectory("d2-append-hdfs").toFile();
+    conf.set(MiniDFSCluster.HDFS_MINIDFS_BASEDIR, baseDir.getAbsolutePath());
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1).build();
+    try {
+      assertAppends(cluster.getFileSystem(), new Path("/data.def2"));
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  /**
+   * An interrupted append must leave a file that fails to read, until it is recovered to the original.
+   */
+  @Test
+  public void testInterruptedAppend() throws IOException {
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    Path path = new Path(Files.createTempDirectory("d2-interrupted").toUri().toString(), "data.def2");
+    write(fs, path, ORIGINAL);
+
+    OutputStream interrupted = D2Utils.append(fs, path);
+    interrupted.write(INCREMENT);
+    interrupted.flush(); // data reaches the file, but the footer is never written
+
+    try {
+      D2Utils.readFooter(fs, path);
+      Assert.fail("A file with an interrupted append must not read as valid");
+    } catch (IOException expected) {
+      // expected
+    }
+
+    Assert.assertTrue("Interrupted append should have been recovered", D2Utils.recoverAppend(fs, path));
+    Assert.assertFalse("Nothing further to recover", D2Utils.recoverAppend(fs, path));
+    assertContent(fs, path, ORIGINAL);
+
+    // and can be appended to once more
+    try (OutputStream out = D2Utils.append(fs, path)) {
+      out.write(INCREMENT);
+    }
+    assertContent(fs, path, ORIGINAL, INCREMENT);
+  }
+
+  private static void assertAppends(FileSystem fs, Path path) throws IOException {
+    write(fs, path, ORIGINAL);
+    long originalLength = fs.getFileStatus(path).getLen();
+
+    try (OutputStream out = D2Utils.append(fs, path)) {
+      out.write(INCREMENT);
+    }
+    Assert.assertFalse("Journal should be removed", fs.exists(D2AppendStream.journalPath(path)));
+    Assert.assertTrue("File should have grown", fs.getFileStatus(path).getLen() > originalLength);
+    assertContent(fs, path, ORIGINAL, INCREMENT);
+
+    try (OutputStream out = D2Utils.append(fs, path)) {
+      out.write(INCREMENT);
+    }
+    assertContent(fs, path, ORIGINAL, INCREMENT, INCREMENT);
+  }
+
+  private static void write(FileSystem fs, Path path, byte[] data) throws IOException {
+    D2Utils.compress(new ByteArrayInputStream(data), fs.create(path, true));
+  }
+
+  /**
+   * Verifies the file decompresses to the expected content, and the footer describes it.
+   */
+  private static void assertContent(FileSystem fs, Path path, byte[]... expectedParts) throws IOException {
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    for (byte[] part : expectedParts) {
+      expected.write(part);
+    }
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    D2Utils.decompress(D2Utils.prepareD2Stream(fs.open(path)), actual);
+    Assert.assertArrayEquals("Content is not as expected", expected.toByteArray(), actual.toByteArray());
+
+    D2Footer footer = D2Utils.readFooter(fs, path);
+    CRC32 crc = new CRC32();
+    crc.update(expected.toByteArray());
+    Assert.assertEquals("Length is not as expected", expected.size(), footer.getUncompressedLength());
+    Assert.assertEquals("CRC-32 is not as expected", crc.getValue(), footer.getCrc());
+  }
+}
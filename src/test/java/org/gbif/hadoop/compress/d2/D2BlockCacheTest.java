@@ -0,0 +1,95 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests readers sharing a cache inflate each block once, and the cache stays within its capacity.
+ */
+public class D2BlockCacheTest {
+
+  @Test
+  public void testSharedReaders() throws IOException {
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    Path file = new Path(Files.createTempDirectory("d2-cache").toUri().toString(), "part-r-00000.def2");
+    byte[] expected = D2SeekableInputStreamTest.write(fs, file, 16 * 1024);
+    D2BlockCache cache = new D2BlockCache(64L << 20);
+
+    try (D2SeekableInputStream in = D2Utils.openSeekable(fs, file, cache)) {
+      D2SeekableInputStreamTest.assertRandomReads(in, expected);
+    }
+    long misses = cache.getMissCount();
+    Assert.assertTrue("Blocks should be cached", cache.getSize() > 0);
+    Assert.assertTrue("Each block should be inflated once", misses <= D2Index.read(fs, file, D2Utils.readFooter(fs, file))
+      .size());
+
+    // a second reader reads the same pages from the cache
+    try (D2SeekableInputStream in = D2Utils.openSeekable(fs, file, cache)) {
+      D2SeekableInputStreamTest.assertRandomReads(in, expected);
+    }
+    Assert.assertEquals("The second reader should only hit the cache", misses, cache.getMissCount());
+    Assert.assertTrue("Expected cache hits", cache.getHitCount() > 0);
+  }
+
+  @Test
+  public void testEviction() {
+    D2BlockCache cache = new D2BlockCache(1000);
+    byte[] block = new byte[200];
+    for (int i = 0; i < 10; i++) {
+      Arrays.fill(block, (byte) i);
+      cache.put("file", i * 100, block, block.length);
+    }
+    Assert.assertEquals("Cache should be full", 1000, cache.getSize());
+    Assert.assertEquals(5, cache.getEvictionCount());
+    Assert.assertNull("The least recently used should be evicted", cache.get("file", 0));
+
+    ByteBuffer cached = cache.get("file", 900);
+    Assert.assertNotNull(cached);
+    Assert.assertEquals(200, cached.remaining());
+    Assert.assertEquals(9, cached.get(0));
+    Assert.assertEquals(1, cache.getHitCount());
+    Assert.assertEquals(1, cache.getMissCount());
+
+    // too large to cache, but still provided
+    Assert.assertEquals(300, cache.put("file", 1000, new byte[300], 300).remaining());
+    Assert.assertNull(cache.get("file", 1000));
+  }
+
+  @Test
+  public void testMaxBlockSize() {
+    D2BlockCache cache = new D2BlockCache(D2BlockCache.DEFAULT_CAPACITY);
+    Assert.assertTrue(cache.isCacheable(D2BlockCache.MAX_BLOCK_SIZE));
+    Assert.assertFalse("Blocks are capped regardless of the capacity",
+                       cache.isCacheable(D2BlockCache.MAX_BLOCK_SIZE + 1));
+  }
+
+  @Test
+  public void testParseCapacity() {
+    Assert.assertEquals(1000, D2BlockCache.parseCapacity("1000"));
+    Assert.assertEquals(D2BlockCache.DEFAULT_CAPACITY, D2BlockCache.parseCapacity(null));
+    Assert.assertEquals(D2BlockCache.DEFAULT_CAPACITY, D2BlockCache.parseCapacity("128MB"));
+    Assert.assertEquals(D2BlockCache.DEFAULT_CAPACITY, D2BlockCache.parseCapacity("0"));
+    Assert.assertEquals(D2BlockCache.DEFAULT_CAPACITY, D2BlockCache.parseCapacity("-1"));
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests assembling parts through channels.
+ */
+public class D2ChannelsTest {
+
+  @Test
+  public void testTransfer() throws IOException {
+    Path dir = Files.createTempDirectory("d2-channels");
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    List<FileChannel> parts = new ArrayList<>();
+    Path target = dir.resolve("all.def2");
+    try {
+      for (int i = 0; i < 4; i++) {
+        byte[] data = RandomStringUtils.randomAlphabetic(50000 * (i + 1)).getBytes(StandardCharsets.UTF_8);
+        expected.write(data);
+        Path part = dir.resolve("part-" + i + D2Utils.FILE_EXTENSION);
+        D2Utils.compress(new ByteArrayInputStream(data), Files.newOutputStream(part));
+        parts.add(FileChannel.open(part, StandardOpenOption.READ));
+      }
+      try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+        D2Footer footer = D2Channels.transfer(parts, out);
+        CRC32 crc = new CRC32();
+        crc.update(expected.toByteArray());
+        Assert.assertEquals("CRC-32 is not as expected", crc.getValue(), footer.getCrc());
+        Assert.assertEquals("Length is not as expected", expected.size(), footer.getUncompressedLength());
+      }
+    } finally {
+      for (FileChannel part : parts) {
+        part.close();
+      }
+    }
+
+    // the result is a single D2 file
+    try (FileChannel in = FileChannel.open(target, StandardOpenOption.READ)) {
+      Assert.assertEquals("Footer is not as expected", expected.size(), D2Channels.readFooter(in).getUncompressedLength());
+    }
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    D2Utils.decompress(D2Utils.prepareD2Stream(Files.newInputStream(target)), actual);
+    Assert.assertArrayEquals("Content is not as expected", expected.toByteArray(), actual.toByteArray());
+  }
+}
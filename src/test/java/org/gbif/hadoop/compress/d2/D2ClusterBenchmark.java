@@ -0,0 +1,283 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import org.gbif.hadoop.compress.d2.mapreduce.D2OutputFormat;
+import org.gbif.hadoop.compress.d2.zip.VirtualZipFile;
+import org.gbif.hadoop.compress.d2.zip.ZipEntry;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.ClusterMapReduceTestCase;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Measures the end to end costs of D2 output on a mini cluster: a job writing D2 parts with each number of reducers,
+ * then scanning the part footers, merging the parts into a .def2 file and assembling them into a ZIP file.  These
+ * include the HDFS opens, per part latency and committer time that microbenchmarks miss.
+ * <p/>
+ * The .def2 merge is timed both by copying the parts and by concatenating them with HDFS concat, as the committers do
+ * when the parts are deleted once merged.  The latter runs on a copy of the parts, which is not timed.
+ * <p/>
+ * This is not run by the build, as the name does not match the tests Surefire runs.  Run it on demand with:
+ * <pre>
+ *   mvn test -Dtest=D2ClusterBenchmark -Dd2.benchmark.records=100000,1000000 -Dd2.benchmark.reducers=1,8,32
+ * </pre>
+ * Each run appends a line of JSON per combination to {@value #DEFAULT_RESULTS} (or the file named by
+ * {@code d2.benchmark.results}), labelled by {@code d2.benchmark.label} so results can be tracked across releases.
+ */
+public class D2ClusterBenchmark extends ClusterMapReduceTestCase {
+
+  private static final String DEFAULT_RESULTS = "target/d2-cluster-benchmark.jsonl";
+
+  private static final List<Integer> RECORDS = intList("d2.benchmark.records", "20000,200000");
+  private static final List<Integer> REDUCERS = intList("d2.benchmark.reducers", "1,4,16");
+  private static final int RECORD_LENGTH = Integer.getInteger("d2.benchmark.recordLength", 200);
+  private static final int INPUT_FILES = Integer.getInteger("d2.benchmark.inputFiles", 4);
+  private static final String LABEL = System.getProperty("d2.benchmark.label", "dev");
+  private static final File RESULTS = new File(System.getProperty("d2.benchmark.results", DEFAULT_RESULTS));
+
+  @BeforeClass
+  public static void setupClass() throws Exception {
+    setupClassBase(D2ClusterBenchmark.class);
+  }
+
+  @Before
+  @Override
+  public void setUp() throws Exception {
+    // required or the cluster will not start
+    System.setProperty("hadoop.log.dir", "target/logs");
+    // lets the task JVMs run on Java 9 and later, and is ignored by Java 8
+    Properties props = new Properties();
+    String opts = "-XX:+IgnoreUnrecognizedVMOptions --add-opens=java.base/java.lang=ALL-UNNAMED";
+    props.setProperty("yarn.app.mapreduce.am.command-opts", opts);
+    props.setProperty("mapreduce.map.java.opts", opts);
+    props.setProperty("mapreduce.reduce.java.opts", opts);
+    startCluster(true, props);
+  }
+
+  @After
+  @Override
+  public void tearDown() throws Exception {
+    stopCluster();
+  }
+
+  @Test
+  public void benchmark() throws Exception {
+    FileSystem fs = getFileSystem();
+    File parent = RESULTS.getAbsoluteFile().getParentFile();
+    if (parent != null && !parent.exists() && !parent.mkdirs()) {
+      throw new IOException("Unable to create " + parent);
+    }
+    try (Writer results = new BufferedWriter(new OutputStreamWriter(
+      new FileOutputStream(RESULTS, true), StandardCharsets.UTF_8))) {
+      for (int records : RECORDS) {
+        Path input = new Path("benchmark/input-" + records);
+        long inputBytes = writeInput(fs, input, records);
+        for (int reducers : REDUCERS) {
+          Map<String, Object> result = run(fs, input, records, inputBytes, reducers);
+          results.write(toJson(result));
+          results.write('\n');
+          results.flush();
+          System.out.println("D2 cluster benchmark: " + toJson(result));
+        }
+      }
+    }
+  }
+
+  private Map<String, Object> run(FileSystem fs, Path input, int records, long inputBytes, int reducers)
+    throws Exception {
+    Path output = new Path("benchmark/output-" + records + "-" + reducers);
+    Job job = Job.getInstance(createJobConf());
+    job.setJobName("D2 benchmark " + records + " records, " + reducers + " reducers");
+    job.setInputFormatClass(TextInputFormat.class);
+    job.setMapperClass(SpreadMapper.class);
+    job.setReducerClass(ValueReducer.class);
+    job.setNumReduceTasks(reducers);
+    job.setMapOutputKeyClass(LongWritable.class);
+    job.setMapOutputValueClass(Text.class);
+    job.setOutputKeyClass(NullWritable.class);
+    job.setOutputValueClass(Text.class);
+    job.setOutputFormatClass(D2OutputFormat.class);
+    FileInputFormat.setInputPaths(job, input);
+    FileOutputFormat.setOutputPath(job, output);
+
+    long start = System.nanoTime();
+    Assert.assertTrue("Benchmark job failed", job.waitForCompletion(false));
+    long jobMillis = millisSince(start);
+
+    start = System.nanoTime();
+    D2Manifest manifest = D2FooterScanner.scan(fs, new Path(output, "part-*" + D2Utils.FILE_EXTENSION));
+    long scanMillis = millisSince(start);
+    Assert.assertEquals("Parts should hold the input", inputBytes, manifest.getUncompressedLength());
+
+    start = System.nanoTime();
+    D2PartMerger.merge(fs, manifest, new Path(output, "merged" + D2Utils.FILE_EXTENSION), false,
+                       D2PartMerger.DEFAULT_PARALLELISM);
+    long mergeMillis = millisSince(start);
+
+    // concat consumes the parts, so it merges a copy of them
+    Path copies = new Path(output, "concat");
+    for (Path part : manifest.getParts()) {
+      FileUtil.copy(fs, part, fs, new Path(copies, part.getName()), false, fs.getConf());
+    }
+    D2Manifest copied = D2FooterScanner.scan(fs, new Path(copies, "part-*" + D2Utils.FILE_EXTENSION));
+    start = System.nanoTime();
+    Path concatenated = new Path(output, "concatenated" + D2Utils.FILE_EXTENSION);
+    D2PartMerger.merge(fs, copied, concatenated, true, D2PartMerger.DEFAULT_PARALLELISM);
+    long concatMillis = millisSince(start);
+    Assert.assertEquals("Concatenated file should hold the input", inputBytes,
+                        D2Utils.readFooter(fs, concatenated).getUncompressedLength());
+
+    start = System.nanoTime();
+    List<byte[]> framing;
+    try (VirtualZipFile zip = new VirtualZipFile(fs)) {
+      ZipEntry entry = new ZipEntry("data.txt");
+      entry.setMethod(ZipEntry.DEFLATED);
+      zip.addEntry(entry, manifest);
+      framing = zip.getFraming();
+    }
+    D2PartMerger.merge(fs, framing, Collections.singletonList(manifest), new Path(output, "data.zip"), false,
+                       D2PartMerger.DEFAULT_PARALLELISM);
+    long zipMillis = millisSince(start);
+
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("label", LABEL);
+    result.put("timestamp", System.currentTimeMillis());
+    result.put("java", System.getProperty("java.version"));
+    result.put("records", records);
+    result.put("inputBytes", inputBytes);
+    result.put("reducers", reducers);
+    result.put("parts", manifest.getParts().size());
+    result.put("compressedBytes", manifest.getCompressedLength());
+    result.put("jobMillis", jobMillis);
+    result.put("scanMillis", scanMillis);
+    result.put("mergeMillis", mergeMillis);
+    result.put("concatMillis", concatMillis);
+    result.put("zipMillis", zipMillis);
+    return result;
+  }
+
+  /**
+   * Writes tab delimited records across the input files, returning the number of bytes written.
+   */
+  private static long writeInput(FileSystem fs, Path dir, int records) throws IOException {
+    Random random = new Random(records);
+    String[] words = {"Puma", "concolor", "Alces", "alces", "Animalia", "Chordata", "HUMAN_OBSERVATION", "DK", "GB"};
+    long bytes = 0;
+    int perFile = (records + INPUT_FILES - 1) / INPUT_FILES;
+    for (int file = 0; file * perFile < records; file++) {
+      try (OutputStream out = fs.create(new Path(dir, "input-" + file + ".txt"))) {
+        for (int i = file * perFile; i < Math.min(records, (file + 1) * perFile); i++) {
+          StringBuilder line = new StringBuilder(RECORD_LENGTH + 20).append(i);
+          while (line.length() < RECORD_LENGTH) {
+            line.append('\t').append(words[random.nextInt(words.length)]).append(random.nextInt(1000));
+          }
+          byte[] data = line.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+          out.write(data);
+          bytes += data.length;
+        }
+      }
+    }
+    return bytes;
+  }
+
+  private static long millisSince(long start) {
+    return (System.nanoTime() - start) / 1000000;
+  }
+
+  /*
+   * Writes the flat result as a single line of JSON, quoting the strings.
+   */
+  private static String toJson(Map<String, Object> result) {
+    StringBuilder json = new StringBuilder("{");
+    for (Map.Entry<String, Object> field : result.entrySet()) {
+      if (json.length() > 1) {
+        json.append(',');
+      }
+      json.append('"').append(field.getKey()).append("\":");
+      Object value = field.getValue();
+      if (value instanceof Number) {
+        json.append(value);
+      } else {
+        json.append('"').append(String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+      }
+    }
+    return json.append('}').toString();
+  }
+
+  private static List<Integer> intList(String property, String defaults) {
+    List<Integer> values = new ArrayList<>();
+    for (String value : System.getProperty(property, defaults).split(",")) {
+      values.add(Integer.parseInt(value.trim()));
+    }
+    return values;
+  }
+
+  /**
+   * Spreads the records across the reducers by hashing the line.
+   */
+  public static class SpreadMapper extends Mapper<LongWritable, Text, LongWritable, Text> {
+    private final LongWritable key = new LongWritable();
+
+    @Override
+    protected void map(LongWritable offset, Text value, Context context) throws IOException, InterruptedException {
+      key.set(value.hashCode());
+      context.write(key, value);
+    }
+  }
+
+  /**
+   * Writes the records alone.
+   */
+  public static class ValueReducer extends Reducer<LongWritable, Text, NullWritable, Text> {
+    @Override
+    protected void reduce(LongWritable key, Iterable<Text> values, Context context)
+      throws IOException, InterruptedException {
+      for (Text value : values) {
+        context.write(NullWritable.get(), value);
+      }
+    }
+  }
+}
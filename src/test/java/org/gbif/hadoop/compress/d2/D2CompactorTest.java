@@ -0,0 +1,141 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests many small parts are compacted into fewer parts holding the same data in order, and that an interrupted
+ * compaction is resumed.
+ */
+public class D2CompactorTest {
+
+  private static final int PARTS = 200;
+  private static final long TARGET_SIZE = 32 * 1024;
+  private static final int FAN_IN = 4;
+
+  @Test
+  public void testCompact() throws IOException {
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    Path dir = new Path(Files.createTempDirectory("d2-compact").toUri().toString());
+    byte[] expected = writeParts(fs, dir);
+    D2FooterScanner.scan(fs, new Path(dir, "part-*")).write(fs, new Path(dir, D2Manifest.FILE_NAME));
+
+    D2Manifest compacted = D2Compactor.compact(fs, new Path(dir, "part-*"), TARGET_SIZE, FAN_IN, 4);
+    Assert.assertTrue("Expected fewer parts", compacted.getParts().size() < PARTS / FAN_IN);
+    Assert.assertEquals("The first part keeps its name", "part-00000.def2", compacted.getParts().get(0).getName());
+    for (D2Footer footer : compacted.getFooterList()) {
+      Assert.assertTrue("Parts should not exceed the target",
+                        footer.getCompressedLength() + D2Footer.FOOTER_LENGTH <= TARGET_SIZE);
+    }
+    Assert.assertArrayEquals("Data should be unchanged and in order", expected, read(fs, dir));
+    Assert.assertEquals("The manifest should describe the compacted parts", compacted.getParts(),
+                        D2Manifest.read(fs, dir).getParts());
+    assertNothingHidden(fs, dir);
+
+    // compacting again changes nothing
+    D2Manifest again = D2Compactor.compact(fs, new Path(dir, "part-*"), TARGET_SIZE, FAN_IN, 4);
+    Assert.assertEquals("Compaction should be idempotent", compacted.getParts(), again.getParts());
+  }
+
+  /**
+   * A group whose merge completed but whose parts were not all removed must be committed, and a group whose merge was
+   * interrupted must be merged again.
+   */
+  @Test
+  public void testResume() throws IOException {
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    Path dir = new Path(Files.createTempDirectory("d2-compact-resume").toUri().toString());
+    byte[] expected = writeParts(fs, dir);
+    List<Path> parts = D2FooterScanner.scan(fs, new Path(dir, "part-*")).getParts();
+
+    // interrupted while removing the parts of a merged group
+    D2Manifest merged = group(fs, parts.subList(0, 3));
+    merged.write(fs, D2Compactor.journalPath(parts.get(0)));
+    D2PartMerger.merge(fs, merged, D2Compactor.mergedPath(parts.get(0)), false, 1);
+    fs.delete(parts.get(2), false);
+    fs.delete(parts.get(1), false);
+
+    // interrupted while merging a group
+    D2Manifest unmerged = group(fs, parts.subList(10, 14));
+    unmerged.write(fs, D2Compactor.journalPath(parts.get(10)));
+    try (OutputStream partial = fs.create(new Path(dir, D2PartMerger.TEMP_PREFIX + "_d2-compacted-part-00010.def2"))) {
+      partial.write(new byte[100]);
+    }
+
+    D2Compactor.compact(fs, new Path(dir, "part-*"), TARGET_SIZE, FAN_IN, 4);
+    Assert.assertArrayEquals("Data should be unchanged and in order", expected, read(fs, dir));
+    assertNothingHidden(fs, dir);
+  }
+
+  private static byte[] writeParts(FileSystem fs, Path dir) throws IOException {
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    for (int i = 0; i < PARTS; i++) {
+      byte[] data = (RandomStringUtils.randomAlphanumeric(i % 7 == 0 ? 0 : 2000) + "\n").getBytes(StandardCharsets.UTF_8);
+      try (OutputStream out = new D2CompressorStream(fs.create(new Path(dir, String.format("part-%05d.def2", i))))) {
+        out.write(data);
+      }
+      expected.write(data);
+    }
+    return expected.toByteArray();
+  }
+
+  private static D2Manifest group(FileSystem fs, List<Path> parts) throws IOException {
+    Map<Path, D2Footer> footers = new LinkedHashMap<>();
+    for (Path part : parts) {
+      footers.put(part, D2Utils.readFooter(fs, part));
+    }
+    return new D2Manifest(footers);
+  }
+
+  /*
+   * Reads the parts as one stream of concatenated D2 files.
+   */
+  private static byte[] read(FileSystem fs, Path dir) throws IOException {
+    List<InputStream> streams = new ArrayList<>();
+    for (Path part : D2FooterScanner.scan(fs, new Path(dir, "part-*")).getParts()) {
+      streams.add(fs.open(part));
+    }
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    D2Utils.decompress(new SequenceInputStream(Collections.enumeration(streams)), data);
+    return data.toByteArray();
+  }
+
+  private static void assertNothingHidden(FileSystem fs, Path dir) throws IOException {
+    for (FileStatus file : fs.listStatus(dir)) {
+      String name = file.getPath().getName();
+      Assert.assertFalse("Unexpected file left " + name,
+                         name.startsWith(D2Compactor.JOURNAL_PREFIX) || name.startsWith("_d2-"));
+    }
+  }
+}
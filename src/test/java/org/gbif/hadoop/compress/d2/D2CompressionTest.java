@@ -14,13 +14,17 @@
 package org.gbif.hadoop.compress.d2;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.CRC32;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -127,4 +131,42 @@ public class D2CompressionTest {
 
     Assert.assertTrue("Content of files should be identical", Files.equal(original, decompressed));
   }
+
+  /**
+   * A test that splices uncompressed content between compressed parts and ensures the combined content, CRC-32 and
+   * lengths reflect it.
+   */
+  @Test
+  public void testSplice() throws IOException {
+    byte[] header = "gbifID\tscientificName\n".getBytes(StandardCharsets.UTF_8);
+    byte[] part1 = "1\tPuma concolor\n".getBytes(StandardCharsets.UTF_8);
+    byte[] part2 = "2\tAlces alces\n".getBytes(StandardCharsets.UTF_8);
+
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    expected.write(header);
+    expected.write(part1);
+    expected.write(header); // in the middle too
+    expected.write(part2);
+    CRC32 crc = new CRC32();
+    crc.update(expected.toByteArray());
+
+    ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+    try (D2CombineInputStream in = new D2CombineInputStream(Lists.newArrayList(D2Utils.asD2Part(header),
+                                                                              compressed(part1),
+                                                                              D2Utils.asD2Part(header),
+                                                                              compressed(part2)))) {
+      D2Utils.copy(D2Utils.decompressInputSteam(in), decompressed);
+      in.close(); // required to get the sizes
+      Assert.assertEquals("CRC-32 is not as expected", crc.getValue(), in.getCrc32().longValue());
+      Assert.assertEquals("Length is not as expected", expected.size(), in.getUncompressedLength().longValue());
+    }
+    Assert.assertArrayEquals("Content does not equal the original", expected.toByteArray(),
+                             decompressed.toByteArray());
+  }
+
+  private static InputStream compressed(byte[] data) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    D2Utils.compress(new ByteArrayInputStream(data), compressed);
+    return new ByteArrayInputStream(compressed.toByteArray());
+  }
 }
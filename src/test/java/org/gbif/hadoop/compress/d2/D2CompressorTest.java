@@ -13,10 +13,15 @@
  */
 package org.gbif.hadoop.compress.d2;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.zip.CRC32;
 
+import org.apache.commons.lang3.RandomStringUtils;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -45,4 +50,58 @@ public class D2CompressorTest {
 
     Assert.assertEquals("CRC-32 is not as expected", rawCRC.getValue(), compressor.getCRC32());
   }
+
+  /**
+   * A single write which compresses to more than the stream buffer must be flushed completely, even once the compressor
+   * has consumed all of its input.
+   */
+  @Test
+  public void testLargeWrite() throws IOException {
+    for (int size : new int[] {65536, 100000, 1000000}) {
+      byte[] data = RandomStringUtils.randomAlphabetic(size).getBytes(StandardCharsets.UTF_8);
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      try (D2CompressorStream out = new D2CompressorStream(compressed, new D2Compressor(), 4096)) {
+        out.write(data);
+      }
+      ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+      D2Utils.decompress(new ByteArrayInputStream(compressed.toByteArray()), decompressed);
+      Assert.assertArrayEquals("Content of " + size + " bytes differs", data, decompressed.toByteArray());
+    }
+  }
+
+  /**
+   * The footer written must read the same with the footer parsing of earlier versions, which take the last 8 bytes as
+   * the CRC-32, so that files stay readable by them.
+   */
+  @Test
+  public void testFooterReadableByEarlierVersions() throws IOException {
+    byte[] data = "'Jam me, jack me, push me, pull me, talk hard.' (Nora Diniro, 1990)".getBytes(StandardCharsets.UTF_8);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    D2CompressorStream out = new D2CompressorStream(compressed);
+    out.write(data);
+    out.close();
+    assertTrue("The compressor should track the Adler-32", out.getFooter().hasAdler32());
+
+    byte[] file = compressed.toByteArray();
+    long[] footer = buildFooterAsEarlierVersions(Arrays.copyOfRange(file, file.length - D2Footer.FOOTER_LENGTH,
+                                                                    file.length));
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    assertEquals("Uncompressed length", data.length, footer[0]);
+    assertEquals("Compressed length", file.length - D2Footer.FOOTER_LENGTH, footer[1]);
+    assertEquals("CRC-32", crc.getValue(), footer[2]);
+    // as used to combine footers and set zip entry CRCs
+    assertEquals(crc.getValue(), CRCCombine.combine(footer[2], footer[2], 0));
+  }
+
+  /*
+   * D2Footer.buildFooter as of the first release, returning the uncompressed length, compressed length and CRC-32.
+   */
+  private static long[] buildFooterAsEarlierVersions(byte[] footer) {
+    ByteBuffer bb = ByteBuffer.wrap(footer);
+    if (D2Footer.FOOTER_LENGTH == footer.length) {
+      bb.get(new byte[D2Footer.FOOTER_CLOSE_DEFLATE.length]); // skip header if present
+    }
+    return new long[] {bb.getLong(), bb.getLong(), bb.getLong()};
+  }
 }
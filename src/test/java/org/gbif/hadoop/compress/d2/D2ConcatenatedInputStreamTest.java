@@ -0,0 +1,109 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.ZipException;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests D2 files concatenated back to back are read as one stream, with each footer checked.
+ */
+public class D2ConcatenatedInputStreamTest {
+
+  private static final byte[] FIRST = RandomStringUtils.randomAlphabetic(200000).getBytes(StandardCharsets.UTF_8);
+  private static final byte[] SECOND = RandomStringUtils.randomAlphabetic(1000).getBytes(StandardCharsets.UTF_8);
+  private static final byte[] THIRD = RandomStringUtils.randomAlphabetic(100000).getBytes(StandardCharsets.UTF_8);
+
+  @Test
+  public void testCodec() throws IOException {
+    byte[] concatenated = concat(compress(FIRST), compress(new byte[0]), compress(SECOND), compress(THIRD));
+    ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+    try (InputStream in = new D2Codec().createInputStream(new ByteArrayInputStream(concatenated))) {
+      D2Utils.copy(in, inflated);
+      Assert.assertEquals("All members should be read", 4, ((D2ConcatenatedInputStream) in).getMembers());
+    }
+    Assert.assertArrayEquals(concat(FIRST, SECOND, THIRD), inflated.toByteArray());
+  }
+
+  @Test
+  public void testDecompress() throws IOException {
+    byte[] concatenated = concat(compress(FIRST), compress(SECOND));
+    ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+    // trickle the bytes to cross the member boundaries part way through the footers
+    D2Utils.decompress(new TricklingInputStream(concatenated), inflated);
+    Assert.assertArrayEquals(concat(FIRST, SECOND), inflated.toByteArray());
+  }
+
+  @Test
+  public void testStrippedFooter() throws IOException {
+    ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+    D2Utils.decompress(D2Utils.prepareD2Stream(new ByteArrayInputStream(compress(FIRST))), inflated);
+    Assert.assertArrayEquals(FIRST, inflated.toByteArray());
+  }
+
+  @Test(expected = ZipException.class)
+  public void testCorruptFooter() throws IOException {
+    byte[] first = compress(FIRST);
+    first[first.length - 1] ^= 1; // the CRC-32
+    D2Utils.decompress(new ByteArrayInputStream(concat(first, compress(SECOND))), new ByteArrayOutputStream());
+  }
+
+  @Test(expected = EOFException.class)
+  public void testTruncatedFooter() throws IOException {
+    byte[] truncated = compress(FIRST);
+    truncated = Arrays.copyOf(truncated, truncated.length - 4);
+    D2Utils.decompress(new ByteArrayInputStream(truncated), new ByteArrayOutputStream());
+  }
+
+  private static byte[] compress(byte[] data) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (D2CompressorStream out = new D2CompressorStream(compressed)) {
+      out.write(data);
+    }
+    return compressed.toByteArray();
+  }
+
+  private static byte[] concat(byte[]... parts) throws IOException {
+    ByteArrayOutputStream concatenated = new ByteArrayOutputStream();
+    for (byte[] part : parts) {
+      concatenated.write(part);
+    }
+    return concatenated.toByteArray();
+  }
+
+  /**
+   * Returns at most 7 bytes from each read.
+   */
+  private static class TricklingInputStream extends ByteArrayInputStream {
+
+    TricklingInputStream(byte[] data) {
+      super(data);
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) {
+      return super.read(b, off, Math.min(len, 7));
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests scanning the footers of many parts.
+ */
+public class D2FooterScannerTest {
+
+  @Test
+  public void testScan() throws IOException {
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    Path dir = new Path(Files.createTempDirectory("d2-scan").toUri().toString());
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    List<Path> parts = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      byte[] data = RandomStringUtils.randomAlphabetic(i * 100).getBytes(StandardCharsets.UTF_8);
+      expected.write(data);
+      Path part = new Path(dir, String.format("part-%05d%s", i, D2Utils.FILE_EXTENSION));
+      D2Utils.compress(new ByteArrayInputStream(data), fs.create(part));
+      parts.add(part);
+    }
+    fs.create(new Path(dir, "_SUCCESS")).close();
+    CRC32 crc = new CRC32();
+    crc.update(expected.toByteArray());
+
+    for (D2Manifest result : new D2Manifest[] {
+      D2FooterScanner.scan(fs, new Path(dir, "part-*" + D2Utils.FILE_EXTENSION), 4),
+      D2FooterScanner.scan(fs, parts)}) {
+      Assert.assertEquals("Parts are not as expected", parts.size(), result.getFooters().size());
+      Assert.assertEquals("Parts are not in order", parts.get(42),
+                          new ArrayList<>(result.getFooters().keySet()).get(42).makeQualified(fs.getUri(), null));
+      Assert.assertEquals("Part length is not as expected", 4200,
+                          result.getFooters().get(parts.get(42)).getUncompressedLength());
+      Assert.assertEquals("Uncompressed length is not as expected", expected.size(), result.getUncompressedLength());
+      Assert.assertEquals("CRC-32 is not as expected", crc.getValue(), result.getCrc());
+
+      long compressed = 0;
+      for (Path part : parts) {
+        compressed += fs.getFileStatus(part).getLen() - D2Footer.FOOTER_LENGTH;
+      }
+      Assert.assertEquals("Compressed length is not as expected", compressed, result.getCompressedLength());
+    }
+
+    Assert.assertTrue("No matches should give no parts",
+                      D2FooterScanner.scan(fs, new Path(dir, "missing-*")).getFooters().isEmpty());
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.Inflater;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests an index built from the sync flushes of a file written without one allows random access.
+ */
+public class D2IndexBuilderTest {
+
+  private static final long SPACING = 8 * 1024;
+
+  @Test
+  public void testIndexLegacyFile() throws Exception {
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    Path file = new Path(Files.createTempDirectory("d2-index").toUri().toString(), "part-r-00000.def2");
+
+    // repetitive records, so the data after each sync flush refers back to the data before it
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    try (D2CompressorStream out = new D2CompressorStream(fs.create(file))) {
+      for (int i = 0; i < 10000; i++) {
+        byte[] record = (i + "\t" + RandomStringUtils.randomAlphanumeric(20) + "\tPuma concolor (Linnaeus, 1771)\n")
+          .getBytes(StandardCharsets.UTF_8);
+        out.write(record);
+        data.write(record);
+      }
+    }
+    byte[] expected = data.toByteArray();
+
+    D2Index index = D2IndexBuilder.index(fs, file, SPACING, 4);
+    long length = D2Utils.readFooter(fs, file).getCompressedLength();
+    Assert.assertTrue("Expected a point in most ranges", index.size() > length / SPACING / 2);
+    for (int i = 1; i < index.size(); i++) {
+      long offset = index.getUncompressedOffset(i);
+      byte[] window = index.getWindow(i);
+      Assert.assertNotNull("Points after sync flushes need a window", window);
+      Assert.assertEquals(Math.min(offset, D2Index.WINDOW_SIZE), window.length);
+      for (int j = 0; j < window.length; j++) {
+        Assert.assertEquals("Wrong window at point " + i, expected[(int) offset - window.length + j], window[j]);
+      }
+    }
+
+    // without the window, the data following a point does not inflate as it should
+    int point = index.size() / 2;
+    byte[] compressed = new byte[1024];
+    try (org.apache.hadoop.fs.FSDataInputStream in = fs.open(file)) {
+      in.readFully(index.getCompressedOffset(point), compressed);
+    }
+    Inflater inflater = new Inflater(true);
+    inflater.setDictionary(new byte[D2Index.WINDOW_SIZE]);
+    inflater.setInput(compressed);
+    byte[] inflated = new byte[1024];
+    int n = inflater.inflate(inflated);
+    inflater.end();
+    int from = (int) index.getUncompressedOffset(point);
+    boolean differs = false;
+    for (int i = 0; i < n; i++) {
+      differs |= inflated[i] != expected[from + i];
+    }
+    Assert.assertTrue("Data after the sync flush should refer back to the window", differs);
+
+    // the index is read alongside the file
+    try (D2SeekableInputStream in = D2Utils.openSeekable(fs, file)) {
+      Assert.assertEquals(index.size(), in.getIndex().size());
+      D2SeekableInputStreamTest.assertRandomReads(in, expected);
+    }
+  }
+}
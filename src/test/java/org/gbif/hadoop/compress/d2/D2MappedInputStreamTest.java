@@ -0,0 +1,74 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Tests reading local D2 files through memory mappings, using small windows to cross window boundaries.
+ */
+public class D2MappedInputStreamTest {
+
+  private static final int SMALL_WINDOW = 4096;
+
+  @Test
+  public void testDecompress() throws IOException {
+    byte[] data = RandomStringUtils.randomAlphabetic(300000).getBytes(StandardCharsets.UTF_8);
+    Path file = write(data);
+
+    try (D2MappedInputStream in = new D2MappedInputStream(file, SMALL_WINDOW)) {
+      Assert.assertEquals("Footer is not as expected", data.length, in.getFooter().getUncompressedLength());
+      Assert.assertArrayEquals("Content is not as expected", data, ByteStreams.toByteArray(in));
+    }
+    try (InputStream in = D2Utils.decompressMapped(file)) {
+      Assert.assertArrayEquals("Content is not as expected", data, ByteStreams.toByteArray(in));
+    }
+  }
+
+  /**
+   * Raw mapped streams combine as any other stream of D2 bytes.
+   */
+  @Test
+  public void testCombine() throws IOException {
+    byte[] first = RandomStringUtils.randomAlphabetic(100000).getBytes(StandardCharsets.UTF_8);
+    byte[] second = RandomStringUtils.randomAlphabetic(50000).getBytes(StandardCharsets.UTF_8);
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    expected.write(first);
+    expected.write(second);
+
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    D2Utils.decompress(Lists.<InputStream>newArrayList(new MappedFileInputStream(write(first), SMALL_WINDOW),
+                                                       D2Utils.openMapped(write(second))), actual);
+    Assert.assertArrayEquals("Content is not as expected", expected.toByteArray(), actual.toByteArray());
+  }
+
+  private static Path write(byte[] data) throws IOException {
+    Path file = Files.createTempFile("mapped-", D2Utils.FILE_EXTENSION);
+    D2Utils.compress(new ByteArrayInputStream(data), Files.newOutputStream(file));
+    return file;
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Tests that foreign deflate streams convert into D2 parts which merge with native parts.
+ */
+@SuppressWarnings("MagicNumber")
+public class D2PartConverterTest {
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  /**
+   * Text compresses to dynamic Huffman blocks, while random data ends up in stored blocks.
+   */
+  private static byte[] text() {
+    return RandomStringUtils.randomAlphabetic(200000).getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static byte[] random() {
+    byte[] data = new byte[100000];
+    RANDOM.nextBytes(data);
+    return data;
+  }
+
+  @Test
+  public void testGzip() throws IOException {
+    for (byte[] data : Lists.newArrayList(text(), random(), new byte[0])) {
+      ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+      try (OutputStream out = new GZIPOutputStream(gzip)) {
+        out.write(data);
+      }
+      ByteArrayOutputStream part = new ByteArrayOutputStream();
+      D2Footer footer = D2PartConverter.fromGzip(new ByteArrayInputStream(gzip.toByteArray()), part);
+      assertMerges(data, part.toByteArray(), footer);
+    }
+  }
+
+  /**
+   * Multi-member gzip files, as produced by concatenating gzip files, convert to a single part.
+   */
+  @Test
+  public void testMultiMemberGzip() throws IOException {
+    byte[] first = text();
+    byte[] second = random();
+    ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+    for (byte[] data : Lists.newArrayList(first, second)) {
+      GZIPOutputStream out = new GZIPOutputStream(gzip);
+      out.write(data);
+      out.finish();
+    }
+    ByteArrayOutputStream part = new ByteArrayOutputStream();
+    D2Footer footer = D2PartConverter.fromGzip(new ByteArrayInputStream(gzip.toByteArray()), part);
+
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    expected.write(first);
+    expected.write(second);
+    assertMerges(expected.toByteArray(), part.toByteArray(), footer);
+  }
+
+  @Test
+  public void testZlib() throws IOException {
+    byte[] data = text();
+    ByteArrayOutputStream zlib = new ByteArrayOutputStream();
+    try (OutputStream out = new DeflaterOutputStream(zlib, new Deflater(Deflater.BEST_SPEED))) {
+      out.write(data);
+    }
+    ByteArrayOutputStream part = new ByteArrayOutputStream();
+    D2Footer footer = D2PartConverter.fromZlib(new ByteArrayInputStream(zlib.toByteArray()), part);
+    Assert.assertTrue("Zlib conversion should record the Adler-32", footer.hasAdler32());
+    assertMerges(data, part.toByteArray(), footer);
+  }
+
+  /**
+   * Raw deflate data, as found in zip entries, with fixed Huffman codes as used for short content.
+   */
+  @Test
+  public void testDeflate() throws IOException {
+    byte[] data = "Short content is compressed with fixed codes".getBytes(StandardCharsets.UTF_8);
+    ByteArrayOutputStream deflate = new ByteArrayOutputStream();
+    try (OutputStream out = new DeflaterOutputStream(deflate, new Deflater(Deflater.DEFAULT_COMPRESSION, true))) {
+      out.write(data);
+    }
+    ByteArrayOutputStream part = new ByteArrayOutputStream();
+    D2Footer footer = D2PartConverter.fromDeflate(new ByteArrayInputStream(deflate.toByteArray()), crc32(data), part);
+    assertMerges(data, part.toByteArray(), footer);
+  }
+
+  /**
+   * Asserts that the converted part reads in isolation, and merges with a native part either side of it.
+   */
+  private static void assertMerges(byte[] data, byte[] part, D2Footer footer) throws IOException {
+    Assert.assertEquals("Length is not as expected", data.length, footer.getUncompressedLength());
+    Assert.assertEquals("CRC-32 is not as expected", crc32(data), footer.getCrc());
+
+    ByteArrayOutputStream isolated = new ByteArrayOutputStream();
+    D2Utils.decompress(D2Utils.prepareD2Stream(new ByteArrayInputStream(part)), isolated);
+    Assert.assertArrayEquals("Content does not equal the original", data, isolated.toByteArray());
+
+    byte[] nativeData = "native D2 content\n".getBytes(StandardCharsets.UTF_8);
+    ByteArrayOutputStream nativePart = new ByteArrayOutputStream();
+    D2Utils.compress(new ByteArrayInputStream(nativeData), nativePart);
+
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    expected.write(nativeData);
+    expected.write(data);
+    expected.write(nativeData);
+
+    ByteArrayOutputStream merged = new ByteArrayOutputStream();
+    try (D2CombineInputStream in = new D2CombineInputStream(Lists.<InputStream>newArrayList(
+      new ByteArrayInputStream(nativePart.toByteArray()), new ByteArrayInputStream(part),
+      new ByteArrayInputStream(nativePart.toByteArray())))) {
+      D2Utils.copy(D2Utils.decompressInputSteam(in), merged);
+      in.close(); // required to get the CRC-32
+      Assert.assertEquals("Merged CRC-32 is not as expected", crc32(expected.toByteArray()),
+                          in.getCrc32().longValue());
+    }
+    Assert.assertArrayEquals("Merged content does not equal the original", expected.toByteArray(),
+                             merged.toByteArray());
+  }
+
+  private static long crc32(byte[] data) {
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    return crc.getValue();
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests a merge that deletes the parts completes when repeated after an interruption, as a retried job commit does.
+ */
+public class D2PartMergerTest {
+
+  private static final int PARTS = 4;
+  private static final byte[] HEADER = "HEADER".getBytes(StandardCharsets.UTF_8);
+
+  /**
+   * Interrupted on HDFS once the parts are concatenated but before the result is renamed to the target, which must
+   * neither truncate the concatenated parts again nor lose them.
+   */
+  @Test
+  public void testConcatInterrupted() throws IOException {
+    Configuration conf = new Configuration();
+    File baseDir = Files.createTempDirectory("d2-merger-hdfs").toFile();
+    conf.set(MiniDFSCluster.HDFS_MINIDFS_BASEDIR, baseDir.getAbsolutePath());
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1).build();
+    try {
+      FileSystem fs = cluster.getFileSystem();
+      // the D2 file alone, and with leading framing
+      for (boolean framed : new boolean[] {false, true}) {
+        Path dir = fs.makeQualified(new Path("/parts-" + framed));
+        Path target = fs.makeQualified(new Path("/merged-" + framed));
+        byte[] expected = writeParts(fs, dir);
+        D2Manifest manifest = D2FooterScanner.scan(fs, new Path(dir, "part-*"));
+
+        DistributedFileSystem interrupted = new DistributedFileSystem() {
+          @Override
+          public boolean rename(Path src, Path dst) throws IOException {
+            if (dst.getName().startsWith("merged-")) {
+              throw new IOException("Interrupted before renaming " + src);
+            }
+            return super.rename(src, dst);
+          }
+        };
+        interrupted.initialize(cluster.getURI(), fs.getConf());
+        try {
+          merge(interrupted, manifest, target, framed);
+          Assert.fail("The merge should be interrupted");
+        } catch (IOException expectedInterruption) {
+          Assert.assertFalse("The target should not be written", fs.exists(target));
+        } finally {
+          interrupted.close();
+        }
+
+        merge(fs, manifest, target, framed);
+        Assert.assertArrayEquals("Merged content is not as expected", expected, read(fs, target, framed));
+        Assert.assertEquals("Only the target should remain", 0, fs.listStatus(dir).length);
+      }
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  /**
+   * Interrupted when copying while deleting the parts, which must keep the target once it is in place.
+   */
+  @Test
+  public void testCopyInterrupted() throws IOException {
+    Configuration conf = new Configuration();
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path(Files.createTempDirectory("d2-merger").toUri().toString());
+    Path target = new Path(dir.getParent(), dir.getName() + ".def2");
+    byte[] expected = writeParts(fs, dir);
+    D2Manifest manifest = D2FooterScanner.scan(fs, new Path(dir, "part-*"));
+
+    LocalFileSystem interrupted = new LocalFileSystem() {
+      @Override
+      public boolean delete(Path path, boolean recursive) throws IOException {
+        if (path.getName().equals("part-00002.def2")) {
+          throw new IOException("Interrupted before deleting " + path);
+        }
+        return super.delete(path, recursive);
+      }
+    };
+    interrupted.initialize(URI.create("file:///"), conf);
+    try {
+      merge(interrupted, manifest, target, false);
+      Assert.fail("The merge should be interrupted");
+    } catch (IOException expectedInterruption) {
+      Assert.assertArrayEquals("The target should be in place", expected, read(fs, target, false));
+    } finally {
+      interrupted.close();
+    }
+
+    merge(fs, manifest, target, false);
+    Assert.assertArrayEquals("Merged content is not as expected", expected, read(fs, target, false));
+    for (FileStatus file : fs.listStatus(dir)) {
+      Assert.assertFalse("Parts should be deleted", file.getPath().getName().startsWith("part-"));
+    }
+  }
+
+  private static void merge(FileSystem fs, D2Manifest manifest, Path target, boolean framed) throws IOException {
+    if (framed) {
+      List<byte[]> framing = Arrays.asList(HEADER, D2Footer.serialize(manifest.getCombined()));
+      D2PartMerger.merge(fs, framing, Collections.singletonList(manifest), target, true, 2);
+    } else {
+      D2PartMerger.merge(fs, manifest, target, true, 2);
+    }
+  }
+
+  /*
+   * Writes the parts, the second of which is empty, returning their data.
+   */
+  private static byte[] writeParts(FileSystem fs, Path dir) throws IOException {
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    for (int i = 0; i < PARTS; i++) {
+      byte[] data = (i == 1 ? "" : RandomStringUtils.randomAlphanumeric(50000) + "\n").getBytes(StandardCharsets.UTF_8);
+      try (OutputStream out = new D2CompressorStream(fs.create(new Path(dir, String.format("part-%05d.def2", i))))) {
+        out.write(data);
+      }
+      expected.write(data);
+    }
+    return expected.toByteArray();
+  }
+
+  private static byte[] read(FileSystem fs, Path target, boolean framed) throws IOException {
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    try (InputStream in = fs.open(target)) {
+      if (framed) {
+        byte[] header = new byte[HEADER.length];
+        Assert.assertEquals(HEADER.length, in.read(header));
+        Assert.assertArrayEquals("Leading framing is not as expected", HEADER, header);
+      }
+      D2Utils.decompress(in, data);
+    }
+    return data.toByteArray();
+  }
+}
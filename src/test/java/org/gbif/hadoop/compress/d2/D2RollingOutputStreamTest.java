@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests parts are cut at record boundaries once they reach the part size, and merge to the data written.
+ */
+public class D2RollingOutputStreamTest {
+
+  private static final long PART_SIZE = 64 * 1024;
+
+  @Test
+  public void testRolling() throws IOException {
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    Path base = new Path(Files.createTempDirectory("d2-rolling").toUri().toString(), "part-r-00000");
+
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    D2RollingOutputStream out = new D2RollingOutputStream(fs, base, PART_SIZE);
+    int cuts = 0;
+    try {
+      for (int i = 0; i < 5000; i++) {
+        byte[] record = (i + "\t" + RandomStringUtils.randomAlphanumeric(100) + "\n").getBytes(StandardCharsets.UTF_8);
+        out.write(record);
+        expected.write(record);
+        if (out.endRecord()) {
+          cuts++;
+        }
+      }
+    } finally {
+      out.close();
+    }
+
+    D2Manifest manifest = out.getManifest();
+    List<Path> parts = manifest.getParts();
+    Assert.assertTrue("Expected several parts", parts.size() > 2);
+    // the last part is only started if written to after the last cut
+    Assert.assertTrue("Expected a part for each cut", parts.size() == cuts || parts.size() == cuts + 1);
+    Assert.assertEquals("Parts are not named in sequence", "part-r-00000-00001.def2", parts.get(1).getName());
+
+    List<InputStream> streams = new ArrayList<>();
+    for (int i = 0; i < parts.size(); i++) {
+      D2Footer footer = manifest.getFooterList().get(i);
+      if (i < parts.size() - 1) {
+        Assert.assertTrue("Part " + i + " was cut before reaching the part size",
+                          footer.getCompressedLength() >= PART_SIZE);
+      }
+      Assert.assertEquals("Footer is not as written", D2Utils.readFooter(fs, parts.get(i)).getCrc(), footer.getCrc());
+
+      // each part holds whole records
+      ByteArrayOutputStream part = new ByteArrayOutputStream();
+      D2Utils.decompress(fs.open(parts.get(i)), part);
+      byte[] data = part.toByteArray();
+      Assert.assertEquals("Part " + i + " should end with a whole record", '\n', data[data.length - 1]);
+      streams.add(fs.open(parts.get(i)));
+    }
+
+    ByteArrayOutputStream merged = new ByteArrayOutputStream();
+    D2Utils.decompress(streams, merged);
+    Assert.assertArrayEquals("Merged parts do not hold the data written", expected.toByteArray(), merged.toByteArray());
+  }
+}
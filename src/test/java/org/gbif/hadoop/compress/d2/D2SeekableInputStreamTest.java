@@ -0,0 +1,144 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests random access to indexed and unindexed D2 files.
+ */
+public class D2SeekableInputStreamTest {
+
+  private static final long INTERVAL = 16 * 1024;
+
+  @Test
+  public void testSeek() throws IOException {
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    Path file = new Path(Files.createTempDirectory("d2-seekable").toUri().toString(), "part-r-00000.def2");
+    byte[] expected = write(fs, file, INTERVAL);
+
+    // the indexed data is plain D2 data
+    ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+    D2Utils.decompress(D2Utils.prepareD2Stream(fs.open(file)), inflated);
+    Assert.assertArrayEquals("Indexed file does not decompress", expected, inflated.toByteArray());
+
+    try (D2SeekableInputStream in = D2Utils.openSeekable(fs, file)) {
+      Assert.assertTrue("Expected an index point at least every interval",
+                        in.getIndex().size() > expected.length / INTERVAL / 2);
+      assertRandomReads(in, expected);
+    }
+  }
+
+  @Test
+  public void testUnindexed() throws IOException {
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    Path file = new Path(Files.createTempDirectory("d2-seekable").toUri().toString(), "part-r-00000.def2");
+    byte[] expected = write(fs, file, 0);
+    Assert.assertFalse("No index should be written", fs.exists(D2Index.indexPath(file)));
+
+    try (D2SeekableInputStream in = D2Utils.openSeekable(fs, file)) {
+      Assert.assertEquals("Only the start of the file should be indexed", 1, in.getIndex().size());
+      assertRandomReads(in, expected);
+    }
+  }
+
+  @Test
+  public void testStaleIndex() throws IOException {
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    Path file = new Path(Files.createTempDirectory("d2-seekable").toUri().toString(), "part-r-00000.def2");
+    write(fs, file, INTERVAL);
+    D2Index index = D2Index.read(fs, file, D2Utils.readFooter(fs, file));
+    Assert.assertNotNull("Index should be read", index);
+
+    // replace the file, leaving the index of the previous one
+    Path other = new Path(file.getParent(), "other.def2");
+    write(fs, other, 0);
+    fs.delete(file, false);
+    fs.rename(other, file);
+    Assert.assertTrue("The index should remain", fs.exists(D2Index.indexPath(file)));
+    Assert.assertNull("A stale index should be ignored", D2Index.read(fs, file, D2Utils.readFooter(fs, file)));
+  }
+
+  @Test
+  public void testCodecSkip() throws IOException {
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    Path file = new Path(Files.createTempDirectory("d2-seekable").toUri().toString(), "part-r-00000.def2");
+    byte[] expected = write(fs, file, INTERVAL);
+    D2Index index = D2Index.read(fs, file, D2Utils.readFooter(fs, file));
+
+    try (InputStream in = new D2Codec().createInputStream(fs.open(file), index)) {
+      long target = expected.length * 3L / 4;
+      Assert.assertEquals("Skip should reach the target", target, in.skip(target));
+      byte[] b = new byte[100];
+      Assert.assertEquals(b.length, in.read(b));
+      Assert.assertArrayEquals("Wrong data after skipping", Arrays.copyOfRange(expected, (int) target, (int) target + 100),
+                               b);
+      Assert.assertEquals("Skip should stop at the end", expected.length - target - 100, in.skip(Long.MAX_VALUE));
+      Assert.assertEquals(-1, in.read());
+    }
+  }
+
+  static void assertRandomReads(D2SeekableInputStream in, byte[] expected) throws IOException {
+    Random random = new Random(42);
+    byte[] b = new byte[1000];
+    for (int i = 0; i < 200; i++) {
+      int offset = random.nextInt(expected.length - b.length);
+      in.seek(offset);
+      Assert.assertEquals(offset, in.getPos());
+      in.readFully(offset, b); // positional, leaving the position unchanged
+      Assert.assertEquals(offset, in.getPos());
+      Assert.assertArrayEquals("Wrong data at " + offset, Arrays.copyOfRange(expected, offset, offset + b.length), b);
+
+      byte[] read = new byte[b.length];
+      int n = 0;
+      while (n < read.length) {
+        n += in.read(read, n, read.length - n);
+      }
+      Assert.assertArrayEquals("Wrong data read at " + offset, b, read);
+    }
+    in.seek(expected.length);
+    Assert.assertEquals(-1, in.read());
+  }
+
+  static byte[] write(FileSystem fs, Path file, long interval) throws IOException {
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    D2CompressorStream out = new D2CompressorStream(fs.create(file), new D2Compressor(interval));
+    try {
+      for (int i = 0; i < 5000; i++) {
+        byte[] record = (i + "\t" + RandomStringUtils.randomAlphanumeric(100) + "\n").getBytes(StandardCharsets.UTF_8);
+        out.write(record);
+        expected.write(record);
+      }
+    } finally {
+      out.close();
+    }
+    if (interval > 0) {
+      out.getIndex().write(fs, file);
+    }
+    return expected.toByteArray();
+  }
+}
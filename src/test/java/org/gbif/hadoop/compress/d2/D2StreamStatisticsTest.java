@@ -0,0 +1,129 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import org.gbif.hadoop.compress.d2.zip.ModalZipOutputStream;
+import org.gbif.hadoop.compress.d2.zip.ZipEntry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hadoop.fs.statistics.IOStatistics;
+import org.apache.hadoop.fs.statistics.IOStatisticsSupport;
+import org.junit.Assert;
+import org.junit.Test;
+
+import static org.gbif.hadoop.compress.d2.D2StreamStatistics.*;
+
+/**
+ * Tests the D2 streams publish IOStatistics of the work they do.
+ */
+public class D2StreamStatisticsTest {
+
+  private static final byte[] DATA = StringUtils.repeat("occurrence\tdataset\t2024\n", 4000)
+    .getBytes(StandardCharsets.UTF_8);
+
+  @Test
+  public void testCompressorStream() throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    D2CompressorStream out = new D2CompressorStream(compressed);
+    out.write(DATA, 0, 1000);
+    out.write(DATA, 1000, DATA.length - 1000);
+    out.close();
+
+    IOStatistics statistics = out.getIOStatistics();
+    Assert.assertEquals(DATA.length, counter(statistics, UNCOMPRESSED_BYTES));
+    Assert.assertEquals(compressed.size(), counter(statistics, COMPRESSED_BYTES));
+    Assert.assertEquals("One flush per write", 2, counter(statistics, FLUSHES));
+    Assert.assertTrue(counter(statistics, DEFLATE_NANOS) > 0);
+    Assert.assertEquals((double) DATA.length / compressed.size(),
+                        statistics.meanStatistics().get(COMPRESSION_RATIO).mean(), 0.0001);
+  }
+
+  @Test
+  public void testConcatenatedInputStream() throws IOException {
+    byte[] part = compress(DATA);
+    byte[] concatenated = new byte[part.length * 2];
+    System.arraycopy(part, 0, concatenated, 0, part.length);
+    System.arraycopy(part, 0, concatenated, part.length, part.length);
+
+    D2ConcatenatedInputStream in = new D2ConcatenatedInputStream(new ByteArrayInputStream(concatenated));
+    D2Utils.copy(in, new ByteArrayOutputStream());
+    in.close();
+
+    IOStatistics statistics = in.getIOStatistics();
+    Assert.assertEquals(DATA.length * 2, counter(statistics, UNCOMPRESSED_BYTES));
+    Assert.assertEquals(concatenated.length, counter(statistics, COMPRESSED_BYTES));
+    Assert.assertEquals(2, counter(statistics, PARTS_OPENED));
+    Assert.assertEquals(2, counter(statistics, FOOTER_READS));
+    Assert.assertTrue(counter(statistics, INFLATE_NANOS) > 0);
+  }
+
+  @Test
+  public void testCombineInputStream() throws IOException {
+    byte[] part = compress(DATA);
+    List<InputStream> parts = Arrays.<InputStream>asList(new ByteArrayInputStream(part),
+                                                         new ByteArrayInputStream(part));
+    D2CombineInputStream in = new D2CombineInputStream(parts);
+    Assert.assertEquals("Only the first part is open", 1, counter(in.getIOStatistics(), PARTS_OPENED));
+    Assert.assertEquals(part[0] & 0xFF, in.read());
+    D2Utils.copy(in, new ByteArrayOutputStream());
+    in.close();
+
+    IOStatistics statistics = in.getIOStatistics();
+    Assert.assertEquals(2 * (part.length - D2Footer.FOOTER_LENGTH) + D2Footer.FOOTER_CLOSE_DEFLATE.length,
+                        counter(statistics, COMPRESSED_BYTES));
+    Assert.assertEquals(DATA.length * 2, counter(statistics, UNCOMPRESSED_BYTES));
+    Assert.assertEquals(2, counter(statistics, PARTS_OPENED));
+    Assert.assertEquals(2, counter(statistics, FOOTER_READS));
+  }
+
+  @Test
+  public void testZip() throws IOException {
+    List<InputStream> parts = Arrays.<InputStream>asList(new ByteArrayInputStream(compress(DATA)),
+                                                         new ByteArrayInputStream(compress(DATA)));
+    ModalZipOutputStream zos = new ModalZipOutputStream(new ByteArrayOutputStream());
+    zos.putEntry(new ZipEntry("combined.txt"), parts);
+    zos.putNextEntry(new ZipEntry("deflated.txt"), ModalZipOutputStream.MODE.DEFAULT);
+    zos.write(DATA);
+    zos.close();
+
+    // a snapshot, as used to aggregate and report the statistics of many streams
+    IOStatistics statistics = IOStatisticsSupport.snapshotIOStatistics(zos.getIOStatistics());
+    Assert.assertEquals(DATA.length * 3, counter(statistics, UNCOMPRESSED_BYTES));
+    Assert.assertEquals(2, counter(statistics, PARTS_OPENED));
+    Assert.assertEquals(2, counter(statistics, FOOTER_READS));
+    Assert.assertTrue(counter(statistics, DEFLATE_NANOS) > 0);
+  }
+
+  private static long counter(IOStatistics statistics, String key) {
+    Long value = statistics.counters().get(key);
+    Assert.assertNotNull("Missing statistic " + key, value);
+    return value;
+  }
+
+  private static byte[] compress(byte[] data) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (D2CompressorStream out = new D2CompressorStream(compressed)) {
+      out.write(data);
+    }
+    return compressed.toByteArray();
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+/**
+ * Tests that .tar.gz archives built from D2 parts are readable by standard tools.
+ */
+@SuppressWarnings("MagicNumber")
+public class D2TarGzBuilderTest {
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  /**
+   * Builds an archive with entries of several parts, an empty entry and a long name, and extracts it with tar.
+   */
+  @Test
+  public void testBuild() throws IOException {
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    File workDir = Files.createTempDir();
+
+    // content that is not a multiple of the tar block length, so padding is needed
+    byte[] occurrence1 = RandomStringUtils.randomAlphanumeric(70000).getBytes(StandardCharsets.UTF_8);
+    byte[] occurrence2 = new byte[1000];
+    RANDOM.nextBytes(occurrence2);
+    byte[] verbatim = "gbifID\tscientificName\n".getBytes(StandardCharsets.UTF_8);
+    String longName = "dataset/" + RandomStringUtils.randomAlphabetic(120) + ".txt";
+
+    File archive = new File(workDir, "download.tar.gz");
+    long written;
+    try (OutputStream out = java.nio.file.Files.newOutputStream(archive.toPath())) {
+      written = new D2TarGzBuilder(fs)
+        .addEntry("occurrence.txt", Lists.newArrayList(writePart(occurrence1), writePart(occurrence2)))
+        .addEntry("empty.txt", Lists.<Path>newArrayList())
+        .addEntry(longName, Lists.newArrayList(writePart(verbatim)))
+        .build(out);
+    }
+    Assert.assertEquals("Reported length is not as expected", archive.length(), written);
+
+    // the gzip stream validates the CRC-32 and length, and the tar is padded to whole blocks
+    try (InputStream in = new GZIPInputStream(java.nio.file.Files.newInputStream(archive.toPath()))) {
+      long length = ByteStreams.toByteArray(in).length;
+      Assert.assertEquals("Tar is not a whole number of blocks", 0, length % D2TarGzBuilder.TAR_BLOCK_LENGTH);
+    }
+
+    File extracted = new File(workDir, "extracted");
+    FileUtil.unTar(archive, extracted);
+    Assert.assertArrayEquals("Content does not equal the original", concat(occurrence1, occurrence2),
+                             Files.toByteArray(new File(extracted, "occurrence.txt")));
+    Assert.assertEquals("Empty entry should be empty", 0, new File(extracted, "empty.txt").length());
+    Assert.assertArrayEquals("Content does not equal the original", verbatim,
+                             Files.toByteArray(new File(extracted, longName)));
+  }
+
+  private static byte[] concat(byte[] first, byte[] second) {
+    byte[] result = new byte[first.length + second.length];
+    System.arraycopy(first, 0, result, 0, first.length);
+    System.arraycopy(second, 0, result, first.length, second.length);
+    return result;
+  }
+
+  /**
+   * Compresses the data into a D2 part in a temporary file.
+   */
+  private static Path writePart(byte[] data) throws IOException {
+    File file = File.createTempFile("part-", D2Utils.FILE_EXTENSION);
+    file.deleteOnExit();
+    D2Utils.compress(new ByteArrayInputStream(data), java.nio.file.Files.newOutputStream(file.toPath()));
+    return new Path(file.toURI());
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Tests that D2 parts can be assembled into a zlib stream readable by a standard inflater.
+ */
+@SuppressWarnings("MagicNumber")
+public class D2ZlibAssemblerTest {
+
+  private static final String[] PARTS = {
+    "Now the ones I sing to ", "when they have mostly gone, ", "are the ones who listen the closest."
+  };
+
+  /**
+   * Test the Adler-32 combine matches the Adler-32 of the concatenated data.
+   */
+  @Test
+  public void testCombine() {
+    byte[] first = PARTS[0].getBytes(StandardCharsets.UTF_8);
+    byte[] second = PARTS[1].getBytes(StandardCharsets.UTF_8);
+
+    Adler32 whole = new Adler32();
+    whole.update(first);
+    whole.update(second);
+
+    Assert.assertEquals("Combined Adler-32 is not as expected", whole.getValue(),
+                        AdlerCombine.combine(adler32(first), adler32(second), second.length));
+    Assert.assertEquals("Combining with empty data should be a no-op", adler32(first),
+                        AdlerCombine.combine(adler32(first), AdlerCombine.ADLER32_EMPTY, 0));
+  }
+
+  /**
+   * Test that parts with the Adler-32 in their sidecar indexes assemble to a valid zlib stream.
+   */
+  @Test
+  public void testAssembleIndexed() throws IOException {
+    assertAssembles(true, false);
+  }
+
+  /**
+   * Test that parts with the Adler-32 in a manifest assemble to a valid zlib stream.
+   */
+  @Test
+  public void testAssembleFromManifest() throws IOException {
+    assertAssembles(false, true);
+  }
+
+  /**
+   * Test that parts with no Adler-32 recorded anywhere still assemble to a valid zlib stream.
+   */
+  @Test
+  public void testAssembleUnrecordedParts() throws IOException {
+    assertAssembles(false, false);
+  }
+
+  private static void assertAssembles(boolean indexed, boolean fromManifest) throws IOException {
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    StringBuilder original = new StringBuilder();
+    Map<Path, D2Footer> footers = new LinkedHashMap<>();
+    for (String part : PARTS) {
+      original.append(part);
+      writePart(fs, part.getBytes(StandardCharsets.UTF_8), indexed, footers);
+    }
+
+    ByteArrayOutputStream zlib = new ByteArrayOutputStream();
+    long written = fromManifest
+      ? D2ZlibAssembler.assemble(fs, new D2Manifest(footers), zlib)
+      : D2ZlibAssembler.assemble(fs, footers.keySet(), zlib);
+    Assert.assertEquals("Reported length is not as expected", zlib.size(), written);
+
+    // the default inflater expects the zlib wrapping and verifies the Adler-32
+    try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(zlib.toByteArray()))) {
+      Assert.assertEquals("Content does not equal the original", original.toString(),
+                          new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * Writes a D2 part to a temporary file, optionally with its index alongside, adding its footer to those given.
+   */
+  private static void writePart(FileSystem fs, byte[] data, boolean indexed, Map<Path, D2Footer> footers)
+    throws IOException {
+    File file = File.createTempFile("part-", D2Utils.FILE_EXTENSION);
+    file.deleteOnExit();
+    Path path = new Path(file.toURI());
+    D2CompressorStream out = new D2CompressorStream(java.nio.file.Files.newOutputStream(file.toPath()));
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+    Assert.assertTrue("The compressor should track the Adler-32", out.getFooter().hasAdler32());
+    if (indexed) {
+      out.getIndex().write(fs, path);
+      new File(file.getParentFile(), "." + file.getName() + ".index").deleteOnExit();
+    }
+    footers.put(path, out.getFooter());
+  }
+
+  private static long adler32(byte[] data) {
+    Adler32 adler = new Adler32();
+    adler.update(data);
+    return adler.getValue();
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2.mapred;
+
+import org.gbif.hadoop.compress.d2.D2Manifest;
+import org.gbif.hadoop.compress.d2.D2Utils;
+import org.gbif.hadoop.compress.d2.mapreduce.D2MergeOutputFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.JobContextImpl;
+import org.apache.hadoop.mapred.JobID;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.TaskAttemptContext;
+import org.apache.hadoop.mapred.TaskAttemptContextImpl;
+import org.apache.hadoop.mapred.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the merge at job commit through the mapred API.
+ */
+public class D2MergeOutputCommitterTest {
+
+  private static final int TASKS = 3;
+
+  @Test
+  public void testMerge() throws IOException {
+    JobConf job = new JobConf();
+    Path output = new Path(Files.createTempDirectory("d2-mapred").toUri().toString(), "export");
+    FileOutputFormat.setOutputPath(job, output);
+    job.setOutputCommitter(D2MergeOutputCommitter.class);
+    D2MergeOutputFormat.setDeleteParts(job, true);
+    JobID jobId = new JobID("d2", 1);
+
+    D2MergeOutputCommitter committer = new D2MergeOutputCommitter();
+    committer.setupJob(new JobContextImpl(job, jobId));
+    StringBuilder expected = new StringBuilder();
+    for (int task = 0; task < TASKS; task++) {
+      JobConf taskConf = new JobConf(job);
+      TaskAttemptID attempt = new TaskAttemptID(jobId.getJtIdentifier(), jobId.getId(), TaskType.REDUCE, task, 0);
+      taskConf.set("mapreduce.task.attempt.id", attempt.toString());
+      TaskAttemptContext context = new TaskAttemptContextImpl(taskConf, attempt);
+      committer.setupTask(context);
+      // as the task runtime does
+      FileOutputFormat.setWorkOutputPath(taskConf, committer.getTaskAttemptPath(context));
+      RecordWriter<Text, Text> writer =
+        new D2OutputFormat<Text, Text>().getRecordWriter(null, taskConf, "part-0000" + task, Reporter.NULL);
+      for (int i = 0; i < 1000; i++) {
+        writer.write(new Text(String.valueOf(task)), new Text("line " + i));
+        expected.append(task).append('\t').append("line ").append(i).append('\n');
+      }
+      writer.close(Reporter.NULL);
+      committer.commitTask(context);
+    }
+    committer.commitJob(new JobContextImpl(job, jobId));
+    // a repeated commit of the job must leave the merged file as it is
+    committer.commitJob(new JobContextImpl(job, jobId));
+
+    FileSystem fs = output.getFileSystem(job);
+    ByteArrayOutputStream merged = new ByteArrayOutputStream();
+    D2Utils.decompress(fs.open(new Path(output.getParent(), "export.def2")), merged);
+    Assert.assertEquals("Merged content is not as expected", expected.toString(),
+                        new String(merged.toByteArray(), StandardCharsets.UTF_8));
+    Assert.assertFalse("Manifest should be deleted with the parts", fs.exists(new Path(output, D2Manifest.FILE_NAME)));
+    Assert.assertEquals("Only the success marker should remain", 1,
+                        fs.listStatus(output, new PathFilter() {
+                          @Override
+                          public boolean accept(Path path) {
+                            return !path.getName().startsWith(".");
+                          }
+                        }).length);
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2.mapreduce;
+
+import org.gbif.hadoop.compress.d2.D2Manifest;
+import org.gbif.hadoop.compress.d2.D2Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobID;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.task.JobContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Tests the merge at job commit, copying on the local filesystem and concatenating on HDFS.
+ */
+public class D2MergeOutputFormatTest {
+
+  private static final int TASKS = 3;
+
+  /**
+   * Copies the parts into a ZIP file, keeping the parts.
+   */
+  @Test
+  public void testZipCopy() throws IOException, InterruptedException {
+    Job job = Job.getInstance(new Configuration());
+    Path output = new Path(Files.createTempDirectory("d2-merge").toUri().toString(), "export");
+    D2MergeOutputFormat.setFormat(job.getConfiguration(), D2MergeOutputFormat.Format.ZIP);
+    String expected = runJob(job, output, 200000);
+
+    FileSystem fs = output.getFileSystem(job.getConfiguration());
+    Path zip = new Path(output.getParent(), "export.zip");
+    Assert.assertEquals("ZIP content is not as expected", expected, unzip(fs, zip, "export.txt"));
+    Assert.assertEquals("Parts should be kept", TASKS, D2Manifest.read(fs, output).getParts().size());
+    Assert.assertTrue("Job should be marked successful",
+                      fs.exists(new Path(output, FileOutputCommitter.SUCCEEDED_FILE_NAME)));
+  }
+
+  /**
+   * Concatenates the parts on HDFS into a D2 file and into a ZIP file, deleting the parts.
+   */
+  @Test
+  public void testConcat() throws IOException, InterruptedException {
+    Configuration conf = new Configuration();
+    File baseDir = Files.createTempDirectory("d2-merge-hdfs").toFile();
+    conf.set(MiniDFSCluster.HDFS_MINIDFS_BASEDIR, baseDir.getAbsolutePath());
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1).build();
+    try {
+      FileSystem fs = cluster.getFileSystem();
+
+      Job job = Job.getInstance(fs.getConf());
+      Path output = fs.makeQualified(new Path("/export"));
+      D2MergeOutputFormat.setDeleteParts(job.getConfiguration(), true);
+      String expected = runJob(job, output, 20000);
+      ByteArrayOutputStream merged = new ByteArrayOutputStream();
+      D2Utils.decompress(fs.open(new Path("/export.def2")), merged);
+      Assert.assertEquals("Merged content is not as expected", expected,
+                          new String(merged.toByteArray(), StandardCharsets.UTF_8));
+      Assert.assertFalse("Manifest should be deleted with the parts",
+                         fs.exists(new Path(output, D2Manifest.FILE_NAME)));
+      Assert.assertEquals("Only the success marker should remain", 1, fs.listStatus(output).length);
+
+      job = Job.getInstance(fs.getConf());
+      output = fs.makeQualified(new Path("/zipped"));
+      D2MergeOutputFormat.setFormat(job.getConfiguration(), D2MergeOutputFormat.Format.ZIP);
+      D2MergeOutputFormat.setZipEntryName(job.getConfiguration(), "data.csv");
+      D2MergeOutputFormat.setDeleteParts(job.getConfiguration(), true);
+      expected = runJob(job, output, 20000);
+      Assert.assertEquals("ZIP content is not as expected", expected, unzip(fs, new Path("/zipped.zip"), "data.csv"));
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  /**
+   * Runs the output format and committer through the task and job lifecycle, returning the lines written.
+   */
+  private static String runJob(Job job, Path output, int linesPerTask) throws IOException, InterruptedException {
+    FileOutputFormat.setOutputPath(job, output);
+    Configuration conf = job.getConfiguration();
+    JobID jobId = new JobID("d2", 1);
+    OutputCommitter jobCommitter = new D2MergeOutputFormat<NullWritable, Text>().getOutputCommitter(
+      attempt(conf, jobId, 0));
+    jobCommitter.setupJob(new JobContextImpl(conf, jobId));
+    StringBuilder expected = new StringBuilder();
+    for (int task = 0; task < TASKS; task++) {
+      TaskAttemptContext context = attempt(conf, jobId, task);
+      D2MergeOutputFormat<NullWritable, Text> format = new D2MergeOutputFormat<>();
+      OutputCommitter committer = format.getOutputCommitter(context);
+      committer.setupTask(context);
+      RecordWriter<NullWritable, Text> writer = format.getRecordWriter(context);
+      // the last task writes nothing, giving an empty part
+      for (int i = 0; task < TASKS - 1 && i < linesPerTask; i++) {
+        String line = "Task " + task + " line " + i;
+        writer.write(NullWritable.get(), new Text(line));
+        expected.append(line).append('\n');
+      }
+      writer.close(context);
+      committer.commitTask(context);
+    }
+    jobCommitter.commitJob(new JobContextImpl(conf, jobId));
+    return expected.toString();
+  }
+
+  private static TaskAttemptContext attempt(Configuration conf, JobID jobId, int task) {
+    return new TaskAttemptContextImpl(conf, new TaskAttemptID(jobId.getJtIdentifier(), jobId.getId(),
+                                                              TaskType.REDUCE, task, 0));
+  }
+
+  private static String unzip(FileSystem fs, Path zip, String entryName) throws IOException {
+    try (ZipInputStream in = new ZipInputStream(fs.open(zip))) {
+      ZipEntry entry = in.getNextEntry();
+      Assert.assertEquals("Entry name is not as expected", entryName, entry.getName());
+      String content = new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+      Assert.assertNull("Expected a single entry", in.getNextEntry());
+      return content;
+    }
+  }
+}
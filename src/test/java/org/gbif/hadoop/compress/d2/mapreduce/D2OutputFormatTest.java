@@ -0,0 +1,120 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2.mapreduce;
+
+import org.gbif.hadoop.compress.d2.D2Footer;
+import org.gbif.hadoop.compress.d2.D2FooterScanner;
+import org.gbif.hadoop.compress.d2.D2Manifest;
+import org.gbif.hadoop.compress.d2.D2Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobID;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.task.JobContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Runs the output format and committer through the task and job lifecycle on the local filesystem, and checks the
+ * manifest written at job commit describes the committed parts.
+ */
+public class D2OutputFormatTest {
+
+  private static final int TASKS = 3;
+
+  @Test
+  public void testManifestAtCommit() throws IOException, InterruptedException {
+    Job job = Job.getInstance(new Configuration());
+    Path output = new Path(Files.createTempDirectory("d2-output").toUri().toString(), "output");
+    FileOutputFormat.setOutputPath(job, output);
+    Configuration conf = job.getConfiguration();
+    JobID jobId = new JobID("d2", 1);
+    D2OutputFormat<NullWritable, Text> format = new D2OutputFormat<>();
+
+    OutputCommitter jobCommitter = format.getOutputCommitter(attempt(conf, jobId, 0));
+    jobCommitter.setupJob(new JobContextImpl(conf, jobId));
+    StringBuilder expected = new StringBuilder();
+    for (int task = 0; task < TASKS; task++) {
+      TaskAttemptContext context = attempt(conf, jobId, task);
+      OutputCommitter committer = new D2OutputFormat<NullWritable, Text>().getOutputCommitter(context);
+      committer.setupTask(context);
+      RecordWriter<NullWritable, Text> writer = new D2OutputFormat<NullWritable, Text>().getRecordWriter(context);
+      for (int i = 0; i < 1000 * (task + 1); i++) {
+        String line = "Task " + task + " line " + i;
+        writer.write(NullWritable.get(), new Text(line));
+        expected.append(line).append('\n');
+      }
+      writer.close(context);
+      committer.commitTask(context);
+    }
+    jobCommitter.commitJob(new JobContextImpl(conf, jobId));
+    // a repeated commit of the job must keep the manifest rather than replace it with an empty one
+    jobCommitter.commitJob(new JobContextImpl(conf, jobId));
+
+    FileSystem fs = output.getFileSystem(conf);
+    Assert.assertTrue("Job should be marked successful",
+                      fs.exists(new Path(output, FileOutputCommitter.SUCCEEDED_FILE_NAME)));
+    Assert.assertEquals("Footer fragments should be removed", 0,
+                        fs.globStatus(new Path(output, D2Manifest.FRAGMENT_PREFIX + "*")).length);
+
+    D2Manifest manifest = D2Manifest.read(fs, output);
+    D2Manifest scanned = D2FooterScanner.scan(fs, new Path(output, "part-*" + D2Utils.FILE_EXTENSION));
+    Assert.assertEquals("Manifest should list all parts in order", scanned.getParts(), manifest.getParts());
+    for (Path part : scanned.getParts()) {
+      D2Footer expectedFooter = scanned.getFooters().get(part);
+      D2Footer footer = manifest.getFooters().get(part);
+      Assert.assertEquals("Uncompressed length differs for " + part, expectedFooter.getUncompressedLength(),
+                          footer.getUncompressedLength());
+      Assert.assertEquals("Compressed length differs for " + part, expectedFooter.getCompressedLength(),
+                          footer.getCompressedLength());
+      Assert.assertEquals("CRC differs for " + part, expectedFooter.getCrc(), footer.getCrc());
+    }
+    Assert.assertEquals("Manifest should describe all data", expected.length(), manifest.getUncompressedLength());
+
+    // the manifest alone plans the merge
+    ByteArrayOutputStream merged = new ByteArrayOutputStream();
+    List<InputStream> parts = new ArrayList<>();
+    for (Path part : manifest.getParts()) {
+      parts.add(fs.open(part));
+    }
+    D2Utils.decompress(parts, merged);
+    Assert.assertEquals("Parts hold the written lines", expected.toString(),
+                        new String(merged.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  private static TaskAttemptContext attempt(Configuration conf, JobID jobId, int task) {
+    return new TaskAttemptContextImpl(conf, new TaskAttemptID(jobId.getJtIdentifier(), jobId.getId(),
+                                                              TaskType.REDUCE, task, 0));
+  }
+}
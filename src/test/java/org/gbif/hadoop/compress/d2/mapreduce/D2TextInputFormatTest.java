@@ -0,0 +1,198 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2.mapreduce;
+
+import org.gbif.hadoop.compress.d2.D2Compressor;
+import org.gbif.hadoop.compress.d2.D2CompressorStream;
+import org.gbif.hadoop.compress.d2.D2IndexBuilder;
+import org.gbif.hadoop.compress.d2.D2Utils;
+import org.gbif.hadoop.compress.d2.ValueOnlyTextOutputFormat;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.ClusterMapReduceTestCase;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.lib.IdentityMapper;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests D2 files indexed when written and indexed afterwards are read by several mappers, which together read the same
+ * lines as reading the whole files.
+ */
+public class D2TextInputFormatTest extends ClusterMapReduceTestCase {
+
+  private static final int LINES_PER_FILE = 20000;
+  private static final long INDEX_SPACING = 16 * 1024;
+
+  @BeforeClass
+  public static void setupClass() throws Exception {
+    setupClassBase(D2TextInputFormatTest.class);
+  }
+
+  @Before
+  @Override
+  public void setUp() throws Exception {
+    // required or the cluster will not start
+    System.setProperty("hadoop.log.dir", "target/logs");
+    // lets the task JVMs run on Java 9 and later, and is ignored by Java 8
+    Properties props = new Properties();
+    String opts = "-XX:+IgnoreUnrecognizedVMOptions --add-opens=java.base/java.lang=ALL-UNNAMED";
+    props.setProperty("yarn.app.mapreduce.am.command-opts", opts);
+    props.setProperty("mapreduce.map.java.opts", opts);
+    props.setProperty("mapreduce.reduce.java.opts", opts);
+    startCluster(true, props);
+  }
+
+  @After
+  @Override
+  public void tearDown() throws Exception {
+    stopCluster();
+  }
+
+  @Test
+  public void testMapReduce() throws Exception {
+    Path inDir = new Path("test/input");
+    Path outDir = new Path("test/output");
+    List<String> expected = writeInput(inDir);
+
+    Job job = Job.getInstance(createJobConf());
+    job.setInputFormatClass(D2TextInputFormat.class);
+    job.setMapperClass(ValueMapper.class);
+    job.setNumReduceTasks(0);
+    job.setOutputKeyClass(NullWritable.class);
+    job.setOutputValueClass(Text.class);
+    job.setOutputFormatClass(TextOutputFormat.class);
+    FileInputFormat.setInputPaths(job, inDir);
+    FileInputFormat.setMaxInputSplitSize(job, 64 * 1024);
+    FileOutputFormat.setOutputPath(job, outDir);
+
+    int splits = new D2TextInputFormat().getSplits(job).size();
+    Assert.assertTrue("Expected several splits per file but found " + splits, splits > 4);
+
+    Assert.assertTrue(job.waitForCompletion(false));
+    Assert.assertEquals("Splits should read the lines of the whole files", expected, readOutput(outDir));
+  }
+
+  @Test
+  public void testMapred() throws Exception {
+    Path inDir = new Path("test/input");
+    Path outDir = new Path("test/output");
+    List<String> expected = writeInput(inDir);
+
+    JobConf conf = createJobConf();
+    conf.setInputFormat(org.gbif.hadoop.compress.d2.mapred.D2TextInputFormat.class);
+    conf.setMapperClass(IdentityMapper.class);
+    conf.setNumMapTasks(20);
+    conf.setNumReduceTasks(0);
+    conf.setOutputFormat(ValueOnlyTextOutputFormat.class);
+    org.apache.hadoop.mapred.FileInputFormat.setInputPaths(conf, inDir);
+    org.apache.hadoop.mapred.FileOutputFormat.setOutputPath(conf, outDir);
+
+    int splits = new org.gbif.hadoop.compress.d2.mapred.D2TextInputFormat().getSplits(conf, 20).length;
+    Assert.assertTrue("Expected several splits per file but found " + splits, splits > 4);
+
+    Assert.assertTrue(JobClient.runJob(conf).isSuccessful());
+    Assert.assertEquals("Splits should read the lines of the whole files", expected, readOutput(outDir));
+  }
+
+  /**
+   * Writes a file indexed when written and a file indexed afterwards, returning their lines in order, as read whole.
+   */
+  private List<String> writeInput(Path inDir) throws IOException {
+    FileSystem fs = getFileSystem();
+    Path indexed = new Path(inDir, "indexed.def2");
+    try (D2CompressorStream out = new D2CompressorStream(fs.create(indexed), new D2Compressor(INDEX_SPACING))) {
+      writeLines(out, "indexed");
+      out.finish();
+      out.getIndex().write(fs, indexed);
+    }
+    Path legacy = new Path(inDir, "legacy.def2");
+    try (D2CompressorStream out = new D2CompressorStream(fs.create(legacy))) {
+      writeLines(out, "legacy");
+    }
+    D2IndexBuilder.index(fs, legacy, INDEX_SPACING, 4);
+
+    List<String> lines = new ArrayList<>();
+    for (Path file : Arrays.asList(indexed, legacy)) {
+      ByteArrayOutputStream data = new ByteArrayOutputStream();
+      D2Utils.decompress(D2Utils.prepareD2Stream(fs.open(file)), data);
+      lines.addAll(Arrays.asList(new String(data.toByteArray(), StandardCharsets.UTF_8).split("\n")));
+    }
+    Collections.sort(lines);
+    return lines;
+  }
+
+  private static void writeLines(D2CompressorStream out, String prefix) throws IOException {
+    for (int i = 0; i < LINES_PER_FILE; i++) {
+      out.write((prefix + '\t' + i + '\t' + RandomStringUtils.randomAlphanumeric(40) + "\tPuma concolor\n")
+                  .getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * Reads the lines of all parts, sorted since the order of the map tasks is not that of the splits.
+   */
+  private List<String> readOutput(Path outDir) throws IOException {
+    List<String> lines = new ArrayList<>();
+    for (FileStatus part : getFileSystem().listStatus(outDir)) {
+      if (part.getPath().getName().startsWith("part-")) {
+        try (BufferedReader reader = new BufferedReader(
+          new InputStreamReader(getFileSystem().open(part.getPath()), StandardCharsets.UTF_8))) {
+          String line;
+          while ((line = reader.readLine()) != null) {
+            lines.add(line);
+          }
+        }
+      }
+    }
+    Collections.sort(lines);
+    return lines;
+  }
+
+  /**
+   * Writes the lines alone.
+   */
+  public static class ValueMapper extends Mapper<LongWritable, Text, NullWritable, Text> {
+    @Override
+    protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+      context.write(NullWritable.get(), value);
+    }
+  }
+}
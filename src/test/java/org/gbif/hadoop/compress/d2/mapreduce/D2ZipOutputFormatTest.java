@@ -0,0 +1,185 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2.mapreduce;
+
+import org.gbif.hadoop.compress.d2.D2Footer;
+import org.gbif.hadoop.compress.d2.D2Index;
+import org.gbif.hadoop.compress.d2.D2Manifest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobID;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.task.JobContextImpl;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Tests assembling a ZIP file of several entries at job commit.
+ */
+public class D2ZipOutputFormatTest {
+
+  private static final String[] COUNTRIES = {"FR", "DK", "ES"};
+  private static final int TASKS = 3;
+
+  /**
+   * Names entries from the keys, with entries written by several tasks, copying on the local filesystem.
+   */
+  @Test
+  public void testEntriesFromKeys() throws IOException, InterruptedException {
+    Job job = Job.getInstance(new Configuration());
+    Path output = new Path(Files.createTempDirectory("d2-zip").toUri().toString(), "countries");
+    D2ZipOutputFormat.setEntryNamesFromKeys(job.getConfiguration(), true);
+    D2ZipOutputFormat.setEntryNameSuffix(job.getConfiguration(), ".tsv");
+    D2ZipOutputFormat.setIndexInterval(job.getConfiguration(), 1024);
+
+    Map<String, StringBuilder> expected = new TreeMap<>();
+    FileOutputFormat.setOutputPath(job, output);
+    Configuration conf = job.getConfiguration();
+    JobID jobId = new JobID("d2", 1);
+    OutputCommitter jobCommitter = committer(conf, jobId);
+    for (int task = 0; task < TASKS; task++) {
+      TaskAttemptContext context = attempt(conf, jobId, task);
+      D2ZipOutputFormat<Text, Text> format = new D2ZipOutputFormat<>();
+      OutputCommitter committer = format.getOutputCommitter(context);
+      committer.setupTask(context);
+      RecordWriter<Text, Text> writer = format.getRecordWriter(context);
+      for (int i = 0; i < 3000; i++) {
+        String country = COUNTRIES[(i + task) % COUNTRIES.length];
+        String line = "Task " + task + " record " + i;
+        writer.write(new Text(country), new Text(line));
+        if (!expected.containsKey(country + ".tsv")) {
+          expected.put(country + ".tsv", new StringBuilder());
+        }
+        expected.get(country + ".tsv").append(line).append('\n');
+      }
+      writer.close(context);
+      committer.commitTask(context);
+    }
+    jobCommitter.commitJob(new JobContextImpl(conf, jobId));
+
+    FileSystem fs = output.getFileSystem(conf);
+    Map<String, String> entries = unzip(fs, new Path(output.getParent(), "countries.zip"));
+    Assert.assertEquals("Entries are not as expected", toStrings(expected), entries);
+    Assert.assertEquals("Entries should be in order of name", new ArrayList<>(expected.keySet()),
+                        new ArrayList<>(entries.keySet()));
+    D2Manifest manifest = D2Manifest.read(fs, output);
+    Assert.assertEquals("Manifest should record the entry of each part", TASKS * COUNTRIES.length,
+                        manifest.getEntryNames().size());
+    for (Map.Entry<Path, D2Footer> part : manifest.getFooters().entrySet()) {
+      Assert.assertNotNull("Part should be indexed " + part.getKey(),
+                           D2Index.read(fs, part.getKey(), part.getValue()));
+    }
+  }
+
+  /**
+   * Names an entry for each partition, some of which are empty, concatenating the parts on HDFS.
+   */
+  @Test
+  public void testEntriesFromPartitions() throws IOException, InterruptedException {
+    Configuration clusterConf = new Configuration();
+    File baseDir = Files.createTempDirectory("d2-zip-hdfs").toFile();
+    clusterConf.set(MiniDFSCluster.HDFS_MINIDFS_BASEDIR, baseDir.getAbsolutePath());
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(clusterConf).numDataNodes(1).build();
+    try {
+      FileSystem fs = cluster.getFileSystem();
+      Job job = Job.getInstance(fs.getConf());
+      Path output = fs.makeQualified(new Path("/partitions"));
+      FileOutputFormat.setOutputPath(job, output);
+      Configuration conf = job.getConfiguration();
+      D2MergeOutputFormat.setDeleteParts(conf, true);
+
+      Map<String, String> expected = new TreeMap<>();
+      JobID jobId = new JobID("d2", 1);
+      OutputCommitter jobCommitter = committer(conf, jobId);
+      for (int task = 0; task < TASKS; task++) {
+        TaskAttemptContext context = attempt(conf, jobId, task);
+        D2ZipOutputFormat<Text, Text> format = new D2ZipOutputFormat<>();
+        OutputCommitter committer = format.getOutputCommitter(context);
+        committer.setupTask(context);
+        RecordWriter<Text, Text> writer = format.getRecordWriter(context);
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; task != 1 && i < 5000; i++) {
+          writer.write(new Text("k" + i), new Text("Partition " + task));
+          content.append("k").append(i).append('\t').append("Partition ").append(task).append('\n');
+        }
+        expected.put(String.format("part-%05d.txt", task), content.toString());
+        writer.close(context);
+        committer.commitTask(context);
+      }
+      jobCommitter.commitJob(new JobContextImpl(conf, jobId));
+
+      Assert.assertEquals("Entries are not as expected", expected, unzip(fs, new Path("/partitions.zip")));
+      Assert.assertEquals("Only the success marker should remain", 1, fs.listStatus(output).length);
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  private static OutputCommitter committer(Configuration conf, JobID jobId) throws IOException {
+    OutputCommitter committer = new D2ZipOutputFormat<Text, Text>().getOutputCommitter(attempt(conf, jobId, 0));
+    committer.setupJob(new JobContextImpl(conf, jobId));
+    return committer;
+  }
+
+  private static TaskAttemptContext attempt(Configuration conf, JobID jobId, int task) {
+    return new TaskAttemptContextImpl(conf, new TaskAttemptID(jobId.getJtIdentifier(), jobId.getId(),
+                                                              TaskType.REDUCE, task, 0));
+  }
+
+  private static Map<String, String> toStrings(Map<String, StringBuilder> content) {
+    Map<String, String> result = new TreeMap<>();
+    for (Map.Entry<String, StringBuilder> entry : content.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().toString());
+    }
+    return result;
+  }
+
+  /**
+   * Reads the entries in order, as a standard ZIP reader would.
+   */
+  private static Map<String, String> unzip(FileSystem fs, Path zip) throws IOException {
+    Map<String, String> entries = new LinkedHashMap<>();
+    try (ZipInputStream in = new ZipInputStream(fs.open(zip))) {
+      ZipEntry entry;
+      while ((entry = in.getNextEntry()) != null) {
+        entries.put(entry.getName(), new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8));
+      }
+    }
+    return entries;
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2.zip;
+
+import org.gbif.hadoop.compress.d2.D2Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+import static org.gbif.hadoop.compress.d2.zip.ModalZipOutputStream.MODE;
+
+/**
+ * Tests appending entries to existing zips on the local filesystem and HDFS.
+ */
+public class ModalZipAppendTest {
+
+  private static final byte[] FIRST = RandomStringUtils.randomAlphabetic(40000).getBytes(StandardCharsets.UTF_8);
+  private static final byte[] SECOND = RandomStringUtils.randomAlphabetic(20000).getBytes(StandardCharsets.UTF_8);
+  private static final byte[] THIRD = "appended content\n".getBytes(StandardCharsets.UTF_8);
+
+  @Test
+  public void testAppendLocal() throws IOException {
+    File file = File.createTempFile("append-", ".zip");
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    assertAppends(fs, new Path(file.toURI()));
+
+    // also readable through the checksummed filesystem, which must not hold a stale checksum
+    try (InputStream in = fs.open(new Path(file.toURI()))) {
+      ByteStreams.exhaust(in);
+    }
+  }
+
+  @Test
+  public void testAppendHdfs() throws IOException {
+    Configuration conf = new Configuration();
+    File baseDir = Files.createTempDirectory("append-hdfs").toFile();
+    conf.set(MiniDFSCluster.HDFS_MINIDFS_BASEDIR, baseDir.getAbsolutePath());
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1).build();
+    try {
+      assertAppends(cluster.getFileSystem(), new Path("/append.zip"));
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  /**
+   * Writes a zip, appends a pre-deflated and a default entry in turn, and verifies the result.
+   */
+  private static void assertAppends(FileSystem fs, Path path) throws IOException {
+    try (ModalZipOutputStream zos = new ModalZipOutputStream(fs.create(path, true))) {
+      zos.setComment("Original comment");
+      zos.putNextEntry(new ZipEntry("first.txt"), MODE.DEFAULT);
+      zos.write(FIRST);
+      zos.closeEntry();
+    }
+    long originalLength = fs.getFileStatus(path).getLen();
+
+    try (ModalZipOutputStream zos = ModalZipOutputStream.append(fs, path)) {
+      zos.putEntry(new ZipEntry("second.txt"), Lists.<InputStream>newArrayList(compress(SECOND)));
+    }
+    try (ModalZipOutputStream zos = ModalZipOutputStream.append(fs, path)) {
+      zos.putNextEntry(new ZipEntry("third.txt"), MODE.DEFAULT);
+      zos.write(THIRD);
+      zos.closeEntry();
+      try {
+        zos.putNextEntry(new ZipEntry("first.txt"), MODE.DEFAULT);
+        Assert.fail("Existing entry names must not be duplicated");
+      } catch (java.util.zip.ZipException expected) {
+        // expected
+      }
+    }
+    Assert.assertTrue("Zip should have grown", fs.getFileStatus(path).getLen() > originalLength);
+
+    try (ModalZipFile zip = new ModalZipFile(fs, path)) {
+      Assert.assertEquals("Entries are not as expected", 3, zip.getEntries().size());
+      Assert.assertEquals("Comment is not as expected", "Original comment", zip.getComment());
+      Assert.assertEquals("Size is not as expected", SECOND.length, zip.getEntry("second.txt").getSize());
+    }
+
+    // a streaming read goes through the LOC headers and verifies the CRC-32 of each entry
+    try (ZipInputStream zin = new ZipInputStream(fs.open(path))) {
+      for (byte[] expected : Lists.newArrayList(FIRST, SECOND, THIRD)) {
+        Assert.assertNotNull("Missing entry", zin.getNextEntry());
+        Assert.assertArrayEquals("Entry does not equal the original", expected, ByteStreams.toByteArray(zin));
+      }
+      Assert.assertNull("Unexpected entry", zin.getNextEntry());
+    }
+  }
+
+  private static InputStream compress(byte[] original) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    D2Utils.compress(new ByteArrayInputStream(original), out);
+    return new ByteArrayInputStream(out.toByteArray());
+  }
+}
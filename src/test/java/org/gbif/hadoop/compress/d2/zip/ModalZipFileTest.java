@@ -0,0 +1,106 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2.zip;
+
+import org.gbif.hadoop.compress.d2.D2Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+import static org.gbif.hadoop.compress.d2.zip.ModalZipOutputStream.MODE;
+
+/**
+ * Shows how to read entries of existing zips and merge them into a new zip without recompressing.
+ */
+public class ModalZipFileTest {
+
+  /**
+   * Joins pre-deflated and default entries of two zips into a single entry of a new zip.
+   */
+  @Test
+  public void testJoinEntries() throws IOException {
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    byte[] year2019 = RandomStringUtils.randomAlphabetic(50000).getBytes(StandardCharsets.UTF_8);
+    byte[] year2020 = RandomStringUtils.randomAlphabetic(30000).getBytes(StandardCharsets.UTF_8);
+    byte[] year2021 = "short content\n".getBytes(StandardCharsets.UTF_8);
+
+    // 2019 is built from D2 parts, while 2020 and 2021 are deflated by the zip itself
+    File first = File.createTempFile("first-", ".zip");
+    try (ModalZipOutputStream zos = new ModalZipOutputStream(java.nio.file.Files.newOutputStream(first.toPath()))) {
+      zos.putEntry(new ZipEntry("2019.txt"), Lists.newArrayList(compress(year2019)));
+      zos.putNextEntry(new ZipEntry("2020.txt"), MODE.DEFAULT);
+      zos.write(year2020);
+      zos.closeEntry();
+    }
+    File second = File.createTempFile("second-", ".zip");
+    try (ModalZipOutputStream zos = new ModalZipOutputStream(java.nio.file.Files.newOutputStream(second.toPath()))) {
+      zos.putNextEntry(new ZipEntry("2021.txt"), MODE.DEFAULT);
+      zos.write(year2021);
+      zos.closeEntry();
+    }
+
+    File joined = File.createTempFile("joined-", ".zip");
+    try (
+      ModalZipFile firstZip = new ModalZipFile(fs, new Path(first.toURI()));
+      ModalZipFile secondZip = new ModalZipFile(fs, new Path(second.toURI()));
+      ModalZipOutputStream zos = new ModalZipOutputStream(java.nio.file.Files.newOutputStream(joined.toPath()))
+    ) {
+      Assert.assertEquals("Entries are not as expected", 2, firstZip.getEntries().size());
+      Assert.assertEquals("Size is not as expected", year2020.length, firstZip.getEntry("2020.txt").getSize());
+
+      // the raw data is the deflate data as stored
+      try (InputStream raw = firstZip.getRawInputStream(firstZip.getEntry("2020.txt"))) {
+        Assert.assertArrayEquals("Raw data does not inflate to the original", year2020,
+                                 ByteStreams.toByteArray(new InflaterInputStream(raw, new Inflater(true))));
+      }
+
+      zos.putEntry(new ZipEntry("all.txt"),
+                   Lists.newArrayList(firstZip.openD2Part(firstZip.getEntry("2019.txt")),
+                                      firstZip.openD2Part(firstZip.getEntry("2020.txt")),
+                                      secondZip.openD2Part(secondZip.getEntry("2021.txt"))));
+    }
+
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    expected.write(year2019);
+    expected.write(year2020);
+    expected.write(year2021);
+    try (java.util.zip.ZipFile zip = new java.util.zip.ZipFile(joined)) {
+      // reading to the end verifies the CRC-32 and sizes
+      Assert.assertArrayEquals("Joined entry does not equal the originals", expected.toByteArray(),
+                               ByteStreams.toByteArray(zip.getInputStream(zip.getEntry("all.txt"))));
+    }
+  }
+
+  private static InputStream compress(byte[] original) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    D2Utils.compress(new ByteArrayInputStream(original), out);
+    return new ByteArrayInputStream(out.toByteArray());
+  }
+}
@@ -63,6 +63,32 @@ public class ModalZipTest {
     }
   }
 
+  /**
+   * Test that a header and trailer spliced around pre-compressed parts are read back in position.
+   */
+  @Test
+  public void testSpliced() throws IOException {
+    byte[] header = "gbifID\tscientificName\n".getBytes(StandardCharsets.UTF_8);
+    byte[] original = "1\tPuma concolor\n2\tAlces alces\n".getBytes(StandardCharsets.UTF_8);
+    byte[] trailer = "# end\n".getBytes(StandardCharsets.UTF_8);
+
+    ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+    try (ModalZipOutputStream zos = new ModalZipOutputStream(new BufferedOutputStream(zipped))) {
+      zos.putEntry(new ZipEntry("spliced.txt"), Lists.newArrayList(D2Utils.asD2Part(header),
+                                                                   new ByteArrayInputStream(compress(original)),
+                                                                   D2Utils.asD2Part(trailer)));
+    }
+
+    try (ZipInputStream zin = new ZipInputStream(new ByteArrayInputStream(zipped.toByteArray()))) {
+      zin.getNextEntry();
+      // reading to the end verifies the CRC-32 and sizes
+      Assert.assertEquals("Uncompressed does not equal the spliced original",
+                          new String(header, StandardCharsets.UTF_8) + new String(original, StandardCharsets.UTF_8)
+                          + new String(trailer, StandardCharsets.UTF_8),
+                          new String(ByteStreams.toByteArray(zin), StandardCharsets.UTF_8));
+    }
+  }
+
   /**
    * Illustrates how to add both pre-compressed and uncompressed content to a Zip.
    */
@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.hadoop.compress.d2.zip;
+
+import org.gbif.hadoop.compress.d2.D2Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Tests that a virtual zip serves exactly the bytes of the zip written by ModalZipOutputStream.
+ */
+public class VirtualZipFileTest {
+
+  private static final long TIME = 1546300800000L; // 2019-01-01
+
+  @Test
+  public void testIdenticalBytes() throws IOException {
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    java.nio.file.Path dir = Files.createTempDirectory("virtual-zip");
+    List<Path> first = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      first.add(part(fs, new Path(dir.toUri().toString(), "first-" + i + ".def2"), 10000 * (i + 1)));
+    }
+    List<Path> second = Lists.newArrayList(part(fs, new Path(dir.toUri().toString(), "second.def2"), 500));
+
+    ByteArrayOutputStream materialised = new ByteArrayOutputStream();
+    try (ModalZipOutputStream zos = new ModalZipOutputStream(materialised)) {
+      zos.setComment("Virtual");
+      zos.putEntry(entry("first.txt"), open(fs, first));
+      zos.putEntry(entry("second.txt"), open(fs, second));
+    }
+    byte[] expected = materialised.toByteArray();
+
+    try (VirtualZipFile zip = new VirtualZipFile(fs)) {
+      zip.setComment("Virtual");
+      zip.addEntry(entry("first.txt"), first);
+      zip.addEntry(entry("second.txt"), second);
+
+      Assert.assertEquals("Length is not as expected", expected.length, zip.getLength());
+      Assert.assertArrayEquals("Bytes are not as expected", expected, ByteStreams.toByteArray(zip.openStream(0)));
+
+      // random ranges, as a resumed download would request
+      Random random = new Random(7);
+      for (int i = 0; i < 200; i++) {
+        int position = random.nextInt(expected.length);
+        int length = random.nextInt(5000);
+        byte[] range = new byte[length];
+        int read = zip.read(position, range, 0, length);
+        int expectedRead = Math.min(length, expected.length - position);
+        Assert.assertEquals("Bytes read are not as expected", expectedRead, read);
+        for (int j = 0; j < read; j++) {
+          Assert.assertEquals("Byte at " + (position + j) + " is not as expected", expected[position + j], range[j]);
+        }
+      }
+      Assert.assertEquals("Reading at the end should return -1", -1, zip.read(expected.length, new byte[1], 0, 1));
+    }
+  }
+
+  /**
+   * Writes the zip of channel parts to a file channel, which should hold the bytes ModalZipOutputStream writes.
+   */
+  @Test
+  public void testTransferTo() throws IOException {
+    FileSystem fs = FileSystem.getLocal(new Configuration());
+    java.nio.file.Path dir = Files.createTempDirectory("virtual-zip-channels");
+    // a part larger than gathered slices, and one small enough to gather
+    List<Path> parts = Lists.newArrayList(part(fs, new Path(dir.toUri().toString(), "large.def2"), 500000),
+                                          part(fs, new Path(dir.toUri().toString(), "small.def2"), 100));
+
+    ByteArrayOutputStream materialised = new ByteArrayOutputStream();
+    try (ModalZipOutputStream zos = new ModalZipOutputStream(materialised)) {
+      zos.putEntry(entry("all.txt"), open(fs, parts));
+    }
+
+    List<FileChannel> channels = new ArrayList<>();
+    java.nio.file.Path target = dir.resolve("all.zip");
+    try (VirtualZipFile zip = new VirtualZipFile();
+         FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+      for (Path part : parts) {
+        channels.add(FileChannel.open(java.nio.file.Paths.get(part.toUri()), StandardOpenOption.READ));
+      }
+      zip.addChannelEntry(entry("all.txt"), channels);
+      Assert.assertEquals("Length is not as expected", zip.getLength(), zip.transferTo(out));
+    } finally {
+      for (FileChannel channel : channels) {
+        channel.close();
+      }
+    }
+    Assert.assertArrayEquals("Bytes are not as expected", materialised.toByteArray(), Files.readAllBytes(target));
+  }
+
+  private static ZipEntry entry(String name) {
+    ZipEntry e = new ZipEntry(name);
+    e.setTime(TIME);
+    return e;
+  }
+
+  private static Path part(FileSystem fs, Path path, int length) throws IOException {
+    byte[] data = RandomStringUtils.randomAlphabetic(length).getBytes(StandardCharsets.UTF_8);
+    D2Utils.compress(new ByteArrayInputStream(data), fs.create(path));
+    return path;
+  }
+
+  private static List<InputStream> open(FileSystem fs, List<Path> paths) throws IOException {
+    List<InputStream> streams = new ArrayList<>();
+    for (Path path : paths) {
+      streams.add(fs.open(path));
+    }
+    return streams;
+  }
+}